@@ -9,4 +9,12 @@ public class ClassDefinitionSetter {
     public static void setClassDefinition(ClassDefinition classDefinition, Data data) {
         data.classDefinition = classDefinition;
     }
+
+    /**
+     * Restores the compressed binary form of a class definition read back with {@link ClassDefinitionImpl#readData},
+     * which Data needs to serialize the class definition along with the value.
+     */
+    public static void setBinary(ClassDefinition classDefinition, byte[] binary) {
+        ((BinaryClassDefinition) classDefinition).setBinary(binary);
+    }
 }
@@ -0,0 +1,154 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+import info.jerrinot.nettyloc.AllocationCursor;
+import info.jerrinot.nettyloc.AllocationVisitor;
+import info.jerrinot.nettyloc.PlatformDependent;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Verifies the checksums of the entries of a compact {@link NettyStorage} in the background, so corrupted entries
+ * are found even if they are never read. Like the {@link ClockEvictor} it walks the allocations of the storage's
+ * allocator with a cursor, a batch at a time, and copies every entry the way {@link StorageSnapshot} does so entries
+ * put or removed meanwhile are skipped rather than reported.
+ * <p>
+ * The allocator passes every allocation to the scrubber under a lock which keeps it from being freed, so memory
+ * reused for an entry laid out differently is never verified as if it held an entry. The corrupted entries are
+ * logged after the walk, once the lock has been released.
+ * </p>
+ */
+final class ChecksumScrubber implements AllocationVisitor {
+    // entries verified per run of the background thread
+    static final int BATCH_SIZE = 1024;
+
+    private static final int INITIAL_FAILURES = 16;
+
+    private static final ILogger LOGGER = Logger.getLogger(ChecksumScrubber.class);
+
+    private final NettyStorage storage;
+    private final PooledByteBufAllocator allocator;
+
+    // guarded by this
+    private final AllocationCursor cursor = new AllocationCursor();
+    private int[] failedHashes = new int[INITIAL_FAILURES];
+    private int[] failedLengths = new int[INITIAL_FAILURES];
+    private long[] failedAddresses = new long[INITIAL_FAILURES];
+    private int numFailures;
+    // null unless the background thread has been started
+    private Thread thread;
+
+    ChecksumScrubber(NettyStorage storage, PooledByteBufAllocator allocator) {
+        this.storage = storage;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Starts a daemon thread which scrubs {@link #BATCH_SIZE} entries every {@code intervalMillis}. The thread
+     * ends once the scrubber is garbage collected.
+     */
+    void start(long intervalMillis) {
+        thread = new Thread(new Task(this, intervalMillis), "hugecast-scrubber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ends the background thread, if any, once it finished the batch it is working on.
+     */
+    void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Verifies the next {@code maxEntries} entries.
+     *
+     * @return the number of corrupted entries found
+     */
+    synchronized int scrub(int maxEntries) {
+        numFailures = 0;
+        allocator.visitAllocations(cursor, maxEntries, this);
+        for (int i = 0; i < numFailures; i ++) {
+            LOGGER.warning("Corrupted entry with hash " + failedHashes[i] + " and " + failedLengths[i]
+                    + " bytes at address " + failedAddresses[i]);
+        }
+        return numFailures;
+    }
+
+    @Override
+    public boolean visitAllocation(long handle, long address, int capacity) {
+        if (capacity < EntryHeader.SIZE) {
+            return true;
+        }
+        // read in the reverse order of the writers, see EntryHeader
+        int versionWord = EntryHeader.versionWord(address);
+        int lengthWord = EntryHeader.lengthWord(address);
+        if (!EntryHeader.isCommitted(lengthWord) || !EntryHeader.hasChecksum(lengthWord)
+                || EntryHeader.entrySize(lengthWord) > capacity) {
+            return true;
+        }
+        int length = EntryHeader.length(lengthWord);
+        byte[] payload = Lz4Codec.scratch().buffer(length);
+        PlatformDependent.copyMemory(EntryHeader.payloadAddress(address), payload, 0, length);
+        int checksum = EntryHeader.checksum(address, length);
+        int hash = EntryHeader.hash(address);
+        if (!EntryHeader.isUnchanged(lengthWord, EntryHeader.lengthWord(address))
+                || EntryHeader.versionWord(address) != versionWord) {
+            // removed or replaced while being copied
+            return true;
+        }
+
+        if (!storage.verifyChecksum(hash, payload, length, checksum)) {
+            addFailure(hash, length, address);
+        }
+        return true;
+    }
+
+    private void addFailure(int hash, int length, long address) {
+        if (numFailures == failedHashes.length) {
+            failedHashes = Arrays.copyOf(failedHashes, numFailures << 1);
+            failedLengths = Arrays.copyOf(failedLengths, numFailures << 1);
+            failedAddresses = Arrays.copyOf(failedAddresses, numFailures << 1);
+        }
+        failedHashes[numFailures] = hash;
+        failedLengths[numFailures] = length;
+        failedAddresses[numFailures ++] = address;
+    }
+
+    private static final class Task implements Runnable {
+        // a strong reference would keep the storage alive for as long as the thread runs
+        private final WeakReference<ChecksumScrubber> scrubber;
+        private final long intervalMillis;
+
+        Task(ChecksumScrubber scrubber, long intervalMillis) {
+            this.scrubber = new WeakReference<ChecksumScrubber>(scrubber);
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ChecksumScrubber scrubber = this.scrubber.get();
+                if (scrubber == null || Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                try {
+                    scrubber.scrub(BATCH_SIZE);
+                } catch (RuntimeException e) {
+                    LOGGER.warning("Scrubbing failed", e);
+                }
+                scrubber = null;
+            }
+        }
+    }
+}
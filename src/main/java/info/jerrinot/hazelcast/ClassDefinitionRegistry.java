@@ -0,0 +1,74 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.nio.serialization.ClassDefinition;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns the {@link ClassDefinition}s of stored values and assigns them compact int ids, so an entry only has to
+ * keep the id instead of a reference. One registry is shared by all storages of a node.
+ * <p>
+ * Ids are never reused. Resolving an id is a lock-free array lookup, registering a class definition seen for the
+ * first time is synchronized.
+ * </p>
+ */
+public final class ClassDefinitionRegistry {
+    public static final int NO_CLASS_DEFINITION = -1;
+
+    private final ConcurrentMap<ClassDefinition, Integer> ids = new ConcurrentHashMap<ClassDefinition, Integer>();
+    private volatile ClassDefinition[] classDefinitions = new ClassDefinition[16];
+    private int nextId;
+
+    /**
+     * Returns the id of the {@code classDefinition}, assigning a new one when it is not known yet.
+     *
+     * @return the id or {@link #NO_CLASS_DEFINITION} if {@code classDefinition} is {@code null}
+     */
+    public int register(ClassDefinition classDefinition) {
+        if (classDefinition == null) {
+            return NO_CLASS_DEFINITION;
+        }
+        Integer id = ids.get(classDefinition);
+        if (id != null) {
+            return id;
+        }
+        return register0(classDefinition);
+    }
+
+    private synchronized int register0(ClassDefinition classDefinition) {
+        Integer id = ids.get(classDefinition);
+        if (id != null) {
+            return id;
+        }
+
+        int newId = nextId ++;
+        ClassDefinition[] classDefinitions = this.classDefinitions;
+        if (newId == classDefinitions.length) {
+            ClassDefinition[] newClassDefinitions = new ClassDefinition[classDefinitions.length << 1];
+            System.arraycopy(classDefinitions, 0, newClassDefinitions, 0, classDefinitions.length);
+            classDefinitions = newClassDefinitions;
+        }
+        classDefinitions[newId] = classDefinition;
+        // publish the array before the id can be seen by any other thread
+        this.classDefinitions = classDefinitions;
+        ids.put(classDefinition, newId);
+        return newId;
+    }
+
+    /**
+     * Returns the class definition registered under the {@code id}.
+     *
+     * @return the class definition or {@code null} if {@code id} is {@link #NO_CLASS_DEFINITION}
+     */
+    public ClassDefinition get(int id) {
+        if (id == NO_CLASS_DEFINITION) {
+            return null;
+        }
+        return classDefinitions[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,140 @@
+package info.jerrinot.hazelcast;
+
+import info.jerrinot.nettyloc.AllocationCursor;
+import info.jerrinot.nettyloc.AllocationVisitor;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a compact {@link NettyStorage} below its capacity by picking entries to evict with CLOCK, an approximation
+ * of LRU. The clock hand walks the allocations of the storage's allocator instead of a list of the entries, and
+ * the only state kept per entry is the reference flag in its {@link EntryHeader}, which is set when the entry is
+ * put or read. The hand clears the flag of a referenced entry and hands an unreferenced one to the
+ * {@link EvictionListener}.
+ * <p>
+ * Eviction starts when the off-heap bytes of the storage exceed the high watermark and goes on until they drop to
+ * the low watermark. Meanwhile every put moves the hand over at most {@link #SCAN_LIMIT} allocations, so the cost
+ * of eviction per operation does not depend on the number of entries. A put which finds the hand taken by another
+ * thread does not wait for it.
+ * </p>
+ * <p>
+ * The allocator passes every allocation to the hand under a lock which keeps it from being freed, so the hand
+ * never takes memory reused for an entry laid out differently for a header. The entries it picks are handed to the
+ * listener after the walk, once the lock has been released.
+ * </p>
+ */
+final class ClockEvictor implements AllocationVisitor {
+    // allocations the hand passes per put at most
+    static final int SCAN_LIMIT = 64;
+
+    private final NettyStorage storage;
+    private final PooledByteBufAllocator allocator;
+    private final StorageCounters counters;
+    private final long highWatermark;
+    private final long lowWatermark;
+
+    private final ReentrantLock handLock = new ReentrantLock();
+    private final AllocationCursor hand = new AllocationCursor();
+    private volatile boolean evicting;
+    private volatile EvictionListener listener;
+
+    // guarded by handLock
+    private long bytesToEvict;
+    // the entries picked by the current walk of the hand
+    private int numVictims;
+    private int[] victimHashes = new int[SCAN_LIMIT];
+    private long[] victimHandles = new long[SCAN_LIMIT];
+    private int[] victimCapacities = new int[SCAN_LIMIT];
+
+    ClockEvictor(NettyStorage storage, PooledByteBufAllocator allocator, StorageCounters counters,
+                 long highWatermark, long lowWatermark) {
+        this.storage = storage;
+        this.allocator = allocator;
+        this.counters = counters;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    void setListener(EvictionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Moves the hand if the storage is above its watermark. Called after every put of {@code numPuts} entries.
+     */
+    void afterPut(int numPuts) {
+        EvictionListener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+        long offHeapBytes = counters.offHeapBytes();
+        if (offHeapBytes <= lowWatermark) {
+            if (evicting) {
+                evicting = false;
+            }
+            return;
+        }
+        if (!evicting) {
+            if (offHeapBytes <= highWatermark) {
+                return;
+            }
+            evicting = true;
+        }
+
+        if (!handLock.tryLock()) {
+            return;
+        }
+        try {
+            bytesToEvict = offHeapBytes - lowWatermark;
+            numVictims = 0;
+            allocator.visitAllocations(hand, (int) Math.min((long) SCAN_LIMIT * numPuts, Integer.MAX_VALUE), this);
+            for (int i = 0; i < numVictims; i ++) {
+                int hash = victimHashes[i];
+                counters.evicted(storage.partitionId(hash), victimCapacities[i]);
+                listener.evict(hash, new CompactDataRef(victimHandles[i], victimCapacities[i]));
+            }
+        } finally {
+            handLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean visitAllocation(long handle, long address, int capacity) {
+        if (capacity < EntryHeader.SIZE) {
+            return true;
+        }
+        // the entry may have been removed or replaced since the hand collected the allocation, see EntryHeader
+        int versionWord = EntryHeader.versionWord(address);
+        int lengthWord = EntryHeader.lengthWord(address);
+        if (!EntryHeader.isCommitted(lengthWord)) {
+            return true;
+        }
+        if (EntryHeader.isReferenced(lengthWord)) {
+            // second chance
+            EntryHeader.clearReferenced(address, lengthWord);
+            return true;
+        }
+        int hash = EntryHeader.hash(address);
+        if (!EntryHeader.isUnchanged(lengthWord, EntryHeader.lengthWord(address))
+                || EntryHeader.versionWord(address) != versionWord) {
+            return true;
+        }
+
+        addVictim(hash, handle, capacity);
+        bytesToEvict -= capacity;
+        return bytesToEvict > 0;
+    }
+
+    private void addVictim(int hash, long handle, int capacity) {
+        if (numVictims == victimHashes.length) {
+            victimHashes = Arrays.copyOf(victimHashes, numVictims << 1);
+            victimHandles = Arrays.copyOf(victimHandles, numVictims << 1);
+            victimCapacities = Arrays.copyOf(victimCapacities, numVictims << 1);
+        }
+        victimHashes[numVictims] = hash;
+        victimHandles[numVictims] = handle;
+        victimCapacities[numVictims ++] = capacity;
+    }
+}
@@ -0,0 +1,52 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.storage.DataRef;
+import info.jerrinot.nettyloc.PlatformDependent;
+
+/**
+ * Reference to an entry stored in the compact mode. The entry's metadata lives in an {@link EntryHeader} in front
+ * of the payload, so the only state kept on the heap is the allocator handle.
+ */
+public final class CompactDataRef implements DataRef {
+    private static final int HEAP_COST = PlatformDependent.shallowSize(CompactDataRef.class);
+
+    private final long handle;
+    // fits into the alignment padding after the header, so it does not add to the heap cost
+    private final int capacity;
+
+    public CompactDataRef(long handle, int capacity) {
+        this.handle = handle;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the off-heap bytes taken by the entry, including its header and the rounding to the size class.
+     */
+    @Override
+    public int size() {
+        return capacity;
+    }
+
+    @Override
+    public int heapCost() {
+        return HEAP_COST;
+    }
+
+    public long getHandle() {
+        return handle;
+    }
+
+    /**
+     * References are equal if they point to the same allocation, so a reference recreated from a handle found in
+     * memory matches the one returned by {@link NettyStorage#put}.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CompactDataRef && ((CompactDataRef) o).handle == handle;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (handle ^ handle >>> 32);
+    }
+}
@@ -0,0 +1,16 @@
+package info.jerrinot.hazelcast;
+
+/**
+ * Thrown by {@link NettyStorage#get(int, com.hazelcast.storage.DataRef)} when the payload of an entry does not match
+ * the checksum it was stored with, or the header of a compact entry is not committed or claims more bytes than its
+ * allocation holds, which means its memory was overwritten by someone else.
+ *
+ * @see NettyStorageConfig#setChecksum(boolean)
+ */
+public class CorruptedEntryException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CorruptedEntryException(String message) {
+        super(message);
+    }
+}
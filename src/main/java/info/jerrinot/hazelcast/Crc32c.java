@@ -0,0 +1,122 @@
+package info.jerrinot.hazelcast;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksums of stored values. Uses {@code java.util.zip.CRC32C} where the JVM has it, which
+ * is compiled to the CRC32 instructions of SSE 4.2 and ARMv8, and a table driven slicing-by-8 implementation on
+ * older JVMs. Both compute the same checksums, so entries written on one JVM verify on another.
+ */
+final class Crc32c {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[8 * 256];
+
+    // null if java.util.zip.CRC32C is not available
+    private static final Constructor<? extends Checksum> INTRINSIC;
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    static {
+        for (int i = 0; i < 256; i ++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit ++) {
+                crc = (crc & 1) != 0 ? crc >>> 1 ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+        for (int i = 0; i < 256; i ++) {
+            int crc = TABLE[i];
+            for (int slice = 1; slice < 8; slice ++) {
+                crc = TABLE[crc & 0xFF] ^ crc >>> 8;
+                TABLE[slice * 256 + i] = crc;
+            }
+        }
+
+        Constructor<? extends Checksum> intrinsic;
+        try {
+            intrinsic = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (Exception e) {
+            intrinsic = null;
+        }
+        INTRINSIC = intrinsic;
+    }
+
+    static State state() {
+        return STATE.get();
+    }
+
+    static int checksum(byte[] bytes, int offset, int length) {
+        if (INTRINSIC != null) {
+            return STATE.get().checksum(bytes, offset, length);
+        }
+        return software(bytes, offset, length);
+    }
+
+    static int software(byte[] bytes, int offset, int length) {
+        int crc = 0xFFFFFFFF;
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            int low = crc ^ (bytes[offset] & 0xFF | (bytes[offset + 1] & 0xFF) << 8
+                    | (bytes[offset + 2] & 0xFF) << 16 | bytes[offset + 3] << 24);
+            crc = TABLE[7 * 256 + (low & 0xFF)] ^ TABLE[6 * 256 + (low >>> 8 & 0xFF)]
+                    ^ TABLE[5 * 256 + (low >>> 16 & 0xFF)] ^ TABLE[4 * 256 + (low >>> 24)]
+                    ^ TABLE[3 * 256 + (bytes[offset + 4] & 0xFF)] ^ TABLE[2 * 256 + (bytes[offset + 5] & 0xFF)]
+                    ^ TABLE[256 + (bytes[offset + 6] & 0xFF)] ^ TABLE[bytes[offset + 7] & 0xFF];
+        }
+        for (; offset < end; offset ++) {
+            crc = TABLE[(crc ^ bytes[offset]) & 0xFF] ^ crc >>> 8;
+        }
+        return ~crc;
+    }
+
+    /**
+     * Per thread instance of {@code java.util.zip.CRC32C} and state of the read sampling.
+     */
+    static final class State {
+        private final Checksum checksum;
+        private int seed = (int) System.nanoTime() | 1;
+
+        State() {
+            Checksum checksum = null;
+            if (INTRINSIC != null) {
+                try {
+                    checksum = INTRINSIC.newInstance();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            this.checksum = checksum;
+        }
+
+        int checksum(byte[] bytes, int offset, int length) {
+            if (checksum == null) {
+                return software(bytes, offset, length);
+            }
+            checksum.reset();
+            checksum.update(bytes, offset, length);
+            return (int) checksum.getValue();
+        }
+
+        /**
+         * Returns {@code true} for about {@code percentage} out of 100 calls.
+         */
+        boolean sample(int percentage) {
+            // xorshift
+            int x = seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            seed = x;
+            return (x & 0x7FFFFFFF) % 100 < percentage;
+        }
+    }
+
+    private Crc32c() {
+    }
+}
@@ -0,0 +1,262 @@
+package info.jerrinot.hazelcast;
+
+import info.jerrinot.nettyloc.ByteBuf;
+import info.jerrinot.nettyloc.PlatformDependent;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+
+/**
+ * Index of the values stored by a deduplicating {@link NettyStorage}, keyed by a 64-bit fingerprint of the stored
+ * payload. A candidate found by its fingerprint is always compared byte by byte before it is shared, so a
+ * fingerprint collision costs a comparison, never a wrong value.
+ * <p>
+ * The table is split into segments selected by the fingerprint, each guarded by its own lock. A segment is an
+ * open addressing table whose fingerprints live off-heap in an allocation of the storage's allocator, next to an
+ * on-heap array of the refs. Sharing a ref ({@link #acquire}) and dropping a reference to it ({@link #release})
+ * both happen under the segment lock, so a buffer is never revived after its reference count dropped to zero.
+ * </p>
+ */
+final class DedupTable {
+    private static final int INITIAL_SEGMENT_CAPACITY = 256;
+    private static final int COMPARE_BUFFER_SIZE = 512;
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    private static final ThreadLocal<byte[]> COMPARE_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COMPARE_BUFFER_SIZE];
+        }
+    };
+
+    private final PooledByteBufAllocator allocator;
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    DedupTable(PooledByteBufAllocator allocator, int concurrency) {
+        this.allocator = allocator;
+        int numSegments = 1;
+        while (numSegments < concurrency) {
+            numSegments <<= 1;
+        }
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i ++) {
+            segments[i] = new Segment();
+        }
+        // segments are selected by the highest bits, slots by the lowest
+        segmentShift = 64 - Integer.numberOfTrailingZeros(numSegments);
+    }
+
+    /**
+     * Returns a fingerprint of the payload and the metadata an entry sharing it has to agree on.
+     */
+    static long fingerprint(byte[] payload, int length, int type, int classDefinitionId, boolean compressed) {
+        long h = PRIME3 + length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h ^= Long.rotateLeft(readLongLE(payload, i) * PRIME2, 31) * PRIME1;
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME3;
+        }
+        for (; i < length; i ++) {
+            h ^= (payload[i] & 0xFF) * PRIME3;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+        }
+        h ^= ((long) type << 32 | classDefinitionId & 0xFFFFFFFFL) * PRIME2;
+        if (compressed) {
+            h = ~h;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * Looks up a stored entry with an identical value and takes a reference to it.
+     *
+     * @return the shared ref or {@code null} if there is no such entry
+     */
+    SharedDataRef acquire(long fingerprint, byte[] payload, int length, int type, int classDefinitionId,
+                          boolean compressed) {
+        Segment segment = segment(fingerprint);
+        synchronized (segment) {
+            SharedDataRef ref = segment.find(fingerprint, payload, length, type, classDefinitionId, compressed);
+            if (ref != null) {
+                ref.getByteBuf().retain();
+            }
+            return ref;
+        }
+    }
+
+    /**
+     * Makes a newly stored entry available for sharing.
+     */
+    void add(SharedDataRef ref) {
+        Segment segment = segment(ref.getFingerprint());
+        synchronized (segment) {
+            segment.add(ref);
+        }
+    }
+
+    /**
+     * Drops a reference to the entry and removes it from the table once the last one is gone.
+     *
+     * @return {@code true} if the entry's memory was released
+     */
+    boolean release(SharedDataRef ref) {
+        Segment segment = segment(ref.getFingerprint());
+        synchronized (segment) {
+            if (!ref.getByteBuf().release()) {
+                return false;
+            }
+            segment.remove(ref);
+            return true;
+        }
+    }
+
+    /**
+     * Forgets all entries. Called once the allocator released all memory, including the memory of the segments.
+     */
+    void clear() {
+        for (Segment segment: segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment segment(long fingerprint) {
+        return segments.length == 1 ? segments[0] : segments[(int) (fingerprint >>> segmentShift)];
+    }
+
+    private static boolean payloadEquals(ByteBuf byteBuf, byte[] payload, int length) {
+        if (byteBuf.capacity() != length) {
+            return false;
+        }
+        byte[] compareBuffer = COMPARE_BUFFER.get();
+        for (int offset = 0; offset < length; offset += COMPARE_BUFFER_SIZE) {
+            int n = Math.min(COMPARE_BUFFER_SIZE, length - offset);
+            byteBuf.getBytes(offset, compareBuffer, 0, n);
+            for (int i = 0; i < n; i ++) {
+                if (compareBuffer[i] != payload[offset + i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long readLongLE(byte[] b, int i) {
+        return b[i] & 0xFFL | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24 |
+               (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 |
+               (b[i + 7] & 0xFFL) << 56;
+    }
+
+    /**
+     * Linear probing table. A slot is in use iff its ref is not {@code null}, so the off-heap fingerprints never
+     * need to be cleared.
+     */
+    private final class Segment {
+        private long fingerprintsHandle = -1;
+        private long fingerprints;
+        private SharedDataRef[] refs;
+        private int mask;
+        private int size;
+
+        SharedDataRef find(long fingerprint, byte[] payload, int length, int type, int classDefinitionId,
+                           boolean compressed) {
+            if (refs == null) {
+                return null;
+            }
+            for (int i = (int) fingerprint & mask; refs[i] != null; i = i + 1 & mask) {
+                SharedDataRef ref = refs[i];
+                if (fingerprintAt(i) == fingerprint && ref.getType() == type &&
+                    ref.getClassDefinitionId() == classDefinitionId && ref.isCompressed() == compressed &&
+                    payloadEquals(ref.getByteBuf(), payload, length)) {
+                    return ref;
+                }
+            }
+            return null;
+        }
+
+        void add(SharedDataRef ref) {
+            if (refs == null) {
+                resize(INITIAL_SEGMENT_CAPACITY);
+            } else if (size + 1 > (mask + 1) * 3 / 4) {
+                resize((mask + 1) << 1);
+            }
+            insert(ref);
+            size ++;
+        }
+
+        void remove(SharedDataRef ref) {
+            int i = (int) ref.getFingerprint() & mask;
+            while (refs[i] != ref) {
+                assert refs[i] != null;
+                i = i + 1 & mask;
+            }
+
+            // backward shift deletion keeps every remaining entry reachable from its home slot
+            for (int j = i + 1 & mask; refs[j] != null; j = j + 1 & mask) {
+                int home = (int) fingerprintAt(j) & mask;
+                if ((j - home & mask) >= (j - i & mask)) {
+                    refs[i] = refs[j];
+                    setFingerprintAt(i, fingerprintAt(j));
+                    i = j;
+                }
+            }
+            refs[i] = null;
+            size --;
+        }
+
+        void clear() {
+            // the memory of the fingerprints is gone together with the rest of the allocator
+            fingerprintsHandle = -1;
+            fingerprints = 0;
+            refs = null;
+            mask = 0;
+            size = 0;
+        }
+
+        private void insert(SharedDataRef ref) {
+            long fingerprint = ref.getFingerprint();
+            int i = (int) fingerprint & mask;
+            while (refs[i] != null) {
+                i = i + 1 & mask;
+            }
+            refs[i] = ref;
+            setFingerprintAt(i, fingerprint);
+        }
+
+        private void resize(int capacity) {
+            SharedDataRef[] oldRefs = refs;
+            long oldHandle = fingerprintsHandle;
+
+            fingerprintsHandle = allocator.allocateHandle(capacity * 8);
+            fingerprints = allocator.handleAddress(fingerprintsHandle);
+            refs = new SharedDataRef[capacity];
+            mask = capacity - 1;
+
+            if (oldRefs != null) {
+                for (SharedDataRef ref: oldRefs) {
+                    if (ref != null) {
+                        insert(ref);
+                    }
+                }
+                allocator.freeHandle(oldHandle);
+            }
+        }
+
+        private long fingerprintAt(int i) {
+            return PlatformDependent.getLong(fingerprints + ((long) i << 3));
+        }
+
+        private void setFingerprintAt(int i, long fingerprint) {
+            PlatformDependent.putLong(fingerprints + ((long) i << 3), fingerprint);
+        }
+    }
+}
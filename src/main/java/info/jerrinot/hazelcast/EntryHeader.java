@@ -0,0 +1,172 @@
+package info.jerrinot.hazelcast;
+
+import info.jerrinot.nettyloc.PlatformDependent;
+
+/**
+ * Layout of the header written in front of the payload of an entry stored in the compact mode.
+ * It carries everything the storage needs to rebuild the {@link com.hazelcast.nio.serialization.Data},
+ * so the {@link CompactDataRef} itself only has to hold the handle of the allocation.
+ * <p>
+ * The header also lets a concurrent reader such as {@link StorageSnapshot} copy an entry without locking, like a
+ * seqlock: the length word carries a committed flag which is set last by {@link #commit(long, int, int)} and
+ * cleared first by {@link #clear(long)}, and the class definition word carries a version which
+ * {@link #write(long, int, int, int)} increments before the payload changes. A copy is consistent if both words
+ * read the same before and after it, not counting the reference flag.
+ * </p>
+ * <p>
+ * The reference flag is the CLOCK bit of {@link ClockEvictor}. It is set when an entry is committed or read and
+ * cleared by the evictor, both with a compare-and-swap so neither can undo a concurrent {@link #clear(long)}.
+ * </p>
+ * <p>
+ * An entry with the checksum flag is followed by the {@link Crc32c} of its payload, so its size is
+ * {@link #entrySize(int)} rather than {@code SIZE} plus the length.
+ * </p>
+ */
+final class EntryHeader {
+    private static final int TYPE_OFFSET = 0;
+    private static final int LENGTH_OFFSET = 4;
+    private static final int HASH_OFFSET = 8;
+    private static final int CLASS_DEFINITION_OFFSET = 12;
+
+    // the four highest bits of the length field hold flags
+    static final int MAX_LENGTH = (1 << 28) - 1;
+    static final int FLAG_COMPRESSED = 1 << 31;
+    private static final int FLAG_COMMITTED = 1 << 30;
+    private static final int FLAG_REFERENCED = 1 << 29;
+    static final int FLAG_CHECKSUM = 1 << 28;
+
+    // the highest byte of the class definition field holds the version
+    private static final int CLASS_DEFINITION_MASK = 0xFFFFFF;
+    static final int MAX_CLASS_DEFINITION_ID = CLASS_DEFINITION_MASK - 1;
+
+    static final int SIZE = 16;
+    static final int CHECKSUM_SIZE = 4;
+
+    /**
+     * Writes the header of a new entry, which stays invisible to concurrent readers until it is committed.
+     */
+    static void write(long address, int type, int hash, int classDefinitionId) {
+        assert classDefinitionId <= MAX_CLASS_DEFINITION_ID;
+        int version = (PlatformDependent.getInt(address + CLASS_DEFINITION_OFFSET) >>> 24) + 1;
+        PlatformDependent.putIntVolatile(address + CLASS_DEFINITION_OFFSET,
+                version << 24 | classDefinitionId & CLASS_DEFINITION_MASK);
+        PlatformDependent.putInt(address + TYPE_OFFSET, type);
+        PlatformDependent.putInt(address + HASH_OFFSET, hash);
+    }
+
+    /**
+     * Publishes an entry once its header and payload are written.
+     */
+    static void commit(long address, int length, int flags) {
+        assert length <= MAX_LENGTH && (flags & ~(FLAG_COMPRESSED | FLAG_CHECKSUM)) == 0;
+        PlatformDependent.putIntVolatile(address + LENGTH_OFFSET, length | flags | FLAG_COMMITTED | FLAG_REFERENCED);
+    }
+
+    /**
+     * Sets the reference flag of a committed entry.
+     */
+    static void markReferenced(long address) {
+        int lengthWord = PlatformDependent.getInt(address + LENGTH_OFFSET);
+        if ((lengthWord & FLAG_REFERENCED) == 0) {
+            // a failure means a concurrent update of the flag, either outcome is fine
+            PlatformDependent.compareAndSwapInt(address + LENGTH_OFFSET, lengthWord, lengthWord | FLAG_REFERENCED);
+        }
+    }
+
+    /**
+     * Clears the reference flag, unless the length field has changed since it read {@code lengthWord}.
+     */
+    static boolean clearReferenced(long address, int lengthWord) {
+        return PlatformDependent.compareAndSwapInt(
+                address + LENGTH_OFFSET, lengthWord, lengthWord & ~FLAG_REFERENCED);
+    }
+
+    /**
+     * Withdraws an entry before its memory is freed.
+     */
+    static void clear(long address) {
+        PlatformDependent.putIntVolatile(address + LENGTH_OFFSET, 0);
+    }
+
+    static int type(long address) {
+        return PlatformDependent.getInt(address + TYPE_OFFSET);
+    }
+
+    static int hash(long address) {
+        return PlatformDependent.getInt(address + HASH_OFFSET);
+    }
+
+    static int classDefinitionId(long address) {
+        int id = PlatformDependent.getInt(address + CLASS_DEFINITION_OFFSET) & CLASS_DEFINITION_MASK;
+        return id == CLASS_DEFINITION_MASK ? ClassDefinitionRegistry.NO_CLASS_DEFINITION : id;
+    }
+
+    static long payloadAddress(long address) {
+        return address + SIZE;
+    }
+
+    /**
+     * Returns the checksum stored after the payload of an entry with the checksum flag.
+     */
+    static int checksum(long address, int length) {
+        return PlatformDependent.getInt(payloadAddress(address) + length);
+    }
+
+    static void putChecksum(long address, int length, int checksum) {
+        PlatformDependent.putInt(payloadAddress(address) + length, checksum);
+    }
+
+    /**
+     * Reads the length field with its flags, for a reader racing with writers.
+     */
+    static int lengthWord(long address) {
+        return PlatformDependent.getIntVolatile(address + LENGTH_OFFSET);
+    }
+
+    /**
+     * Reads the class definition field with its version, for a reader racing with writers.
+     */
+    static int versionWord(long address) {
+        return PlatformDependent.getIntVolatile(address + CLASS_DEFINITION_OFFSET);
+    }
+
+    static boolean isCommitted(int lengthWord) {
+        return (lengthWord & FLAG_COMMITTED) != 0;
+    }
+
+    static boolean hasChecksum(int lengthWord) {
+        return (lengthWord & FLAG_CHECKSUM) != 0;
+    }
+
+    static boolean isReferenced(int lengthWord) {
+        return (lengthWord & FLAG_REFERENCED) != 0;
+    }
+
+    /**
+     * Returns {@code true} if two reads of the length field saw the same entry.
+     */
+    static boolean isUnchanged(int lengthWord, int newLengthWord) {
+        return ((lengthWord ^ newLengthWord) & ~FLAG_REFERENCED) == 0;
+    }
+
+    /**
+     * Returns the length of the stored payload, which is a compressed frame if the compressed flag is set.
+     */
+    static int length(int lengthWord) {
+        return lengthWord & MAX_LENGTH;
+    }
+
+    static int flags(int lengthWord) {
+        return lengthWord & (FLAG_COMPRESSED | FLAG_CHECKSUM);
+    }
+
+    /**
+     * Returns the bytes taken by an entry including its header and checksum.
+     */
+    static int entrySize(int lengthWord) {
+        return SIZE + length(lengthWord) + (hasChecksum(lengthWord) ? CHECKSUM_SIZE : 0);
+    }
+
+    private EntryHeader() {
+    }
+}
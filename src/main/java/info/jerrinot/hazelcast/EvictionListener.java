@@ -0,0 +1,20 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.storage.DataRef;
+
+/**
+ * Receives the entries a {@link NettyStorage} with a capacity picked for eviction, so the owner of the storage can
+ * evict the map entries holding them. The storage does not free an entry by itself, it is freed once the owner
+ * removes it, which may also happen asynchronously.
+ *
+ * @see NettyStorageConfig#setCapacity(long)
+ */
+public interface EvictionListener {
+
+    /**
+     * Called by the thread putting an entry into the storage, but never more than one at a time per storage.
+     * The {@code ref} equals the reference returned when the entry was put. It may belong to an entry which was
+     * removed concurrently, in which case there is no matching map entry and nothing to evict.
+     */
+    void evict(int hash, DataRef ref);
+}
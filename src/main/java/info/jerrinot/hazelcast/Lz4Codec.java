@@ -0,0 +1,243 @@
+package info.jerrinot.hazelcast;
+
+/**
+ * Pure Java compressor writing the LZ4 block format: a greedy single pass matcher over a hash table of 4-byte
+ * sequences, trading some ratio for speed.
+ * <p>
+ * A compressed value is framed as its original length (4 bytes, little endian) followed by the LZ4 block, so it
+ * can be decompressed without any metadata besides its stored length. Callers pass in a per-thread
+ * {@link Scratch} which holds the hash table and the output buffer, so compressing allocates nothing.
+ * </p>
+ */
+final class Lz4Codec {
+    static final int FRAME_HEADER_SIZE = 4;
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    // a match must start at least this many bytes before the end of the input
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    // after 2^SKIP_STRENGTH misses in a row the matcher starts skipping ahead on incompressible input
+    private static final int SKIP_STRENGTH = 6;
+    private static final int RUN_MASK = 15;
+    // scratch buffers up to this size are kept for the next call, larger ones are garbage right away
+    private static final int MAX_RETAINED_SCRATCH = 1024 * 1024;
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    static Scratch scratch() {
+        return SCRATCH.get();
+    }
+
+    /**
+     * Returns the size of the largest frame {@link #compress(byte[], byte[], int[])} can produce for a value of
+     * {@code length} bytes.
+     */
+    static int maxCompressedLength(int length) {
+        return FRAME_HEADER_SIZE + length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses the {@code value} into {@code dst}, which must be at least {@link #maxCompressedLength(int)}
+     * bytes long.
+     *
+     * @param hashTable the {@link Scratch#hashTable} of the calling thread
+     * @return the length of the frame written to {@code dst}
+     */
+    static int compress(byte[] value, byte[] dst, int[] hashTable) {
+        int srcLength = value.length;
+        writeIntLE(dst, 0, srcLength);
+        int dp = FRAME_HEADER_SIZE;
+
+        int anchor = 0;
+        if (srcLength >= MF_LIMIT + 1) {
+            int limit = srcLength - MF_LIMIT;
+            int matchLimit = srcLength - LAST_LITERALS;
+            int sp = 0;
+            int misses = 1 << SKIP_STRENGTH;
+            while (sp < limit) {
+                int sequence = readIntLE(value, sp);
+                int h = hash(sequence);
+                // the table is not cleared between calls, stale entries are filtered out by the checks below
+                int ref = hashTable[h];
+                hashTable[h] = sp;
+                if (ref >= sp || sp - ref > MAX_DISTANCE || readIntLE(value, ref) != sequence) {
+                    sp += misses ++ >>> SKIP_STRENGTH;
+                    continue;
+                }
+                misses = 1 << SKIP_STRENGTH;
+
+                while (sp > anchor && ref > 0 && value[sp - 1] == value[ref - 1]) {
+                    sp --;
+                    ref --;
+                }
+                int matchLength = MIN_MATCH;
+                while (sp + matchLength < matchLimit && value[sp + matchLength] == value[ref + matchLength]) {
+                    matchLength ++;
+                }
+
+                dp = writeSequence(value, anchor, sp - anchor, sp - ref, matchLength - MIN_MATCH, dst, dp);
+                sp += matchLength;
+                anchor = sp;
+                if (sp < limit) {
+                    hashTable[hash(readIntLE(value, sp - 2))] = sp - 2;
+                }
+            }
+        }
+
+        return writeLastLiterals(value, anchor, srcLength - anchor, dst, dp);
+    }
+
+    /**
+     * Decompresses the frame of {@code length} bytes stored in {@code src}.
+     */
+    static byte[] decompress(byte[] src, int length) {
+        int originalLength = readIntLE(src, 0);
+        byte[] dst = new byte[originalLength];
+        int sp = FRAME_HEADER_SIZE;
+        int dp = 0;
+        for (;;) {
+            int token = src[sp ++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if (literalLength == RUN_MASK) {
+                int b;
+                do {
+                    b = src[sp ++] & 0xFF;
+                    literalLength += b;
+                } while (b == 0xFF);
+            }
+            System.arraycopy(src, sp, dst, dp, literalLength);
+            sp += literalLength;
+            dp += literalLength;
+            if (sp >= length) {
+                break;
+            }
+
+            int offset = src[sp] & 0xFF | (src[sp + 1] & 0xFF) << 8;
+            sp += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    b = src[sp ++] & 0xFF;
+                    matchLength += b;
+                } while (b == 0xFF);
+            }
+            matchLength += MIN_MATCH;
+
+            int ref = dp - offset;
+            if (offset == 0 || ref < 0) {
+                throw new IllegalArgumentException("corrupted frame: offset " + offset + " at " + dp);
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, dp, matchLength);
+            } else {
+                // overlapping match, repeats the last offset bytes
+                for (int i = 0; i < matchLength; i ++) {
+                    dst[dp + i] = dst[ref + i];
+                }
+            }
+            dp += matchLength;
+        }
+
+        if (dp != originalLength) {
+            throw new IllegalArgumentException(
+                    "corrupted frame: " + dp + " bytes decompressed (expected: " + originalLength + ')');
+        }
+        return dst;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset,
+                                     int matchLengthExtra, byte[] dst, int dp) {
+        int tokenPos = dp ++;
+        int token;
+        if (literalLength >= RUN_MASK) {
+            token = RUN_MASK << 4;
+            dp = writeLength(literalLength - RUN_MASK, dst, dp);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dst, dp, literalLength);
+        dp += literalLength;
+
+        dst[dp ++] = (byte) offset;
+        dst[dp ++] = (byte) (offset >>> 8);
+
+        if (matchLengthExtra >= RUN_MASK) {
+            token |= RUN_MASK;
+            dp = writeLength(matchLengthExtra - RUN_MASK, dst, dp);
+        } else {
+            token |= matchLengthExtra;
+        }
+        dst[tokenPos] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalStart, int literalLength, byte[] dst, int dp) {
+        if (literalLength >= RUN_MASK) {
+            dst[dp ++] = (byte) (RUN_MASK << 4);
+            dp = writeLength(literalLength - RUN_MASK, dst, dp);
+        } else {
+            dst[dp ++] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, literalStart, dst, dp, literalLength);
+        return dp + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dst, int dp) {
+        while (length >= 0xFF) {
+            dst[dp ++] = (byte) 0xFF;
+            length -= 0xFF;
+        }
+        dst[dp ++] = (byte) length;
+        return dp;
+    }
+
+    private static int hash(int sequence) {
+        return sequence * -1640531535 >>> 32 - HASH_LOG;
+    }
+
+    private static int readIntLE(byte[] b, int i) {
+        return b[i] & 0xFF | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    private static void writeIntLE(byte[] b, int i, int value) {
+        b[i] = (byte) value;
+        b[i + 1] = (byte) (value >>> 8);
+        b[i + 2] = (byte) (value >>> 16);
+        b[i + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * Per-thread working memory of the codec.
+     */
+    static final class Scratch {
+        final int[] hashTable = new int[1 << HASH_LOG];
+        private byte[] buffer = new byte[4096];
+
+        /**
+         * Returns a buffer of at least {@code capacity} bytes. The same buffer is returned by the next call, so the
+         * caller must be done with it by then.
+         */
+        byte[] buffer(int capacity) {
+            if (buffer.length >= capacity) {
+                return buffer;
+            }
+            byte[] newBuffer = new byte[capacity];
+            if (capacity <= MAX_RETAINED_SCRATCH) {
+                buffer = newBuffer;
+            }
+            return newBuffer;
+        }
+    }
+
+    private Lz4Codec() {
+    }
+}
@@ -1,28 +1,37 @@
 package info.jerrinot.hazelcast;
 
-import com.hazelcast.nio.serialization.ClassDefinition;
 import com.hazelcast.storage.DataRef;
 import info.jerrinot.nettyloc.ByteBuf;
+import info.jerrinot.nettyloc.PlatformDependent;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
 
 public class NettyDataRef implements DataRef {
-    private static final int SIZE = 10; //TODO: Replace dummy values
-    private static final int HEAP_COST = 20;; //TODO: Replace dummy values
+    private static final int HEAP_COST = PlatformDependent.shallowSize(NettyDataRef.class)
+            + PooledByteBufAllocator.directBufferHeapCost();
 
     private ByteBuf byteBuf;
     private int type;
-    private ClassDefinition classDefinition;
+    private int classDefinitionId;
+    private boolean compressed;
 
-    public NettyDataRef(ByteBuf byteBuf, int type, ClassDefinition classDefinition) {
+    public NettyDataRef(ByteBuf byteBuf, int type, int classDefinitionId, boolean compressed) {
         this.byteBuf = byteBuf;
         this.type = type;
-        this.classDefinition = classDefinition;
+        this.classDefinitionId = classDefinitionId;
+        this.compressed = compressed;
     }
 
+    /**
+     * Returns the off-heap bytes taken by the entry, i.e. the size class its buffer was allocated from.
+     */
     @Override
     public int size() {
-        return SIZE;
+        return PooledByteBufAllocator.allocatedCapacity(byteBuf);
     }
 
+    /**
+     * Returns the heap footprint of this reference and the {@link ByteBuf} it holds.
+     */
     @Override
     public int heapCost() {
         return HEAP_COST;
@@ -36,7 +45,14 @@ public class NettyDataRef implements DataRef {
         return byteBuf;
     }
 
-    public ClassDefinition getClassDefinition() {
-        return classDefinition;
+    public int getClassDefinitionId() {
+        return classDefinitionId;
+    }
+
+    /**
+     * Returns {@code true} if the buffer holds a compressed frame rather than the serialized value.
+     */
+    public boolean isCompressed() {
+        return compressed;
     }
 }
@@ -1,14 +1,68 @@
 package info.jerrinot.hazelcast;
 
 import com.hazelcast.instance.DefaultNodeInitializer;
+import com.hazelcast.instance.GroupProperties;
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
 import com.hazelcast.storage.DataRef;
 import com.hazelcast.storage.Storage;
 
 public class NettyNodeInitializer extends DefaultNodeInitializer {
+    private static final ILogger LOGGER = Logger.getLogger(NettyNodeInitializer.class);
+
+    private final ClassDefinitionRegistry classDefinitions = new ClassDefinitionRegistry();
+    // Hazelcast asks for a storage once per map and never destroys it, so all maps of the node share one storage
+    // with a single allocator, which lives as long as the node. null until the first map asks for it.
+    private NettyStorage storage;
 
     @Override
-    public Storage<DataRef> getOffHeapStorage() {
-        return new NettyStorage();
+    public synchronized Storage<DataRef> getOffHeapStorage() {
+        if (storage == null) {
+            NettyStorageConfig config = newStorageConfig();
+            storage = new NettyStorage(config, classDefinitions);
+            if (config.getCapacity() > 0) {
+                // the storage cannot tell which record holds an entry, so only the embedder can evict it
+                LOGGER.warning(NettyStorageConfig.PROP_CAPACITY + " is set, but the node does not evict entries. "
+                        + "The storage stays unbounded until an EvictionListener is set with "
+                        + "NettyStorage.setEvictionListener");
+            }
+        }
+        return storage;
     }
-}
 
+    /**
+     * Frees the memory of the storage of the node. Called when the node shuts down, after its operations stopped.
+     */
+    @Override
+    public void destroy() {
+        NettyStorage storage;
+        synchronized (this) {
+            storage = this.storage;
+            this.storage = null;
+        }
+        if (storage != null) {
+            storage.close();
+        }
+        super.destroy();
+    }
+
+    private NettyStorageConfig newStorageConfig() {
+        NettyStorageConfig config = new NettyStorageConfig();
+        if (node != null) {
+            if (config.getName() == null) {
+                config.setName(node.getName());
+            }
+            GroupProperties groupProperties = node.getGroupProperties();
+            config.setPartitionCount(groupProperties.PARTITION_COUNT.getInteger());
+            if (config.getStripeCount() == 0) {
+                // Same default as OperationServiceImpl uses for the partition thread count
+                int operationThreadCount = groupProperties.OPERATION_THREAD_COUNT.getInteger();
+                if (operationThreadCount <= 0) {
+                    operationThreadCount = Runtime.getRuntime().availableProcessors() * 2;
+                }
+                config.setStripeCount(operationThreadCount);
+            }
+        }
+        return config;
+    }
+}
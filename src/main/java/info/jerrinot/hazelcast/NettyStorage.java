@@ -1,40 +1,444 @@
 package info.jerrinot.hazelcast;
 
-import com.hazelcast.nio.serialization.ClassDefinition;
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
 import com.hazelcast.nio.serialization.ClassDefinitionSetter;
 import com.hazelcast.nio.serialization.Data;
 import com.hazelcast.storage.DataRef;
 import com.hazelcast.storage.Storage;
 import info.jerrinot.nettyloc.ByteBuf;
+import info.jerrinot.nettyloc.OffHeapQuotaExceededException;
+import info.jerrinot.nettyloc.PlatformDependent;
+import info.jerrinot.nettyloc.PoolArenaMetric;
 import info.jerrinot.nettyloc.PooledByteBufAllocator;
 
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 public class NettyStorage implements Storage<DataRef> {
-    private PooledByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    private static final ILogger LOGGER = Logger.getLogger(NettyStorage.class);
+
+    private final PooledByteBufAllocator allocator;
+    private final ClassDefinitionRegistry classDefinitions;
+    private final boolean striped;
+    private final boolean compact;
+    private final int partitionCount;
+    // -1 if compression is disabled
+    private final int compressionThreshold;
+    private final StorageCounters counters;
+    // null unless deduplication is enabled
+    private final DedupTable dedupTable;
+    // null unless a capacity is configured
+    private final ClockEvictor evictor;
+    private final boolean checksum;
+    private final int checksumVerifyRate;
+    // null unless checksums are enabled
+    private final ChecksumScrubber scrubber;
+    // null if JMX is disabled or the storage has been unregistered
+    private volatile ObjectName mbeanName;
+
+    public NettyStorage() {
+        this(new NettyStorageConfig(), new ClassDefinitionRegistry());
+    }
+
+    public NettyStorage(NettyStorageConfig config, ClassDefinitionRegistry classDefinitions) {
+        this(config, classDefinitions, newAllocator(config));
+    }
+
+    /**
+     * Creates a storage on the {@code allocator}, which must not be used by anything else.
+     */
+    NettyStorage(NettyStorageConfig config, ClassDefinitionRegistry classDefinitions,
+                 PooledByteBufAllocator allocator) {
+        this.classDefinitions = classDefinitions;
+        this.allocator = allocator;
+        striped = config.isStriped();
+        compact = config.isCompact() && PlatformDependent.hasUnsafe();
+        partitionCount = config.getPartitionCount();
+        compressionThreshold = config.isCompression() ? config.getCompressionThreshold() : -1;
+        int stripeCount = stripeCount(config);
+        counters = new StorageCounters(stripeCount);
+        if (!compact && !allocator.supportsBuffers()) {
+            throw new IllegalArgumentException("chunks larger than 1 GiB need the compact mode");
+        }
+        if (config.getQuota() > 0) {
+            allocator.setMemoryQuota(config.getQuota(), config.getQuotaWaitMillis());
+        }
+        if (config.getReservedChunks() > 0) {
+            reserveChunks(config.getReservedChunks());
+        }
+        if (config.isDedup() && !compact && PlatformDependent.hasUnsafe()) {
+            dedupTable = new DedupTable(allocator, stripeCount);
+        } else {
+            dedupTable = null;
+        }
+        if (config.getCapacity() > 0) {
+            if (!compact) {
+                throw new IllegalArgumentException("capacity needs the compact mode");
+            }
+            int high = config.getEvictionHighWatermark();
+            int low = config.getEvictionLowWatermark();
+            if (low > high) {
+                throw new IllegalArgumentException(
+                        "evictionLowWatermark: " + low + " (expected: <= evictionHighWatermark " + high + ')');
+            }
+            evictor = new ClockEvictor(this, allocator, counters,
+                    config.getCapacity() * high / 100, config.getCapacity() * low / 100);
+        } else {
+            evictor = null;
+        }
+        checksum = config.isChecksum();
+        checksumVerifyRate = config.getChecksumVerifyRate();
+        if (checksum) {
+            if (!compact) {
+                throw new IllegalArgumentException("checksum needs the compact mode");
+            }
+            scrubber = new ChecksumScrubber(this, allocator);
+            if (config.getScrubIntervalMillis() > 0) {
+                scrubber.start(config.getScrubIntervalMillis());
+            }
+        } else {
+            scrubber = null;
+        }
+        if (config.isJmx()) {
+            mbeanName = StorageMBean.register(this, allocator, config.getName());
+        }
+    }
+
+    private static int stripeCount(NettyStorageConfig config) {
+        int stripeCount = config.getStripeCount();
+        return stripeCount == 0 ? Runtime.getRuntime().availableProcessors() * 2 : stripeCount;
+    }
+
+    private static PooledByteBufAllocator newAllocator(NettyStorageConfig config) {
+        // Every storage owns its allocator, so destroy() can release whole chunks without affecting other storages.
+        if (config.getMappedDirectory() != null) {
+            int numArenas = config.isStriped() ? stripeCount(config) : Runtime.getRuntime().availableProcessors();
+            return new PooledByteBufAllocator(
+                    numArenas, new File(config.getMappedDirectory()), config.isMappedPreFault());
+        } else if (config.isStriped()) {
+            return new PooledByteBufAllocator(stripeCount(config));
+        }
+        return new PooledByteBufAllocator();
+    }
 
+    private void reserveChunks(int chunksPerArena) {
+        long nanos = allocator.reserveChunks(chunksPerArena);
+        LOGGER.info("Reserved " + chunksPerArena + " chunk(s) in each of " + allocator.numDirectArenas() +
+                " arena(s), " + allocator.usedMemory() + " bytes in total, in " +
+                TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+    }
 
+    /**
+     * Stores a copy of the data.
+     *
+     * @throws OffHeapQuotaExceededException if the entry needs more memory than the quota of this storage leaves,
+     *                                       in which case nothing is stored
+     */
     @Override
     public DataRef put(int hash, Data data) {
-        byte[] buffer = data.getBuffer();
-        ByteBuf byteBuf = allocator.directBuffer(buffer.length);
-        byteBuf.writeBytes(buffer);
-        ClassDefinition classDefinition = data.getClassDefinition();
+        int partitionId = partitionId(hash);
+        int type = data.getType();
+        int classDefinitionId = classDefinitions.register(data.getClassDefinition());
+        byte[] value = data.getBuffer();
+        byte[] payload = value;
+        int length = value.length;
+        boolean compressed = false;
+        if (compressionThreshold >= 0 && value.length >= compressionThreshold) {
+            byte[] frame = Lz4Codec.scratch().buffer(Lz4Codec.maxCompressedLength(value.length));
+            int frameLength = compress(partitionId, value, frame);
+            // incompressible values are stored as they are
+            if (frameLength < value.length) {
+                payload = frame;
+                length = frameLength;
+                compressed = true;
+            }
+        }
+
+        DataRef ref;
+        if (compact) {
+            checkCompactEntry(length, classDefinitionId);
+            int flags = compressed ? EntryHeader.FLAG_COMPRESSED : 0;
+            int checksum = 0;
+            if (this.checksum) {
+                checksum = checksum(partitionId, payload, length);
+                flags |= EntryHeader.FLAG_CHECKSUM;
+            }
+            long handle = allocateHandle(hash, compactEntrySize(length, flags));
+            ref = writeCompact(handle, hash, type, payload, length, flags, classDefinitionId, checksum);
+        } else if (dedupTable != null) {
+            return putShared(hash, type, payload, length, compressed, classDefinitionId);
+        } else {
+            ByteBuf byteBuf = allocate(hash, length);
+            byteBuf.writeBytes(payload, 0, length);
+            ref = new NettyDataRef(byteBuf, type, classDefinitionId, compressed);
+        }
+        counters.added(partitionId, ref.size(), ref.heapCost());
+        if (evictor != null) {
+            evictor.afterPut(1);
+        }
+        return ref;
+    }
+
+    /**
+     * Stores copies of {@code values} with the {@code hashes} at the same indices and returns their references in
+     * the same order. In the compact mode the memory of all entries is allocated at once, so every arena is locked
+     * once per batch instead of once per entry, and the payloads are then copied into place one after another.
+     * In the other modes this is the same as calling {@link #put(int, Data)} for every entry.
+     *
+     * @throws OffHeapQuotaExceededException if the entries need more memory than the quota of this storage leaves,
+     *                                       in which case none of them is stored
+     */
+    public DataRef[] putAll(int[] hashes, Data[] values) {
+        int n = checkBatch(hashes, values.length);
+        DataRef[] refs = new DataRef[n];
+        if (!compact) {
+            int i = 0;
+            try {
+                for (; i < n; i ++) {
+                    refs[i] = put(hashes[i], values[i]);
+                }
+            } catch (RuntimeException e) {
+                for (int j = 0; j < i; j ++) {
+                    remove(hashes[j], refs[j]);
+                }
+                throw e;
+            }
+            return refs;
+        }
+        if (n == 0) {
+            return refs;
+        }
 
-        return new NettyDataRef(byteBuf, data.getType(), classDefinition);
+        int[] partitionIds = new int[n];
+        byte[][] payloads = new byte[n][];
+        int[] lengths = new int[n];
+        int[] flags = new int[n];
+        int[] classDefinitionIds = new int[n];
+        int[] checksums = new int[n];
+        int[] sizes = new int[n];
+        for (int i = 0; i < n; i ++) {
+            int partitionId = partitionId(hashes[i]);
+            int classDefinitionId = classDefinitions.register(values[i].getClassDefinition());
+            byte[] value = values[i].getBuffer();
+            byte[] payload = value;
+            int length = value.length;
+            int entryFlags = 0;
+            if (compressionThreshold >= 0 && value.length >= compressionThreshold) {
+                byte[] frame = Lz4Codec.scratch().buffer(Lz4Codec.maxCompressedLength(value.length));
+                int frameLength = compress(partitionId, value, frame);
+                if (frameLength < value.length) {
+                    // the frame is overwritten by the next value
+                    payload = Arrays.copyOf(frame, frameLength);
+                    length = frameLength;
+                    entryFlags = EntryHeader.FLAG_COMPRESSED;
+                }
+            }
+            checkCompactEntry(length, classDefinitionId);
+            if (checksum) {
+                checksums[i] = checksum(partitionId, payload, length);
+                entryFlags |= EntryHeader.FLAG_CHECKSUM;
+            }
+            partitionIds[i] = partitionId;
+            payloads[i] = payload;
+            lengths[i] = length;
+            flags[i] = entryFlags;
+            classDefinitionIds[i] = classDefinitionId;
+            sizes[i] = compactEntrySize(length, entryFlags);
+        }
+
+        long[] handles = new long[n];
+        allocator.allocateHandles(sizes, striped ? partitionIds : null, handles, n);
+        long offHeapBytes = 0;
+        long heapCost = 0;
+        for (int i = 0; i < n; i ++) {
+            DataRef ref = writeCompact(handles[i], hashes[i], values[i].getType(), payloads[i], lengths[i], flags[i],
+                    classDefinitionIds[i], checksums[i]);
+            offHeapBytes += ref.size();
+            heapCost += ref.heapCost();
+            refs[i] = ref;
+        }
+        counters.addedAll(partitionIds[0], n, offHeapBytes, heapCost);
+        if (evictor != null) {
+            evictor.afterPut(n);
+        }
+        return refs;
+    }
+
+    private static int checkBatch(int[] hashes, int length) {
+        if (hashes.length != length) {
+            throw new IllegalArgumentException("hashes.length: " + hashes.length + " (expected: " + length + ')');
+        }
+        return length;
+    }
+
+    /**
+     * Compresses the {@code value} into the {@code frame} and returns the length of the frame, which is not less
+     * than the length of the value if the value is incompressible.
+     */
+    private int compress(int partitionId, byte[] value, byte[] frame) {
+        long start = System.nanoTime();
+        int frameLength = Lz4Codec.compress(value, frame, Lz4Codec.scratch().hashTable);
+        counters.compressed(
+                partitionId, value.length, Math.min(frameLength, value.length), System.nanoTime() - start);
+        return frameLength;
+    }
+
+    private int checksum(int partitionId, byte[] payload, int length) {
+        long start = System.nanoTime();
+        int checksum = Crc32c.checksum(payload, 0, length);
+        counters.checksummed(partitionId, System.nanoTime() - start);
+        return checksum;
+    }
+
+    private DataRef putShared(int hash, int type, byte[] payload, int length, boolean compressed,
+                              int classDefinitionId) {
+        int partitionId = partitionId(hash);
+        long fingerprint = DedupTable.fingerprint(payload, length, type, classDefinitionId, compressed);
+        SharedDataRef ref = dedupTable.acquire(fingerprint, payload, length, type, classDefinitionId, compressed);
+        if (ref != null) {
+            counters.deduplicated(partitionId, ref.size());
+            return ref;
+        }
+        counters.dedupMissed(partitionId);
+
+        ByteBuf byteBuf = allocate(hash, length);
+        byteBuf.writeBytes(payload, 0, length);
+        ref = new SharedDataRef(byteBuf, type, classDefinitionId, compressed, fingerprint);
+        try {
+            dedupTable.add(ref);
+        } catch (OffHeapQuotaExceededException e) {
+            // growing the table failed, the entry must not outlive the put
+            byteBuf.release();
+            throw e;
+        }
+        counters.added(partitionId, ref.size(), ref.heapCost());
+        return ref;
+    }
+
+    private static void checkCompactEntry(int length, int classDefinitionId) {
+        if (length > EntryHeader.MAX_LENGTH) {
+            throw new IllegalArgumentException(
+                    "value length: " + length + " (expected: <= " + EntryHeader.MAX_LENGTH + " in compact mode)");
+        }
+        if (classDefinitionId > EntryHeader.MAX_CLASS_DEFINITION_ID) {
+            throw new IllegalStateException("too many class definitions (expected: <= "
+                    + (EntryHeader.MAX_CLASS_DEFINITION_ID + 1) + " in compact mode)");
+        }
+    }
+
+    private static int compactEntrySize(int length, int flags) {
+        return EntryHeader.SIZE + length + ((flags & EntryHeader.FLAG_CHECKSUM) != 0 ? EntryHeader.CHECKSUM_SIZE : 0);
+    }
+
+    private CompactDataRef writeCompact(long handle, int hash, int type, byte[] payload, int length, int flags,
+                                        int classDefinitionId, int checksum) {
+        long address = allocator.handleAddress(handle);
+        EntryHeader.write(address, type, hash, classDefinitionId);
+        PlatformDependent.copyMemory(payload, 0, EntryHeader.payloadAddress(address), length);
+        if ((flags & EntryHeader.FLAG_CHECKSUM) != 0) {
+            EntryHeader.putChecksum(address, length, checksum);
+        }
+        EntryHeader.commit(address, length, flags);
+        return new CompactDataRef(handle, allocator.handleCapacity(handle));
+    }
+
+    /**
+     * Stores a batch of entries read by {@link StorageSnapshot#restore}. Like {@link #putAll(int[], Data[])} it
+     * allocates the memory of all entries at once and then copies them into place.
+     *
+     * @param address the address of copies of the entries, including their headers
+     * @param offsets the offset of every entry from the {@code address}
+     * @param refs receives the reference of every entry at the index of its offset
+     * @param classDefinitionIds the current ids of the class definitions by their id in the snapshot
+     * @throws OffHeapQuotaExceededException if the entries need more memory than the quota of this storage leaves,
+     *                                       in which case none of them is stored
+     */
+    void restoreEntries(long address, int[] offsets, CompactDataRef[] refs, int n, int[] classDefinitionIds) {
+        int[] sizes = new int[n];
+        int[] partitionIds = new int[n];
+        for (int i = 0; i < n; i ++) {
+            long src = address + offsets[i];
+            sizes[i] = EntryHeader.entrySize(EntryHeader.lengthWord(src));
+            partitionIds[i] = partitionId(EntryHeader.hash(src));
+        }
+        long[] handles = new long[n];
+        allocator.allocateHandles(sizes, striped ? partitionIds : null, handles, n);
+
+        long offHeapBytes = 0;
+        long heapCost = 0;
+        for (int i = 0; i < n; i ++) {
+            long src = address + offsets[i];
+            int lengthWord = EntryHeader.lengthWord(src);
+            int classDefinitionId = EntryHeader.classDefinitionId(src);
+            if (classDefinitionId != ClassDefinitionRegistry.NO_CLASS_DEFINITION) {
+                classDefinitionId = classDefinitionIds[classDefinitionId];
+            }
+            long handle = handles[i];
+            long dst = allocator.handleAddress(handle);
+            EntryHeader.write(dst, EntryHeader.type(src), EntryHeader.hash(src), classDefinitionId);
+            // the checksum, if any, follows the payload
+            PlatformDependent.copyMemory(
+                    EntryHeader.payloadAddress(src), EntryHeader.payloadAddress(dst), sizes[i] - EntryHeader.SIZE);
+            EntryHeader.commit(dst, EntryHeader.length(lengthWord), EntryHeader.flags(lengthWord));
+            CompactDataRef ref = new CompactDataRef(handle, allocator.handleCapacity(handle));
+            offHeapBytes += ref.size();
+            heapCost += ref.heapCost();
+            refs[i] = ref;
+        }
+        counters.addedAll(partitionIds[0], n, offHeapBytes, heapCost);
+    }
+
+    private ByteBuf allocate(int hash, int capacity) {
+        if (striped) {
+            // Partition threads own partitionId % threadCount, so stripes aligned with partitions
+            // give each partition thread arenas no other partition thread allocates from.
+            return allocator.directBuffer(capacity, partitionId(hash));
+        }
+        return allocator.directBuffer(capacity);
+    }
+
+    private long allocateHandle(int hash, int capacity) {
+        if (striped) {
+            return allocator.allocateHandle(capacity, partitionId(hash));
+        }
+        return allocator.allocateHandle(capacity);
+    }
+
+    int partitionId(int hash) {
+        // Same mapping as PartitionServiceImpl.getPartitionId(Data)
+        return hash == Integer.MIN_VALUE ? 0 : Math.abs(hash) % partitionCount;
     }
 
     @Override
     public Data get(int hash, DataRef ref) {
+        if (ref instanceof CompactDataRef) {
+            return getCompact(hash, (CompactDataRef) ref);
+        }
+
         NettyDataRef nettyDataRef = (NettyDataRef) ref;
         ByteBuf byteBuf = null;
         try {
-            byteBuf = nettyDataRef.getByteBuf();
+            byteBuf = checkNotDestroyed(nettyDataRef.getByteBuf());
             byteBuf.retain();
 
             int type = nettyDataRef.getType();
-            byte[] buffer = new byte[byteBuf.capacity()];
-            byteBuf.readBytes(buffer);
+            int length = byteBuf.capacity();
+            byte[] buffer;
+            if (nettyDataRef.isCompressed()) {
+                byte[] frame = Lz4Codec.scratch().buffer(length);
+                byteBuf.getBytes(0, frame, 0, length);
+                buffer = decompress(hash, frame, length);
+            } else {
+                buffer = new byte[length];
+                byteBuf.getBytes(0, buffer);
+            }
             Data data = new Data(type, buffer);
-            ClassDefinitionSetter.setClassDefinition(nettyDataRef.getClassDefinition(), data);
+            ClassDefinitionSetter.setClassDefinition(classDefinitions.get(nettyDataRef.getClassDefinitionId()), data);
             return data;
         } finally {
             if (byteBuf != null) {
@@ -43,14 +447,402 @@ public class NettyStorage implements Storage<DataRef> {
         }
     }
 
+    private Data getCompact(int hash, CompactDataRef ref) {
+        long address = allocator.handleAddress(ref.getHandle());
+        int lengthWord = EntryHeader.lengthWord(address);
+        // a corrupted length would copy past the allocation
+        if (!EntryHeader.isCommitted(lengthWord) || EntryHeader.entrySize(lengthWord) > ref.size()) {
+            throw new CorruptedEntryException("invalid header of the entry with hash " + hash);
+        }
+        int length = EntryHeader.length(lengthWord);
+        boolean compressed = (lengthWord & EntryHeader.FLAG_COMPRESSED) != 0;
+        byte[] payload = compressed ? Lz4Codec.scratch().buffer(length) : new byte[length];
+        PlatformDependent.copyMemory(EntryHeader.payloadAddress(address), payload, 0, length);
+        if (EntryHeader.hasChecksum(lengthWord) && checksumVerifyRate > 0
+                && (checksumVerifyRate == 100 || Crc32c.state().sample(checksumVerifyRate))
+                && !verifyChecksum(hash, payload, length, EntryHeader.checksum(address, length))) {
+            throw new CorruptedEntryException("checksum mismatch of the entry with hash " + hash);
+        }
+        byte[] buffer = compressed ? decompress(hash, payload, length) : payload;
+        Data data = new Data(EntryHeader.type(address), buffer);
+        ClassDefinitionSetter.setClassDefinition(classDefinitions.get(EntryHeader.classDefinitionId(address)), data);
+        if (evictor != null) {
+            EntryHeader.markReferenced(address);
+        }
+        return data;
+    }
+
+    /**
+     * Checks a copy of the payload of an entry against the checksum stored with it.
+     */
+    boolean verifyChecksum(int hash, byte[] payload, int length, int checksum) {
+        long start = System.nanoTime();
+        boolean failed = Crc32c.checksum(payload, 0, length) != checksum;
+        counters.verified(partitionId(hash), System.nanoTime() - start, failed);
+        return !failed;
+    }
+
+    private byte[] decompress(int hash, byte[] frame, int length) {
+        long start = System.nanoTime();
+        byte[] value = Lz4Codec.decompress(frame, length);
+        counters.decompressed(partitionId(hash), System.nanoTime() - start);
+        return value;
+    }
+
     @Override
     public void remove(int hash, DataRef ref) {
+        if (ref instanceof CompactDataRef) {
+            long handle = ((CompactDataRef) ref).getHandle();
+            // rejects the handle if the entry was released by destroy()
+            EntryHeader.clear(allocator.handleAddress(handle));
+            allocator.freeHandle(handle);
+            counters.removed(partitionId(hash), ref.size(), ref.heapCost());
+            return;
+        }
+
         NettyDataRef nettyDataRef = (NettyDataRef) ref;
-        nettyDataRef.getByteBuf().release();
+        ByteBuf byteBuf = checkNotDestroyed(nettyDataRef.getByteBuf());
+        // size() reads the buffer, which may be recycled once released
+        int size = ref.size();
+        if (ref instanceof SharedDataRef) {
+            if (dedupTable.release((SharedDataRef) ref)) {
+                counters.removed(partitionId(hash), size, ref.heapCost());
+            } else {
+                counters.unshared(partitionId(hash), size);
+            }
+            return;
+        }
+        counters.removed(partitionId(hash), size, ref.heapCost());
+        // The buffer returns to the arena of its chunk, which is the stripe it was allocated from.
+        byteBuf.release();
+    }
+
+    /**
+     * Returns copies of the entries with the {@code hashes} and {@code refs} at the same indices, in the same order.
+     * Reads take no locks, so this is the same as calling {@link #get(int, DataRef)} for every entry.
+     */
+    public Data[] getAll(int[] hashes, DataRef[] refs) {
+        int n = checkBatch(hashes, refs.length);
+        Data[] values = new Data[n];
+        for (int i = 0; i < n; i ++) {
+            values[i] = get(hashes[i], refs[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Removes the entries with the {@code hashes} and {@code refs} at the same indices. In the compact mode the
+     * memory of all entries is freed at once, so every arena is locked once per batch. In the other modes this is
+     * the same as calling {@link #remove(int, DataRef)} for every entry.
+     */
+    public void removeAll(int[] hashes, DataRef[] refs) {
+        int n = checkBatch(hashes, refs.length);
+        if (!compact) {
+            for (int i = 0; i < n; i ++) {
+                remove(hashes[i], refs[i]);
+            }
+            return;
+        }
+        if (n == 0) {
+            return;
+        }
+
+        long[] handles = new long[n];
+        long offHeapBytes = 0;
+        long heapCost = 0;
+        for (int i = 0; i < n; i ++) {
+            long handle = ((CompactDataRef) refs[i]).getHandle();
+            // rejects the handle if the entry was released by destroy()
+            EntryHeader.clear(allocator.handleAddress(handle));
+            handles[i] = handle;
+            offHeapBytes += refs[i].size();
+            heapCost += refs[i].heapCost();
+        }
+        allocator.freeHandles(handles, n);
+        counters.removedAll(partitionId(hashes[0]), n, offHeapBytes, heapCost);
+    }
+
+    private static ByteBuf checkNotDestroyed(ByteBuf byteBuf) {
+        if (PooledByteBufAllocator.isReleasedByAllocator(byteBuf)) {
+            throw new IllegalStateException("entry was released by destroy()");
+        }
+        return byteBuf;
+    }
+
+    /**
+     * Returns the number of entries in this storage.
+     */
+    public long entryCount() {
+        return counters.entries();
+    }
+
+    /**
+     * Returns the off-heap bytes taken by the entries of this storage, counting every entry with the size class
+     * it was allocated from.
+     */
+    public long offHeapBytes() {
+        return counters.offHeapBytes();
+    }
+
+    /**
+     * Returns the off-heap bytes of the chunks allocated for this storage, which is what the quota limits. It
+     * includes the free space within the chunks.
+     *
+     * @see NettyStorageConfig#setQuota(long)
+     */
+    public long chunkBytes() {
+        return allocator.usedMemory();
+    }
+
+    /**
+     * Returns the heap footprint of the references to the entries of this storage.
+     */
+    public long heapCost() {
+        return counters.heapCost();
+    }
+
+    /**
+     * Returns the statistics of the arenas of the allocator of this storage, which are read without locking.
+     */
+    public List<PoolArenaMetric> arenaMetrics() {
+        return allocator.arenaMetrics();
+    }
+
+    /**
+     * Returns the name of the {@link NettyStorageMXBean} of this storage, or {@code null} if it has none.
+     *
+     * @see NettyStorageConfig#setJmx(boolean)
+     */
+    public ObjectName getMBeanName() {
+        return mbeanName;
+    }
+
+    /**
+     * Removes the {@link NettyStorageMXBean} of this storage from the MBean server, which keeps the storage
+     * reachable otherwise. Call it when the storage is discarded.
+     */
+    public synchronized void unregisterMBean() {
+        ObjectName name = mbeanName;
+        if (name != null) {
+            mbeanName = null;
+            StorageMBean.unregister(name);
+        }
+    }
+
+    /**
+     * Returns the ratio of the serialized size to the stored size of the values which went through the compressor,
+     * or {@code 1} if no value did.
+     */
+    public double compressionRatio() {
+        long outputBytes = counters.compressionOutputBytes();
+        return outputBytes == 0 ? 1 : (double) counters.compressionInputBytes() / outputBytes;
+    }
+
+    /**
+     * Returns the time in nanoseconds spent compressing values, including values which were then stored
+     * uncompressed because they did not get smaller.
+     */
+    public long compressionNanos() {
+        return counters.compressionNanos();
+    }
+
+    /**
+     * Returns the time in nanoseconds spent decompressing values.
+     */
+    public long decompressionNanos() {
+        return counters.decompressionNanos();
+    }
+
+    /**
+     * Returns the number of puts which looked for an identical stored value.
+     */
+    public long dedupLookups() {
+        return counters.dedupLookups();
     }
 
+    /**
+     * Returns the number of puts which shared an identical stored value instead of allocating.
+     */
+    public long dedupHits() {
+        return counters.dedupHits();
+    }
+
+    /**
+     * Returns the fraction of lookups which found an identical stored value, or {@code 0} if there was none.
+     */
+    public double dedupHitRate() {
+        long lookups = counters.dedupLookups();
+        return lookups == 0 ? 0 : (double) counters.dedupHits() / lookups;
+    }
+
+    /**
+     * Returns the off-heap bytes the current entries would take on top of {@link #offHeapBytes()} if they did not
+     * share their values.
+     */
+    public long dedupBytesSaved() {
+        return counters.dedupBytesSaved();
+    }
+
+    /**
+     * Returns the number of entries handed to the eviction listener.
+     */
+    public long evictionCount() {
+        return counters.evictions();
+    }
+
+    /**
+     * Returns the off-heap bytes of the entries handed to the eviction listener.
+     */
+    public long evictedBytes() {
+        return counters.evictedBytes();
+    }
+
+    /**
+     * Returns the time in nanoseconds spent computing the checksums of new entries.
+     */
+    public long checksumNanos() {
+        return counters.checksumNanos();
+    }
+
+    /**
+     * Returns the number of checksums verified by reads and by the scrubber.
+     */
+    public long checksumVerifications() {
+        return counters.verifications();
+    }
+
+    /**
+     * Returns the time in nanoseconds spent verifying checksums, not counting the copies of the payloads which
+     * reads make anyway.
+     */
+    public long checksumVerificationNanos() {
+        return counters.verificationNanos();
+    }
+
+    /**
+     * Returns the number of verifications which found a corrupted entry. A corrupted entry is counted again every
+     * time it is verified.
+     */
+    public long checksumFailures() {
+        return counters.checksumFailures();
+    }
+
+    /**
+     * Verifies the checksums of the next {@code maxEntries} entries, continuing where the previous call stopped and
+     * starting over after the last entry. Runs concurrently with other operations, but not with
+     * {@link #destroy()}. Corrupted entries are logged.
+     *
+     * @return the number of corrupted entries found
+     * @see NettyStorageConfig#setScrubIntervalMillis(long)
+     */
+    public int scrub(int maxEntries) {
+        if (scrubber == null) {
+            throw new IllegalStateException("checksums are not enabled");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries: " + maxEntries + " (expected: > 0)");
+        }
+        return scrubber.scrub(maxEntries);
+    }
+
+    /**
+     * Sets the listener which evicts the entries picked once this storage exceeds the high watermark of its
+     * capacity. Without a listener the storage is not bounded.
+     *
+     * @see NettyStorageConfig#setCapacity(long)
+     */
+    public void setEvictionListener(EvictionListener listener) {
+        if (evictor == null) {
+            throw new IllegalStateException("no capacity configured");
+        }
+        evictor.setListener(listener);
+    }
+
+    /**
+     * Writes the entries of a storage kept in memory-mapped files back to the files. Does nothing if the storage
+     * uses direct memory.
+     *
+     * @see NettyStorageConfig#setMappedDirectory(String)
+     */
+    public void flush() {
+        allocator.flush();
+    }
+
+    /**
+     * Writes the entries of this storage to the {@code file} without stopping puts and removes. The memory is
+     * copied chunk by chunk into sequential regions of the file. The snapshot holds every entry which exists
+     * during the whole run and any subset of the entries put or removed meanwhile, never a partially written one.
+     * Only supported in the compact mode, where every entry carries its own metadata. Must not run concurrently
+     * with {@link #destroy()}.
+     *
+     * @return the number of entries written
+     * @see #restore(File, int, RestoreListener)
+     */
+    public long snapshot(File file) throws IOException {
+        checkCompact("snapshot");
+        return StorageSnapshot.write(file, allocator, classDefinitions);
+    }
+
+    /**
+     * Loads the entries of a snapshot written by {@link #snapshot(File)} into this storage. The regions of the
+     * file are read and copied into place by {@code nThreads} threads in parallel, including the caller. As the
+     * storage knows nothing about keys, the {@code listener} is told the hash and the new reference of every entry,
+     * from all of these threads. The checksums of entries stored with one are verified first; a mismatch fails the
+     * restore with an {@link IOException}.
+     *
+     * @return the number of entries restored
+     */
+    public long restore(File file, int nThreads, RestoreListener listener) throws IOException {
+        checkCompact("restore");
+        if (nThreads <= 0) {
+            throw new IllegalArgumentException("nThreads: " + nThreads + " (expected: > 0)");
+        }
+        return StorageSnapshot.restore(file, nThreads, this, classDefinitions, listener);
+    }
+
+    private void checkCompact(String operation) {
+        if (!compact) {
+            throw new UnsupportedOperationException(operation + " needs the compact mode");
+        }
+    }
+
+    /**
+     * Releases all entries at once by freeing the chunks of the allocator, without visiting the entries.
+     * References obtained before are invalid afterwards and are rejected by {@link #get(int, DataRef)} and
+     * {@link #remove(int, DataRef)}. The storage can be used for new entries again. Must not run concurrently
+     * with other operations on this storage.
+     */
     @Override
     public void destroy() {
-        throw new UnsupportedOperationException("Not implemented yet");
+        if (scrubber != null) {
+            // keeps the background scrubber off the chunks while they are released
+            synchronized (scrubber) {
+                release();
+            }
+        } else {
+            release();
+        }
+    }
+
+    /**
+     * Releases all entries like {@link #destroy()}, including the chunks the arenas reserve or retain, stops the
+     * background scrubber and unregisters the MBean. The storage must not be used afterwards.
+     *
+     * @see NettyNodeInitializer#destroy()
+     */
+    public void close() {
+        if (scrubber != null) {
+            scrubber.stop();
+        }
+        unregisterMBean();
+        destroy();
+    }
+
+    private void release() {
+        allocator.releaseAll();
+        if (dedupTable != null) {
+            dedupTable.clear();
+        }
+        counters.reset();
     }
 }
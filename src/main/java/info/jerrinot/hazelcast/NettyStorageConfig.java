@@ -0,0 +1,368 @@
+package info.jerrinot.hazelcast;
+
+import info.jerrinot.nettyloc.SystemPropertyUtil;
+
+/**
+ * Configuration of a {@link NettyStorage}. Defaults are read from system properties so the storage
+ * can be tuned without code changes when it is created by {@link NettyNodeInitializer}.
+ */
+public class NettyStorageConfig {
+    public static final String PROP_STRIPED = "hugecast.storage.striped";
+    public static final String PROP_STRIPE_COUNT = "hugecast.storage.stripeCount";
+    public static final String PROP_COMPACT = "hugecast.storage.compact";
+    public static final String PROP_COMPRESSION = "hugecast.storage.compression";
+    public static final String PROP_COMPRESSION_THRESHOLD = "hugecast.storage.compressionThreshold";
+    public static final String PROP_DEDUP = "hugecast.storage.dedup";
+    public static final String PROP_MAPPED_DIRECTORY = "hugecast.storage.mappedDirectory";
+    public static final String PROP_MAPPED_PRE_FAULT = "hugecast.storage.mappedPreFault";
+    public static final String PROP_CAPACITY = "hugecast.storage.capacity";
+    public static final String PROP_EVICTION_HIGH_WATERMARK = "hugecast.storage.evictionHighWatermark";
+    public static final String PROP_EVICTION_LOW_WATERMARK = "hugecast.storage.evictionLowWatermark";
+    public static final String PROP_QUOTA = "hugecast.storage.quota";
+    public static final String PROP_QUOTA_WAIT_MILLIS = "hugecast.storage.quotaWaitMillis";
+    public static final String PROP_RESERVED_CHUNKS = "hugecast.storage.reservedChunks";
+    public static final String PROP_CHECKSUM = "hugecast.storage.checksum";
+    public static final String PROP_CHECKSUM_VERIFY_RATE = "hugecast.storage.checksumVerifyRate";
+    public static final String PROP_SCRUB_INTERVAL_MILLIS = "hugecast.storage.scrubIntervalMillis";
+    public static final String PROP_JMX = "hugecast.storage.jmx";
+    public static final String PROP_NAME = "hugecast.storage.name";
+
+    public static final int DEFAULT_PARTITION_COUNT = 271;
+
+    private boolean striped;
+    private int stripeCount;
+    private int partitionCount;
+    private boolean compact;
+    private boolean compression;
+    private int compressionThreshold;
+    private boolean dedup;
+    private String mappedDirectory;
+    private boolean mappedPreFault;
+    private long capacity;
+    private int evictionHighWatermark;
+    private int evictionLowWatermark;
+    private long quota;
+    private long quotaWaitMillis;
+    private int reservedChunks;
+    private boolean checksum;
+    private int checksumVerifyRate;
+    private long scrubIntervalMillis;
+    private boolean jmx;
+    private String name;
+
+    /**
+     * Creates a configuration with the defaults read from the system properties. The defaults go through the
+     * setters, so an invalid property fails here just like the same value passed to the setter.
+     */
+    public NettyStorageConfig() {
+        setStriped(SystemPropertyUtil.getBoolean(PROP_STRIPED, false));
+        setStripeCount(SystemPropertyUtil.getInt(PROP_STRIPE_COUNT, 0));
+        setPartitionCount(DEFAULT_PARTITION_COUNT);
+        setCompact(SystemPropertyUtil.getBoolean(PROP_COMPACT, false));
+        setCompression(SystemPropertyUtil.getBoolean(PROP_COMPRESSION, false));
+        setCompressionThreshold(SystemPropertyUtil.getInt(PROP_COMPRESSION_THRESHOLD, 256));
+        setDedup(SystemPropertyUtil.getBoolean(PROP_DEDUP, false));
+        setMappedDirectory(SystemPropertyUtil.get(PROP_MAPPED_DIRECTORY));
+        setMappedPreFault(SystemPropertyUtil.getBoolean(PROP_MAPPED_PRE_FAULT, false));
+        setCapacity(SystemPropertyUtil.getLong(PROP_CAPACITY, 0));
+        setEvictionHighWatermark(SystemPropertyUtil.getInt(PROP_EVICTION_HIGH_WATERMARK, 95));
+        setEvictionLowWatermark(SystemPropertyUtil.getInt(PROP_EVICTION_LOW_WATERMARK, 85));
+        setQuota(SystemPropertyUtil.getLong(PROP_QUOTA, 0));
+        setQuotaWaitMillis(SystemPropertyUtil.getLong(PROP_QUOTA_WAIT_MILLIS, 0));
+        setReservedChunks(SystemPropertyUtil.getInt(PROP_RESERVED_CHUNKS, 0));
+        setChecksum(SystemPropertyUtil.getBoolean(PROP_CHECKSUM, false));
+        setChecksumVerifyRate(SystemPropertyUtil.getInt(PROP_CHECKSUM_VERIFY_RATE, 100));
+        setScrubIntervalMillis(SystemPropertyUtil.getLong(PROP_SCRUB_INTERVAL_MILLIS, 0));
+        setJmx(SystemPropertyUtil.getBoolean(PROP_JMX, false));
+        setName(SystemPropertyUtil.get(PROP_NAME));
+    }
+
+    public boolean isStriped() {
+        return striped;
+    }
+
+    /**
+     * When enabled the storage allocates from its own group of arenas and routes every entry to the arena
+     * owned by the entry's partition, so operations on different partitions never share an arena lock.
+     */
+    public NettyStorageConfig setStriped(boolean striped) {
+        this.striped = striped;
+        return this;
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    /**
+     * Number of arenas used in the striped mode. Use the partition thread count to give each partition
+     * thread an arena of its own. {@code 0} means twice the number of available processors.
+     */
+    public NettyStorageConfig setStripeCount(int stripeCount) {
+        if (stripeCount < 0) {
+            throw new IllegalArgumentException("stripeCount: " + stripeCount + " (expected: >= 0)");
+        }
+        this.stripeCount = stripeCount;
+        return this;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public NettyStorageConfig setPartitionCount(int partitionCount) {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("partitionCount: " + partitionCount + " (expected: > 0)");
+        }
+        this.partitionCount = partitionCount;
+        return this;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * When enabled, entries are stored with an off-heap header holding their metadata and are referenced by
+     * a {@link CompactDataRef} which keeps nothing but the allocator handle. Needs {@code sun.misc.Unsafe}.
+     */
+    public NettyStorageConfig setCompact(boolean compact) {
+        this.compact = compact;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * When enabled, values of at least {@link #getCompressionThreshold()} bytes are compressed with an LZ4 style
+     * codec before they are stored. Values which do not get smaller are stored as they are.
+     */
+    public NettyStorageConfig setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Serialized size in bytes below which values are stored without trying to compress them.
+     */
+    public NettyStorageConfig setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException(
+                    "compressionThreshold: " + compressionThreshold + " (expected: >= 0)");
+        }
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    /**
+     * When enabled, entries with byte-identical values share a single reference counted allocation. Only applies
+     * to the non-compact mode, where the metadata of an entry is kept on the heap. Needs {@code sun.misc.Unsafe}.
+     */
+    public NettyStorageConfig setDedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    public String getMappedDirectory() {
+        return mappedDirectory;
+    }
+
+    /**
+     * Directory in which the storage keeps its memory in memory-mapped files instead of direct memory, so it can
+     * hold more data than fits into RAM. {@code null} uses direct memory.
+     */
+    public NettyStorageConfig setMappedDirectory(String mappedDirectory) {
+        this.mappedDirectory = mappedDirectory;
+        return this;
+    }
+
+    public boolean isMappedPreFault() {
+        return mappedPreFault;
+    }
+
+    /**
+     * When enabled, every memory-mapped file is loaded into memory as soon as it is created, so the first
+     * accesses to it do not page fault.
+     */
+    public NettyStorageConfig setMappedPreFault(boolean mappedPreFault) {
+        this.mappedPreFault = mappedPreFault;
+        return this;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Off-heap bytes the entries of the storage may take before it starts to pick entries for eviction, see
+     * {@link NettyStorage#setEvictionListener(EvictionListener)}. {@code 0} means unbounded. Needs the compact mode.
+     * Has no effect until a listener is set, which {@link NettyNodeInitializer} does not do.
+     */
+    public NettyStorageConfig setCapacity(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity: " + capacity + " (expected: >= 0)");
+        }
+        this.capacity = capacity;
+        return this;
+    }
+
+    public int getEvictionHighWatermark() {
+        return evictionHighWatermark;
+    }
+
+    /**
+     * Percentage of the capacity above which eviction starts.
+     */
+    public NettyStorageConfig setEvictionHighWatermark(int evictionHighWatermark) {
+        this.evictionHighWatermark = checkPercentage("evictionHighWatermark", evictionHighWatermark);
+        return this;
+    }
+
+    public int getEvictionLowWatermark() {
+        return evictionLowWatermark;
+    }
+
+    /**
+     * Percentage of the capacity down to which eviction goes on once it started.
+     */
+    public NettyStorageConfig setEvictionLowWatermark(int evictionLowWatermark) {
+        this.evictionLowWatermark = checkPercentage("evictionLowWatermark", evictionLowWatermark);
+        return this;
+    }
+
+    public long getQuota() {
+        return quota;
+    }
+
+    /**
+     * Hard limit in bytes on the off-heap memory of the storage, counting whole chunks. A put which needs more
+     * memory fails with an {@link info.jerrinot.nettyloc.OffHeapQuotaExceededException} instead of running the JVM
+     * into an {@link OutOfMemoryError}, so keep it below {@code -XX:MaxDirectMemorySize}. {@code 0} means unlimited.
+     */
+    public NettyStorageConfig setQuota(long quota) {
+        if (quota < 0) {
+            throw new IllegalArgumentException("quota: " + quota + " (expected: >= 0)");
+        }
+        this.quota = quota;
+        return this;
+    }
+
+    public long getQuotaWaitMillis() {
+        return quotaWaitMillis;
+    }
+
+    /**
+     * Time a put which hits the quota waits for other threads to free memory before it fails. {@code 0} fails
+     * right away.
+     */
+    public NettyStorageConfig setQuotaWaitMillis(long quotaWaitMillis) {
+        if (quotaWaitMillis < 0) {
+            throw new IllegalArgumentException("quotaWaitMillis: " + quotaWaitMillis + " (expected: >= 0)");
+        }
+        this.quotaWaitMillis = quotaWaitMillis;
+        return this;
+    }
+
+    public int getReservedChunks() {
+        return reservedChunks;
+    }
+
+    /**
+     * Chunks every arena of the storage creates and faults in when the storage is created, so the first puts find
+     * memory ready rather than waiting for new chunks. The arenas keep these chunks even while they are empty.
+     * Counts towards the quota.
+     */
+    public NettyStorageConfig setReservedChunks(int reservedChunks) {
+        if (reservedChunks < 0) {
+            throw new IllegalArgumentException("reservedChunks: " + reservedChunks + " (expected: >= 0)");
+        }
+        this.reservedChunks = reservedChunks;
+        return this;
+    }
+
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    /**
+     * When enabled, every entry is stored with a CRC32C of its payload, which is verified when the entry is read
+     * and by the scrubber. Needs the compact mode.
+     */
+    public NettyStorageConfig setChecksum(boolean checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    public int getChecksumVerifyRate() {
+        return checksumVerifyRate;
+    }
+
+    /**
+     * Percentage of the reads which verify the checksum of the entry. {@code 0} leaves the verification to the
+     * scrubber.
+     */
+    public NettyStorageConfig setChecksumVerifyRate(int checksumVerifyRate) {
+        this.checksumVerifyRate = checkPercentage("checksumVerifyRate", checksumVerifyRate);
+        return this;
+    }
+
+    public long getScrubIntervalMillis() {
+        return scrubIntervalMillis;
+    }
+
+    /**
+     * Interval at which a background thread verifies the checksums of the next batch of entries, see
+     * {@link NettyStorage#scrub(int)}. {@code 0} disables the background scrubber.
+     */
+    public NettyStorageConfig setScrubIntervalMillis(long scrubIntervalMillis) {
+        if (scrubIntervalMillis < 0) {
+            throw new IllegalArgumentException("scrubIntervalMillis: " + scrubIntervalMillis + " (expected: >= 0)");
+        }
+        this.scrubIntervalMillis = scrubIntervalMillis;
+        return this;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    /**
+     * When enabled, the storage registers a {@link NettyStorageMXBean} with the statistics of its entries and of
+     * the arenas of its allocator. The MBean server keeps the storage reachable until
+     * {@link NettyStorage#close()} or {@link NettyStorage#unregisterMBean()} is called.
+     */
+    public NettyStorageConfig setJmx(boolean jmx) {
+        this.jmx = jmx;
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Name of the storage in the name of its {@link NettyStorageMXBean}. {@link NettyNodeInitializer} uses the name
+     * of the Hazelcast instance. {@code null} numbers the storages in the order they are created.
+     */
+    public NettyStorageConfig setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    private static int checkPercentage(String name, int value) {
+        if (value < 0 || value > 100) {
+            throw new IllegalArgumentException(name + ": " + value + " (expected: 0-100)");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,57 @@
+package info.jerrinot.hazelcast;
+
+import info.jerrinot.nettyloc.PoolArenaMetric;
+
+import java.util.List;
+
+/**
+ * Management interface of a {@link NettyStorage}, registered with the platform MBean server under
+ * {@code info.jerrinot.hugecast:type=NettyStorage,name="<name>"}. Reading any attribute takes no lock of the storage or
+ * its allocator.
+ *
+ * @see NettyStorageConfig#setJmx(boolean)
+ * @see NettyStorageConfig#setName(String)
+ */
+public interface NettyStorageMXBean {
+
+    long getEntryCount();
+
+    long getOffHeapBytes();
+
+    long getChunkBytes();
+
+    /**
+     * Returns the quota of the storage in bytes, or {@code 0} if it has none.
+     */
+    long getMaxMemory();
+
+    long getHeapCost();
+
+    double getCompressionRatio();
+
+    double getDedupHitRate();
+
+    long getEvictionCount();
+
+    long getChecksumFailures();
+
+    long getThreadCacheHits();
+
+    long getThreadCacheMisses();
+
+    /**
+     * Returns the sum of the sizes of all allocations the storage has requested so far.
+     */
+    long getRequestedBytes();
+
+    /**
+     * Returns the sum of the size classes the allocations counted by {@link #getRequestedBytes()} were rounded up
+     * to.
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Returns the statistics of every arena of the allocator of the storage.
+     */
+    List<PoolArenaMetric> getArenas();
+}
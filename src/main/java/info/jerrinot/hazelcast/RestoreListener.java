@@ -0,0 +1,12 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.storage.DataRef;
+
+/**
+ * Receives the entries loaded by {@link NettyStorage#restore(java.io.File, int, RestoreListener)}, so the owner of
+ * the storage can associate them with their keys again. Called concurrently by the restoring threads.
+ */
+public interface RestoreListener {
+
+    void entryRestored(int hash, DataRef ref);
+}
@@ -0,0 +1,30 @@
+package info.jerrinot.hazelcast;
+
+import info.jerrinot.nettyloc.ByteBuf;
+import info.jerrinot.nettyloc.PlatformDependent;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+
+/**
+ * Reference to a deduplicated entry. All entries with a byte-identical value share one instance, and with it one
+ * {@link ByteBuf} whose reference count is the number of entries holding it.
+ */
+final class SharedDataRef extends NettyDataRef {
+    private static final int HEAP_COST = PlatformDependent.shallowSize(SharedDataRef.class)
+            + PooledByteBufAllocator.directBufferHeapCost();
+
+    private final long fingerprint;
+
+    SharedDataRef(ByteBuf byteBuf, int type, int classDefinitionId, boolean compressed, long fingerprint) {
+        super(byteBuf, type, classDefinitionId, compressed);
+        this.fingerprint = fingerprint;
+    }
+
+    @Override
+    public int heapCost() {
+        return HEAP_COST;
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+}
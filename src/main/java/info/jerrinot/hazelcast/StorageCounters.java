@@ -0,0 +1,210 @@
+package info.jerrinot.hazelcast;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregated entry count, off-heap and heap cost of a {@link NettyStorage}, and the statistics of its value
+ * compression, deduplication, eviction and checksums.
+ * <p>
+ * Updates are spread over cells selected by the partition id, each cell on a cache line of its own. With one cell
+ * per partition thread every thread updates a cell no other thread writes to, so keeping the counters costs an
+ * uncontended atomic add per update. Reading sums all cells and is not atomic with respect to concurrent updates.
+ * </p>
+ */
+final class StorageCounters {
+    // 16 counters padded to 32 longs = 256 bytes. The array is only 8 byte aligned, so the counters of a cell may
+    // straddle cache lines; the 128 bytes of padding behind them keep neighbouring cells from sharing a cache line
+    // or an adjacent line prefetch pair wherever the array is placed.
+    private static final int CELL_SIZE = 32;
+    private static final int ENTRIES = 0;
+    private static final int OFF_HEAP_BYTES = 1;
+    private static final int HEAP_COST = 2;
+    private static final int COMPRESSION_INPUT_BYTES = 3;
+    private static final int COMPRESSION_OUTPUT_BYTES = 4;
+    private static final int COMPRESSION_NANOS = 5;
+    private static final int DECOMPRESSION_NANOS = 6;
+    private static final int DEDUP_LOOKUPS = 7;
+    private static final int DEDUP_HITS = 8;
+    private static final int DEDUP_BYTES_SAVED = 9;
+    private static final int EVICTIONS = 10;
+    private static final int EVICTED_BYTES = 11;
+    private static final int CHECKSUM_NANOS = 12;
+    private static final int VERIFICATIONS = 13;
+    private static final int VERIFICATION_NANOS = 14;
+    private static final int CHECKSUM_FAILURES = 15;
+
+    private final AtomicLongArray cells;
+    private final int numCells;
+
+    StorageCounters(int numCells) {
+        this.numCells = numCells;
+        // leading padding keeps the first cell off the cache line holding the array header
+        cells = new AtomicLongArray((numCells + 1) * CELL_SIZE);
+    }
+
+    void added(int partitionId, long offHeapBytes, long heapCost) {
+        update(partitionId, 1, offHeapBytes, heapCost);
+    }
+
+    void removed(int partitionId, long offHeapBytes, long heapCost) {
+        update(partitionId, -1, -offHeapBytes, -heapCost);
+    }
+
+    void addedAll(int partitionId, int entries, long offHeapBytes, long heapCost) {
+        update(partitionId, entries, offHeapBytes, heapCost);
+    }
+
+    void removedAll(int partitionId, int entries, long offHeapBytes, long heapCost) {
+        update(partitionId, -entries, -offHeapBytes, -heapCost);
+    }
+
+    private void update(int partitionId, long entries, long offHeapBytes, long heapCost) {
+        int cell = cell(partitionId);
+        cells.getAndAdd(cell + ENTRIES, entries);
+        cells.getAndAdd(cell + OFF_HEAP_BYTES, offHeapBytes);
+        cells.getAndAdd(cell + HEAP_COST, heapCost);
+    }
+
+    /**
+     * Records a value of {@code inputBytes} which went through the compressor and was stored in
+     * {@code outputBytes}, either compressed or as it was.
+     */
+    void compressed(int partitionId, long inputBytes, long outputBytes, long nanos) {
+        int cell = cell(partitionId);
+        cells.getAndAdd(cell + COMPRESSION_INPUT_BYTES, inputBytes);
+        cells.getAndAdd(cell + COMPRESSION_OUTPUT_BYTES, outputBytes);
+        cells.getAndAdd(cell + COMPRESSION_NANOS, nanos);
+    }
+
+    void decompressed(int partitionId, long nanos) {
+        cells.getAndAdd(cell(partitionId) + DECOMPRESSION_NANOS, nanos);
+    }
+
+    void dedupMissed(int partitionId) {
+        cells.getAndAdd(cell(partitionId) + DEDUP_LOOKUPS, 1);
+    }
+
+    /**
+     * Records an entry which shares the {@code savedBytes} of an already stored identical value.
+     */
+    void deduplicated(int partitionId, long savedBytes) {
+        int cell = cell(partitionId);
+        cells.getAndAdd(cell + DEDUP_LOOKUPS, 1);
+        cells.getAndAdd(cell + DEDUP_HITS, 1);
+        cells.getAndAdd(cell + ENTRIES, 1);
+        cells.getAndAdd(cell + DEDUP_BYTES_SAVED, savedBytes);
+    }
+
+    /**
+     * Records the removal of an entry whose value is still shared by other entries.
+     */
+    void unshared(int partitionId, long savedBytes) {
+        int cell = cell(partitionId);
+        cells.getAndAdd(cell + ENTRIES, -1);
+        cells.getAndAdd(cell + DEDUP_BYTES_SAVED, -savedBytes);
+    }
+
+    /**
+     * Records an entry of {@code offHeapBytes} handed to the eviction listener.
+     */
+    void evicted(int partitionId, long offHeapBytes) {
+        int cell = cell(partitionId);
+        cells.getAndAdd(cell + EVICTIONS, 1);
+        cells.getAndAdd(cell + EVICTED_BYTES, offHeapBytes);
+    }
+
+    void checksummed(int partitionId, long nanos) {
+        cells.getAndAdd(cell(partitionId) + CHECKSUM_NANOS, nanos);
+    }
+
+    void verified(int partitionId, long nanos, boolean failed) {
+        int cell = cell(partitionId);
+        cells.getAndAdd(cell + VERIFICATIONS, 1);
+        cells.getAndAdd(cell + VERIFICATION_NANOS, nanos);
+        if (failed) {
+            cells.getAndAdd(cell + CHECKSUM_FAILURES, 1);
+        }
+    }
+
+    private int cell(int partitionId) {
+        return (partitionId % numCells + 1) * CELL_SIZE;
+    }
+
+    void reset() {
+        for (int i = 0; i < cells.length(); i ++) {
+            cells.set(i, 0);
+        }
+    }
+
+    long entries() {
+        return sum(ENTRIES);
+    }
+
+    long offHeapBytes() {
+        return sum(OFF_HEAP_BYTES);
+    }
+
+    long heapCost() {
+        return sum(HEAP_COST);
+    }
+
+    long compressionInputBytes() {
+        return sum(COMPRESSION_INPUT_BYTES);
+    }
+
+    long compressionOutputBytes() {
+        return sum(COMPRESSION_OUTPUT_BYTES);
+    }
+
+    long compressionNanos() {
+        return sum(COMPRESSION_NANOS);
+    }
+
+    long decompressionNanos() {
+        return sum(DECOMPRESSION_NANOS);
+    }
+
+    long dedupLookups() {
+        return sum(DEDUP_LOOKUPS);
+    }
+
+    long dedupHits() {
+        return sum(DEDUP_HITS);
+    }
+
+    long dedupBytesSaved() {
+        return sum(DEDUP_BYTES_SAVED);
+    }
+
+    long evictions() {
+        return sum(EVICTIONS);
+    }
+
+    long evictedBytes() {
+        return sum(EVICTED_BYTES);
+    }
+
+    private long sum(int slot) {
+        long sum = 0;
+        for (int i = 1; i <= numCells; i ++) {
+            sum += cells.get(i * CELL_SIZE + slot);
+        }
+        return sum;
+    }
+
+    long checksumNanos() {
+        return sum(CHECKSUM_NANOS);
+    }
+
+    long verifications() {
+        return sum(VERIFICATIONS);
+    }
+
+    long verificationNanos() {
+        return sum(VERIFICATION_NANOS);
+    }
+
+    long checksumFailures() {
+        return sum(CHECKSUM_FAILURES);
+    }
+}
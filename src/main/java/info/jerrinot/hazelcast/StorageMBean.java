@@ -0,0 +1,128 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+import info.jerrinot.nettyloc.PoolArenaMetric;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link NettyStorageMXBean} of a storage. Every attribute is read from the counters of the storage and the
+ * metrics of its allocator when it is requested.
+ */
+final class StorageMBean implements NettyStorageMXBean {
+    private static final String DOMAIN = "info.jerrinot.hugecast";
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+    private static final ILogger LOGGER = Logger.getLogger(StorageMBean.class);
+
+    private final NettyStorage storage;
+    private final PooledByteBufAllocator allocator;
+
+    private StorageMBean(NettyStorage storage, PooledByteBufAllocator allocator) {
+        this.storage = storage;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Registers the MBean of the {@code storage} with the platform MBean server under the {@code storageName}, or
+     * under the next number if it is {@code null}.
+     *
+     * @return the name of the MBean, or {@code null} if the registration failed, which is logged
+     */
+    static ObjectName register(NettyStorage storage, PooledByteBufAllocator allocator, String storageName) {
+        if (storageName == null) {
+            storageName = "storage-" + NEXT_ID.getAndIncrement();
+        }
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=NettyStorage,name=" + ObjectName.quote(storageName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StorageMBean(storage, allocator), name);
+            return name;
+        } catch (JMException e) {
+            LOGGER.warning("Failed to register the MBean of the storage " + storageName, e);
+            return null;
+        }
+    }
+
+    static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            LOGGER.warning("Failed to unregister " + name, e);
+        }
+    }
+
+    @Override
+    public long getEntryCount() {
+        return storage.entryCount();
+    }
+
+    @Override
+    public long getOffHeapBytes() {
+        return storage.offHeapBytes();
+    }
+
+    @Override
+    public long getChunkBytes() {
+        return storage.chunkBytes();
+    }
+
+    @Override
+    public long getMaxMemory() {
+        return allocator.maxMemory();
+    }
+
+    @Override
+    public long getHeapCost() {
+        return storage.heapCost();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        return storage.compressionRatio();
+    }
+
+    @Override
+    public double getDedupHitRate() {
+        return storage.dedupHitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return storage.evictionCount();
+    }
+
+    @Override
+    public long getChecksumFailures() {
+        return storage.checksumFailures();
+    }
+
+    @Override
+    public long getThreadCacheHits() {
+        return allocator.threadCacheHits();
+    }
+
+    @Override
+    public long getThreadCacheMisses() {
+        return allocator.threadCacheMisses();
+    }
+
+    @Override
+    public long getRequestedBytes() {
+        return allocator.requestedBytes();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return allocator.allocatedBytes();
+    }
+
+    @Override
+    public List<PoolArenaMetric> getArenas() {
+        return allocator.arenaMetrics();
+    }
+}
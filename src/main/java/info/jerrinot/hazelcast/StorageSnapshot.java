@@ -0,0 +1,455 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.nio.serialization.ClassDefinition;
+import com.hazelcast.nio.serialization.ClassDefinitionImpl;
+import com.hazelcast.nio.serialization.ClassDefinitionSetter;
+import com.hazelcast.nio.serialization.ObjectDataInputStream;
+import com.hazelcast.nio.serialization.ObjectDataOutputStream;
+import info.jerrinot.nettyloc.AllocationCursor;
+import info.jerrinot.nettyloc.AllocationVisitor;
+import info.jerrinot.nettyloc.PlatformDependent;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads and writes snapshots of a compact {@link NettyStorage}.
+ * <p>
+ * A snapshot starts with a file header, followed by segments and a trailer. A segment is a segment header and
+ * entries copied from the chunks of the allocator as they are laid out in memory, each an {@link EntryHeader} and
+ * its payload. A segment holds at most {@link #MAX_SEGMENT_SIZE} bytes of entries, unless a single entry is larger
+ * than that. The trailer holds the class definitions the entries refer to and ends with the position of its start,
+ * so it can be written after the segments. Entries are stored in the native byte order, everything else in big
+ * endian.
+ * </p>
+ * <p>
+ * Writing walks the allocations without stopping writers. The allocator passes only allocations which are still
+ * allocated as it collected them and keeps them allocated while they are copied, so every copy starts at an entry
+ * header. Entries which change while they are copied are skipped, see {@link EntryHeader}. Restoring reads the
+ * segments with positional reads from several threads at once, verifies the checksums of the entries which have one
+ * and allocates the memory of the entries of a segment in batches.
+ * </p>
+ */
+final class StorageSnapshot {
+    private static final long MAGIC = 0x6875676563617374L; // "hugecast"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEGMENT_MAGIC = 0x53454731; // "SEG1"
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int SEGMENT_HEADER_SIZE = 12;
+    private static final int TRAILER_END_SIZE = 16;
+    private static final int INITIAL_BUFFER_SIZE = 1024 * 1024;
+    // bounds the buffers of the writer and the readers however large the heap is
+    private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // entries of a segment allocated at once on restore
+    private static final int RESTORE_BATCH_SIZE = 4096;
+
+    private static final int NATIVE_ORDER = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0;
+
+    /**
+     * Writes a snapshot of the entries in the chunks of the {@code allocator} to the {@code file}.
+     *
+     * @return the number of entries written
+     */
+    static long write(File file, PooledByteBufAllocator allocator, ClassDefinitionRegistry classDefinitions)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            final FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putLong(MAGIC).putInt(FORMAT_VERSION).putInt(NATIVE_ORDER).flip();
+            writeFully(channel, header);
+
+            SegmentWriter writer = new SegmentWriter(channel);
+            try {
+                AllocationCursor cursor = new AllocationCursor();
+                // the walk stops whenever a segment is full, which is written without holding a lock of the allocator
+                while (!allocator.forEachAllocation(cursor, writer)) {
+                    writer.writeSegment();
+                }
+                writer.writeSegment();
+            } finally {
+                writer.release();
+            }
+
+            // written last, so it covers the class definitions of every entry in the segments
+            long trailerStart = channel.position();
+            byte[] trailer = writeClassDefinitions(classDefinitions);
+            ByteBuffer end = ByteBuffer.allocate(TRAILER_END_SIZE);
+            end.putLong(trailerStart).putLong(MAGIC).flip();
+            writeFully(channel, ByteBuffer.wrap(trailer));
+            writeFully(channel, end);
+            channel.force(true);
+            return writer.numEntries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Loads the entries of the snapshot in the {@code file} into the {@code storage}.
+     *
+     * @return the number of entries restored
+     */
+    static long restore(File file, int nThreads, final NettyStorage storage, ClassDefinitionRegistry classDefinitions,
+                        final RestoreListener listener) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            if (header.getInt(8) != FORMAT_VERSION) {
+                throw new IOException("snapshot format: " + header.getInt(8) + " (expected: " + FORMAT_VERSION + ')');
+            }
+            if (header.getInt(12) != NATIVE_ORDER) {
+                throw new IOException("snapshot was written on a platform with a different byte order");
+            }
+
+            ByteBuffer end = ByteBuffer.allocate(TRAILER_END_SIZE);
+            long endPosition = channel.size() - TRAILER_END_SIZE;
+            if (endPosition < FILE_HEADER_SIZE) {
+                throw new EOFException("truncated snapshot: " + file);
+            }
+            readFully(channel, end, endPosition);
+            long trailerStart = end.getLong(0);
+            if (end.getLong(8) != MAGIC || trailerStart < FILE_HEADER_SIZE || trailerStart > endPosition) {
+                throw new IOException("truncated snapshot: " + file);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate((int) (endPosition - trailerStart));
+            readFully(channel, trailer, trailerStart);
+            final int[] classDefinitionIds = readClassDefinitions(trailer.array(), classDefinitions);
+
+            final List<Segment> segments = readSegmentTable(channel, trailerStart);
+            final AtomicInteger nextSegment = new AtomicInteger();
+            final AtomicLong numEntries = new AtomicLong();
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Runnable restoreTask = new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = null;
+                    try {
+                        for (int i = nextSegment.getAndIncrement(); i < segments.size() && failure.get() == null;
+                             i = nextSegment.getAndIncrement()) {
+                            Segment segment = segments.get(i);
+                            if (buffer == null || buffer.capacity() < segment.length) {
+                                freeBuffer(buffer);
+                                buffer = ByteBuffer.allocateDirect(Math.max(segment.length, INITIAL_BUFFER_SIZE));
+                            }
+                            buffer.clear().limit(segment.length);
+                            readFully(channel, buffer, segment.position + SEGMENT_HEADER_SIZE);
+                            restoreSegment(buffer, segment, storage, classDefinitionIds, listener);
+                            numEntries.addAndGet(segment.numEntries);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        freeBuffer(buffer);
+                    }
+                }
+            };
+
+            Thread[] helpers = new Thread[Math.max(Math.min(nThreads, segments.size()) - 1, 0)];
+            for (int i = 0; i < helpers.length; i ++) {
+                helpers[i] = new Thread(restoreTask, "hugecast-restore-" + i);
+                helpers[i].setDaemon(true);
+                helpers[i].start();
+            }
+            restoreTask.run();
+            joinUninterruptibly(helpers);
+
+            Throwable t = failure.get();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw new IllegalStateException(t);
+            }
+            return numEntries.get();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void restoreSegment(ByteBuffer buffer, Segment segment, NettyStorage storage,
+                                       int[] classDefinitionIds, RestoreListener listener) throws IOException {
+        long address = PlatformDependent.directBufferAddress(buffer);
+        int[] offsets = new int[Math.min(segment.numEntries, RESTORE_BATCH_SIZE)];
+        CompactDataRef[] refs = new CompactDataRef[offsets.length];
+        int batchSize = 0;
+        int position = 0;
+        for (int i = 0; i < segment.numEntries; i ++) {
+            if (position + EntryHeader.SIZE > segment.length) {
+                throw new IOException("corrupted segment at " + segment.position);
+            }
+            long src = address + position;
+            int lengthWord = EntryHeader.lengthWord(src);
+            int size = EntryHeader.entrySize(lengthWord);
+            int classDefinitionId = EntryHeader.classDefinitionId(src);
+            if (position + size > segment.length
+                    || classDefinitionId >= classDefinitionIds.length) {
+                throw new IOException("corrupted segment at " + segment.position);
+            }
+            if (EntryHeader.hasChecksum(lengthWord)) {
+                verifyChecksum(src, lengthWord, segment, storage);
+            }
+            offsets[batchSize ++] = position;
+            if (batchSize == offsets.length) {
+                restoreBatch(address, offsets, refs, batchSize, storage, classDefinitionIds, listener);
+                batchSize = 0;
+            }
+            position += size;
+        }
+        if (batchSize > 0) {
+            restoreBatch(address, offsets, refs, batchSize, storage, classDefinitionIds, listener);
+        }
+    }
+
+    private static void verifyChecksum(long src, int lengthWord, Segment segment, NettyStorage storage)
+            throws IOException {
+        int length = EntryHeader.length(lengthWord);
+        int hash = EntryHeader.hash(src);
+        byte[] payload = Lz4Codec.scratch().buffer(length);
+        PlatformDependent.copyMemory(EntryHeader.payloadAddress(src), payload, 0, length);
+        if (!storage.verifyChecksum(hash, payload, length, EntryHeader.checksum(src, length))) {
+            throw new IOException(
+                    "checksum mismatch of the entry with hash " + hash + " in the segment at " + segment.position);
+        }
+    }
+
+    private static void restoreBatch(long address, int[] offsets, CompactDataRef[] refs, int n, NettyStorage storage,
+                                     int[] classDefinitionIds, RestoreListener listener) {
+        storage.restoreEntries(address, offsets, refs, n, classDefinitionIds);
+        for (int i = 0; i < n; i ++) {
+            listener.entryRestored(EntryHeader.hash(address + offsets[i]), refs[i]);
+            refs[i] = null;
+        }
+    }
+
+    private static List<Segment> readSegmentTable(FileChannel channel, long trailerStart) throws IOException {
+        List<Segment> segments = new ArrayList<Segment>();
+        ByteBuffer segmentHeader = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        long position = FILE_HEADER_SIZE;
+        while (position < trailerStart) {
+            segmentHeader.clear();
+            readFully(channel, segmentHeader, position);
+            if (segmentHeader.getInt(0) != SEGMENT_MAGIC) {
+                throw new IOException("corrupted segment at " + position);
+            }
+            Segment segment = new Segment(position, segmentHeader.getInt(4), segmentHeader.getInt(8));
+            if (segment.numEntries < 0 || segment.length < 0) {
+                throw new IOException("corrupted segment at " + position);
+            }
+            segments.add(segment);
+            position += SEGMENT_HEADER_SIZE + segment.length;
+        }
+        if (position != trailerStart) {
+            throw new IOException("corrupted segment table");
+        }
+        return segments;
+    }
+
+    private static byte[] writeClassDefinitions(ClassDefinitionRegistry classDefinitions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // class definitions do not need the serialization service to write themselves
+        ObjectDataOutputStream out = new ObjectDataOutputStream(bytes, null);
+        int size = classDefinitions.size();
+        out.writeInt(size);
+        for (int id = 0; id < size; id ++) {
+            ClassDefinition classDefinition = classDefinitions.get(id);
+            classDefinition.writeData(out);
+            byte[] binary = ((ClassDefinitionImpl) classDefinition).getBinary();
+            out.writeInt(binary == null ? -1 : binary.length);
+            if (binary != null) {
+                out.write(binary);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Registers the class definitions of a snapshot.
+     *
+     * @return the id of every class definition in the {@code registry} by its id in the snapshot
+     */
+    private static int[] readClassDefinitions(byte[] trailer, ClassDefinitionRegistry registry) throws IOException {
+        ObjectDataInputStream in = new ObjectDataInputStream(new ByteArrayInputStream(trailer), null);
+        int[] ids = new int[in.readInt()];
+        for (int i = 0; i < ids.length; i ++) {
+            ClassDefinitionImpl classDefinition = new ClassDefinitionImpl();
+            classDefinition.readData(in);
+            int binaryLength = in.readInt();
+            if (binaryLength >= 0) {
+                byte[] binary = new byte[binaryLength];
+                in.readFully(binary);
+                ClassDefinitionSetter.setBinary(classDefinition, binary);
+            }
+            ids[i] = registry.register(classDefinition);
+        }
+        return ids;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("truncated snapshot at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static void freeBuffer(ByteBuffer buffer) {
+        if (buffer != null) {
+            PlatformDependent.freeDirectBuffer(buffer);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread[] threads) {
+        boolean interrupted = false;
+        for (Thread thread: threads) {
+            for (;;) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Segment {
+        final long position;
+        final int numEntries;
+        final int length;
+
+        Segment(long position, int numEntries, int length) {
+            this.position = position;
+            this.numEntries = numEntries;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Copies the committed entries passed by the allocator into a direct buffer, which holds the segment being
+     * written.
+     */
+    private static final class SegmentWriter implements AllocationVisitor {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        private long bufferAddress = PlatformDependent.directBufferAddress(buffer);
+        // the end of the entries of the segment in the buffer
+        private int position = SEGMENT_HEADER_SIZE;
+        private int numSegmentEntries;
+        // the size of the entry copied after the end of a full segment, which starts the next segment
+        private int pendingSize;
+        long numEntries;
+
+        SegmentWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean visitAllocation(long handle, long address, int capacity) {
+            if (capacity < EntryHeader.SIZE) {
+                return true;
+            }
+
+            // read in the reverse order of the writers, see EntryHeader
+            int versionWord = EntryHeader.versionWord(address);
+            int lengthWord = EntryHeader.lengthWord(address);
+            int size = EntryHeader.entrySize(lengthWord);
+            if (!EntryHeader.isCommitted(lengthWord) || size > capacity) {
+                return true;
+            }
+            // a single entry is at most EntryHeader.MAX_LENGTH bytes plus its header and checksum
+            ensureCapacity(position + size);
+            PlatformDependent.copyMemory(address, bufferAddress + position, size);
+            if (!EntryHeader.isUnchanged(lengthWord, EntryHeader.lengthWord(address))
+                    || EntryHeader.versionWord(address) != versionWord) {
+                // removed or replaced while being copied
+                return true;
+            }
+            if (numSegmentEntries > 0 && position - SEGMENT_HEADER_SIZE + size > MAX_SEGMENT_SIZE) {
+                pendingSize = size;
+                return false;
+            }
+            position += size;
+            numSegmentEntries ++;
+            return true;
+        }
+
+        /**
+         * Writes out the segment if it has entries and starts the next one.
+         */
+        void writeSegment() throws IOException {
+            if (numSegmentEntries > 0) {
+                buffer.clear();
+                buffer.putInt(0, SEGMENT_MAGIC).putInt(4, numSegmentEntries).putInt(8, position - SEGMENT_HEADER_SIZE);
+                buffer.limit(position);
+                writeFully(channel, buffer);
+                numEntries += numSegmentEntries;
+            }
+            numSegmentEntries = 0;
+            if (pendingSize > 0) {
+                // copies forward, so the regions may overlap
+                PlatformDependent.copyMemory(bufferAddress + position, bufferAddress + SEGMENT_HEADER_SIZE,
+                        pendingSize);
+                position = SEGMENT_HEADER_SIZE + pendingSize;
+                numSegmentEntries = 1;
+                pendingSize = 0;
+            } else {
+                position = SEGMENT_HEADER_SIZE;
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (buffer.capacity() >= capacity) {
+                return;
+            }
+            int newCapacity = (int) Math.min(Math.max(capacity, (long) buffer.capacity() << 1), Integer.MAX_VALUE);
+            ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+            long newBufferAddress = PlatformDependent.directBufferAddress(newBuffer);
+            PlatformDependent.copyMemory(bufferAddress, newBufferAddress, position);
+            PlatformDependent.freeDirectBuffer(buffer);
+            buffer = newBuffer;
+            bufferAddress = newBufferAddress;
+        }
+
+        void release() {
+            PlatformDependent.freeDirectBuffer(buffer);
+        }
+    }
+
+    private StorageSnapshot() {
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+/**
+ * Position of a walk over the allocations of a {@link PooledByteBufAllocator} which goes round and round its chunks,
+ * a bounded number of allocations at a time. The allocations of a chunk are collected when the walk enters it, so
+ * the position stays meaningful while the chunk changes.
+ *
+ * @see PooledByteBufAllocator#visitAllocations(AllocationCursor, int, AllocationVisitor)
+ */
+public final class AllocationCursor {
+    PoolChunk<?> chunk;
+    int chunkId;
+    final PoolChunk.Allocations allocations = new PoolChunk.Allocations();
+    int position;
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+/**
+ * Receives single allocations from
+ * {@link PooledByteBufAllocator#visitAllocations(AllocationCursor, int, AllocationVisitor)}.
+ * <p>
+ * The visitor is called with a lock of the allocator held, which keeps the allocation from being released to its
+ * chunk and its memory from being laid out differently. It must not allocate or release memory of the allocator
+ * and should return quickly.
+ * </p>
+ */
+public interface AllocationVisitor {
+
+    /**
+     * @param handle the handle of the allocation, as returned by {@link PooledByteBufAllocator#allocateHandle(int)}
+     * @param address the address of the first byte of the allocation
+     * @param capacity the capacity of the allocation
+     * @return {@code true} to go on with the next allocation, {@code false} to stop
+     */
+    boolean visitAllocation(long handle, long address, int capacity);
+}
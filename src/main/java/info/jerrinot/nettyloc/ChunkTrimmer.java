@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Releases the empty chunks the arenas of the allocators retain once they have stayed unused for the decay period of
+ * their allocator, see {@link PooledByteBufAllocator#trimRetainedChunks()}.
+ * <p>
+ * A single thread serves all allocators. It is started on demand and stops itself once no allocator retains a chunk
+ * anymore. It holds the allocators weakly, so it never keeps an allocator alive.
+ * </p>
+ */
+final class ChunkTrimmer {
+
+    private static final ILogger logger = Logger.getLogger(ChunkTrimmer.class);
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private static final Queue<WeakReference<PooledByteBufAllocator>> pendingAllocators =
+            new ConcurrentLinkedQueue<WeakReference<PooledByteBufAllocator>>();
+    private static final Trimmer trimmer = new Trimmer();
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Trims the retained chunks of the {@code allocator} periodically until it retains none.
+     */
+    static void schedule(PooledByteBufAllocator allocator) {
+        pendingAllocators.add(new WeakReference<PooledByteBufAllocator>(allocator));
+
+        if (started.compareAndSet(false, true)) {
+            Thread trimmerThread = new Thread(trimmer, "hugecast-chunk-trimmer");
+            trimmerThread.setDaemon(true);
+            trimmerThread.start();
+        }
+    }
+
+    private static final class Trimmer implements Runnable {
+
+        private final List<WeakReference<PooledByteBufAllocator>> allocators =
+                new ArrayList<WeakReference<PooledByteBufAllocator>>();
+
+        @Override
+        public void run() {
+            for (;;) {
+                try {
+                    Thread.sleep(CHECK_INTERVAL_MILLIS);
+                } catch (InterruptedException ignore) {
+                    // Ignore the interrupt; do not terminate while chunks are retained.
+                }
+
+                fetchAllocators();
+                trimAllocators();
+
+                if (allocators.isEmpty() && pendingAllocators.isEmpty()) {
+                    // Mark the current trimmer thread as stopped.
+                    boolean stopped = started.compareAndSet(true, false);
+                    assert stopped;
+
+                    // Check if there are pending allocators added by schedule() while we do CAS above.
+                    if (pendingAllocators.isEmpty()) {
+                        break;
+                    }
+
+                    // There are pending allocators again, added by schedule() while we do CAS above.
+                    if (!started.compareAndSet(false, true)) {
+                        // schedule() started a new thread and set 'started' to true.
+                        break;
+                    }
+                    // schedule() added an allocator, but this trimmer was faster to set 'started' to true.
+                }
+            }
+        }
+
+        private void fetchAllocators() {
+            for (;;) {
+                WeakReference<PooledByteBufAllocator> allocator = pendingAllocators.poll();
+                if (allocator == null) {
+                    break;
+                }
+                allocators.add(allocator);
+            }
+        }
+
+        private void trimAllocators() {
+            for (Iterator<WeakReference<PooledByteBufAllocator>> i = allocators.iterator(); i.hasNext();) {
+                PooledByteBufAllocator allocator = i.next().get();
+                if (allocator == null) {
+                    i.remove();
+                    continue;
+                }
+                try {
+                    if (!allocator.trimRetainedChunks()) {
+                        i.remove();
+                    }
+                } catch (Throwable t) {
+                    logger.log(Level.WARNING, "Failed to release the retained chunks of an allocator", t);
+                }
+            }
+        }
+    }
+
+    private ChunkTrimmer() {
+        // only static method supported
+    }
+}
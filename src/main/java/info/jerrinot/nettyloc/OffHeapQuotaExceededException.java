@@ -0,0 +1,31 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+/**
+ * Thrown when an allocation needs a new chunk and the memory quota of the {@link PooledByteBufAllocator} does not
+ * leave room for it. Nothing has been allocated when this is thrown, so the caller can recover by freeing memory.
+ *
+ * @see PooledByteBufAllocator#setMemoryQuota(long, long)
+ */
+public class OffHeapQuotaExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public OffHeapQuotaExceededException(String message) {
+        super(message);
+    }
+}
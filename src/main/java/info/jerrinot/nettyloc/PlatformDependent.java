@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
@@ -56,6 +57,7 @@ public final class PlatformDependent {
     private static final long MAX_DIRECT_MEMORY = maxDirectMemory0();
 
     private static final long ARRAY_BASE_OFFSET = arrayBaseOffset0();
+    private static final int REFERENCE_SIZE = referenceSize0();
 
     static {
         if (!hasUnsafe()) {
@@ -103,10 +105,93 @@ public final class PlatformDependent {
         return PlatformDependent0.getInt(object, fieldOffset);
     }
 
+    public static int getInt(long address) {
+        return PlatformDependent0.getInt(address);
+    }
+
+    public static void putInt(long address, int value) {
+        PlatformDependent0.putInt(address, value);
+    }
+
+    public static int getIntVolatile(long address) {
+        return PlatformDependent0.getIntVolatile(address);
+    }
+
+    public static void putIntVolatile(long address, int value) {
+        PlatformDependent0.putIntVolatile(address, value);
+    }
+
+    public static boolean compareAndSwapInt(long address, int expected, int value) {
+        return PlatformDependent0.compareAndSwapInt(address, expected, value);
+    }
+
+    public static long getLong(long address) {
+        return PlatformDependent0.getLong(address);
+    }
+
+    public static void putLong(long address, long value) {
+        PlatformDependent0.putLong(address, value);
+    }
+
     public static long objectFieldOffset(Field field) {
         return PlatformDependent0.objectFieldOffset(field);
     }
 
+    /**
+     * Returns the shallow heap size of an instance of the specified class, i.e. its object header and instance
+     * fields rounded up to the 8 byte object alignment. Uses the actual field layout when {@code sun.misc.Unsafe}
+     * is available and a conservative estimate otherwise.
+     */
+    public static int shallowSize(Class<?> clazz) {
+        long size = REFERENCE_SIZE == 4 ? 12 : 16;
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Field field: c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                int fieldSize = fieldSize(field.getType());
+                if (hasUnsafe()) {
+                    size = Math.max(size, objectFieldOffset(field) + fieldSize);
+                } else {
+                    size += fieldSize;
+                }
+            }
+        }
+        return (int) (size + 7 & ~7L);
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return REFERENCE_SIZE;
+        }
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Allocates {@code size} bytes of native memory, which is not counted against {@code -XX:MaxDirectMemorySize}
+     * and must be released with {@link #freeMemory(long)}.
+     */
+    public static long allocateMemory(long size) {
+        return PlatformDependent0.allocateMemory(size);
+    }
+
+    public static void freeMemory(long address) {
+        PlatformDependent0.freeMemory(address);
+    }
+
+    public static void setMemory(long address, long length, byte value) {
+        PlatformDependent0.setMemory(address, length, value);
+    }
+
     public static void copyMemory(long srcAddr, long dstAddr, long length) {
         PlatformDependent0.copyMemory(srcAddr, dstAddr, length);
     }
@@ -162,6 +247,14 @@ public final class PlatformDependent {
         return PlatformDependent0.arrayBaseOffset();
     }
 
+    private static int referenceSize0() {
+        if (!hasUnsafe()) {
+            return 8;
+        }
+
+        return PlatformDependent0.referenceSize();
+    }
+
     private static long maxDirectMemory0() {
         long maxDirectMemory = 0;
         try {
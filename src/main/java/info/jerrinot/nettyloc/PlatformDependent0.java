@@ -39,6 +39,9 @@ final class PlatformDependent0 {
     private static final long ADDRESS_FIELD_OFFSET;
     private static final Field CLEANER_FIELD;
 
+    // Unsafe.copyMemory does not reach a safepoint until it is done, so large copies are split into parts
+    private static final long UNSAFE_COPY_THRESHOLD = 1024L * 1024L;
+
     /**
      * {@code true} if and only if the platform supports unaligned access.
      *
@@ -190,6 +193,10 @@ final class PlatformDependent0 {
         return UNSAFE.arrayBaseOffset(byte[].class);
     }
 
+    static int referenceSize() {
+        return UNSAFE.arrayIndexScale(Object[].class);
+    }
+
     static Object getObject(Object object, long fieldOffset) {
         return UNSAFE.getObject(object, fieldOffset);
     }
@@ -198,6 +205,34 @@ final class PlatformDependent0 {
         return UNSAFE.getInt(object, fieldOffset);
     }
 
+    static int getInt(long address) {
+        return UNSAFE.getInt(address);
+    }
+
+    static void putInt(long address, int value) {
+        UNSAFE.putInt(address, value);
+    }
+
+    static int getIntVolatile(long address) {
+        return UNSAFE.getIntVolatile(null, address);
+    }
+
+    static void putIntVolatile(long address, int value) {
+        UNSAFE.putIntVolatile(null, address, value);
+    }
+
+    static boolean compareAndSwapInt(long address, int expected, int value) {
+        return UNSAFE.compareAndSwapInt(null, address, expected, value);
+    }
+
+    static long getLong(long address) {
+        return UNSAFE.getLong(address);
+    }
+
+    static void putLong(long address, long value) {
+        UNSAFE.putLong(address, value);
+    }
+
     private static long getLong(Object object, long fieldOffset) {
         return UNSAFE.getLong(object, fieldOffset);
     }
@@ -206,12 +241,36 @@ final class PlatformDependent0 {
         return UNSAFE.objectFieldOffset(field);
     }
 
+    static long allocateMemory(long size) {
+        return UNSAFE.allocateMemory(size);
+    }
+
+    static void freeMemory(long address) {
+        UNSAFE.freeMemory(address);
+    }
+
+    static void setMemory(long address, long length, byte value) {
+        UNSAFE.setMemory(address, length, value);
+    }
+
     static void copyMemory(long srcAddr, long dstAddr, long length) {
-        UNSAFE.copyMemory(srcAddr, dstAddr, length);
+        while (length > 0) {
+            long size = Math.min(length, UNSAFE_COPY_THRESHOLD);
+            UNSAFE.copyMemory(srcAddr, dstAddr, size);
+            length -= size;
+            srcAddr += size;
+            dstAddr += size;
+        }
     }
 
     static void copyMemory(Object src, long srcOffset, Object dst, long dstOffset, long length) {
-        UNSAFE.copyMemory(src, srcOffset, dst, dstOffset, length);
+        while (length > 0) {
+            long size = Math.min(length, UNSAFE_COPY_THRESHOLD);
+            UNSAFE.copyMemory(src, srcOffset, dst, dstOffset, size);
+            length -= size;
+            srcOffset += size;
+            dstOffset += size;
+        }
     }
 
     private PlatformDependent0() {
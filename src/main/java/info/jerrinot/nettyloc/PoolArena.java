@@ -16,18 +16,48 @@
 
 package info.jerrinot.nettyloc;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-abstract class PoolArena<T> {
+abstract class PoolArena<T> implements PoolArenaMetric {
+
+    private static final int NUM_TINY_SUBPAGE_POOLS = 512 >>> 4;
+    // the number of bytes zeroed by clearHead(), the size of a long
+    static final int CLEARED_HEAD_SIZE = 8;
+    // one in LOCK_SAMPLE_MASK + 1 acquisitions of the arena lock is timed
+    private static final int LOCK_SAMPLE_MASK = 15;
+    // the longest run of pages a subpage of a small size class may take
+    private static final int MAX_SUBPAGE_RUN_PAGES = 16;
 
     final PooledByteBufAllocator parent;
+    final int index;
 
-    private final int pageSize;
-    private final int maxOrder;
+    final int pageSize;
+    final int maxOrder;
     private final int pageShifts;
-    private final int chunkSize;
+    final long chunkSize;
+    // the largest capacity served from the chunks, larger allocations get an unpooled chunk of their own
+    final int maxPooledCapacity;
     private final int subpageOverflowMask;
 
+    // Size classes from 512 bytes up to maxRunSize, 1 << log2SizeClassesPerDoubling of them per doubling. The
+    // tables are indexed by smallIdx(), sizeClasses holds the capacity a class is served with and subpageRunSizes
+    // the length of the runs of its subpages, or 0 if the class is served with a run of its own.
+    private final int log2SizeClassesPerDoubling;
+    private final int maxRunSize;
+    private final int[] sizeClasses;
+    private final int[] subpageRunSizes;
+
     private final PoolSubpage<T>[] tinySubpagePools;
     private final PoolSubpage<T>[] smallSubpagePools;
 
@@ -37,26 +67,60 @@ abstract class PoolArena<T> {
     private final PoolChunkList<T> qInit;
     private final PoolChunkList<T> q075;
     private final PoolChunkList<T> q100;
+    // empty chunks kept for reuse instead of being destroyed, the one emptied first at the head
+    private final ArrayDeque<PoolChunk<T>> retainedChunks = new ArrayDeque<PoolChunk<T>>();
+    // read without the arena lock by the metrics
+    private int numRetainedChunks;
+    // the number of chunks created by reserveChunk(), below which retained chunks are never released
+    private int reservedChunks;
+
+    // incremented by reset(), so thread caches can tell their cached allocations are gone
+    volatile int generation;
+
+    // serializes the creation of chunks, which happens outside of the arena lock
+    private final Object provisionLock = new Object();
+
+    // metrics, guarded by the arena lock and read without it
+    long normalAllocations;
+    long normalDeallocations;
+    long usedBytes;
+    private long lockAcquisitions;
+    private long lockWaitNanos;
+    // huge allocations take no lock
+    private final AtomicLong hugeAllocations = new AtomicLong();
+    private final AtomicLong hugeDeallocations = new AtomicLong();
+    private final AtomicLong hugeBytes = new AtomicLong();
 
-    // TODO: Test if adding padding helps under contention
-    //private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
+    // keeps the monitor of this arena, the lock of its chunk lists, off the cache lines of neighbouring objects
+    @SuppressWarnings("unused")
+    private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
 
-    protected PoolArena(PooledByteBufAllocator parent, int pageSize, int maxOrder, int pageShifts, int chunkSize) {
+    protected PoolArena(PooledByteBufAllocator parent, int index, int pageSize, int maxOrder, int pageShifts,
+                        long chunkSize, int sizeClassesPerDoubling) {
         this.parent = parent;
+        this.index = index;
         this.pageSize = pageSize;
         this.maxOrder = maxOrder;
         this.pageShifts = pageShifts;
         this.chunkSize = chunkSize;
+        maxPooledCapacity = (int) Math.min(chunkSize, 1 << 30);
         subpageOverflowMask = ~(pageSize - 1);
 
-        tinySubpagePools = newSubpagePoolArray(512 >>> 4);
+        log2SizeClassesPerDoubling = Integer.numberOfTrailingZeros(sizeClassesPerDoubling);
+        maxRunSize = (int) Math.min(pageSize * MAX_SUBPAGE_RUN_PAGES, chunkSize);
+        int numSmallClasses = (Integer.numberOfTrailingZeros(maxRunSize) - 9) << log2SizeClassesPerDoubling;
+        sizeClasses = new int[numSmallClasses];
+        subpageRunSizes = new int[numSmallClasses];
+        initSizeClasses();
+
+        tinySubpagePools = newSubpagePoolArray(NUM_TINY_SUBPAGE_POOLS);
         for (int i = 0; i < tinySubpagePools.length; i ++) {
             tinySubpagePools[i] = newSubpagePoolHead(pageSize);
         }
 
-        smallSubpagePools = newSubpagePoolArray(pageShifts - 9);
+        smallSubpagePools = newSubpagePoolArray(numSmallClasses);
         for (int i = 0; i < smallSubpagePools.length; i ++) {
-            smallSubpagePools[i] = newSubpagePoolHead(pageSize);
+            smallSubpagePools[i] = newSubpagePoolHead(subpageRunSizes[i]);
         }
 
         q100 = new PoolChunkList<T>(this, null, 100, Integer.MAX_VALUE);
@@ -74,8 +138,57 @@ abstract class PoolArena<T> {
         qInit.prevList = qInit;
     }
 
-    private PoolSubpage<T> newSubpagePoolHead(int pageSize) {
-        PoolSubpage<T> head = new PoolSubpage<T>(pageSize);
+    /**
+     * Fills the size class tables. Powers of two of at least the page size are served with runs, as before. Every
+     * other class gets subpages on the shortest run of up to {@value #MAX_SUBPAGE_RUN_PAGES} pages which wastes no
+     * more than 1/16 of it, or on the run which wastes the least. A class whose elements would take as much of their
+     * run as an element of the next class does is left out, its requests are served with the next class.
+     */
+    private void initSizeClasses() {
+        int maxRunPages = maxRunSize >>> pageShifts;
+        for (int i = sizeClasses.length - 1; i >= 0; i --) {
+            int size = smallClassSize(i);
+            int nextSize = i + 1 < sizeClasses.length ? smallClassSize(i + 1) : maxRunSize;
+            if (size >= pageSize && (size & size - 1) == 0) {
+                sizeClasses[i] = size;
+                continue;
+            }
+
+            int runSize = 0;
+            long minWaste = Long.MAX_VALUE;
+            for (int pages = 1; pages <= maxRunPages; pages <<= 1) {
+                int length = pages << pageShifts;
+                if (length < size) {
+                    continue;
+                }
+                // compared as a fraction of the run length
+                long waste = (long) (length % size) * maxRunSize / length;
+                if (waste < minWaste) {
+                    minWaste = waste;
+                    runSize = length;
+                }
+                if (waste << 4 <= maxRunSize) {
+                    break;
+                }
+            }
+
+            if (runSize / (runSize / size) >= nextSize) {
+                sizeClasses[i] = i + 1 < sizeClasses.length ? sizeClasses[i + 1] : maxRunSize;
+            } else {
+                sizeClasses[i] = size;
+                subpageRunSizes[i] = runSize;
+            }
+        }
+    }
+
+    // the size of the class with the smallIdx() i, before classes are left out
+    private int smallClassSize(int i) {
+        int base = 512 << (i >>> log2SizeClassesPerDoubling);
+        return base + (i & (1 << log2SizeClassesPerDoubling) - 1) * (base >>> log2SizeClassesPerDoubling);
+    }
+
+    private PoolSubpage<T> newSubpagePoolHead(int runSize) {
+        PoolSubpage<T> head = new PoolSubpage<T>(runSize);
         head.prev = head;
         head.next = head;
         return head;
@@ -87,118 +200,739 @@ abstract class PoolArena<T> {
     }
 
     PooledByteBuf<T> allocate(PoolThreadCache cache, int reqCapacity) {
+        if (chunkSize > DirectArena.MAX_BUFFER_CHUNK_SIZE) {
+            throw new UnsupportedOperationException(
+                    "buffers need chunks of at most " + DirectArena.MAX_BUFFER_CHUNK_SIZE + " bytes, use handles");
+        }
         PooledByteBuf<T> buf = newByteBuf();
-        allocate(cache, buf, reqCapacity);
+        long handle = allocateHandle(cache, reqCapacity, false);
+        PoolChunk<T> chunk = chunk(handle);
+        if (chunk.unpooled) {
+            buf.initUnpooled(chunk, reqCapacity);
+        } else {
+            chunk.initBuf(buf, PoolChunk.localHandle(handle), reqCapacity);
+        }
         return buf;
     }
 
-    private void allocate(PoolThreadCache cache, PooledByteBuf<T> buf, final int reqCapacity) {
+    /**
+     * Allocates {@code reqCapacity} bytes and returns the global handle of the allocation.
+     *
+     * @param clearHead {@code true} to zero the first {@value #CLEARED_HEAD_SIZE} bytes of memory which does not
+     *                  come from the thread cache, before the allocation becomes visible to
+     *                  {@link PooledByteBufAllocator#forEachAllocation(AllocationCursor, AllocationVisitor)}
+     * @see PoolChunk#globalHandle(int, long)
+     */
+    long allocateHandle(PoolThreadCache cache, final int reqCapacity, boolean clearHead) {
         final int normCapacity = normalizeCapacity(reqCapacity);
-        if ((normCapacity & subpageOverflowMask) == 0) { // capacity < pageSize
-            int tableIdx;
-            PoolSubpage<T>[] table;
-            if ((normCapacity & 0xFFFFFE00) == 0) { // < 512
-                tableIdx = normCapacity >>> 4;
-                table = tinySubpagePools;
+        if (normCapacity > maxPooledCapacity) {
+            cache.allocated(reqCapacity, reqCapacity);
+            // fresh memory of a new chunk is zeroed already
+            return allocateHuge(reqCapacity);
+        }
+
+        cache.allocated(reqCapacity, normCapacity);
+        long handle = cache.allocate(this, normCapacity);
+        if (handle >= 0) {
+            // was able to allocate out of the cache so move on
+            return handle;
+        }
+        handle = allocateFromPools(normCapacity, clearHead);
+        if (handle >= 0) {
+            return handle;
+        }
+        return allocateNewChunk(normCapacity, clearHead);
+    }
+
+    /**
+     * Allocates the capacities {@code reqCapacities[indices[start..end)]} and stores the global handles at the same
+     * indices of {@code handles}. The allocations the thread cache cannot serve are made under a single
+     * acquisition of the arena lock, as long as they fit into the existing chunks. The order of
+     * {@code indices[start..end)} is changed.
+     * <p>
+     * If an allocation fails, the handles of the allocations made so far are left in {@code handles}, all
+     * others stay as they were.
+     * </p>
+     *
+     * @see #allocateHandle(PoolThreadCache, int, boolean)
+     */
+    void allocateHandles(PoolThreadCache cache, int[] reqCapacities, int[] indices, int start, int end,
+                         long[] handles, boolean clearHead) {
+        int misses = start;
+        for (int k = start; k < end; k ++) {
+            int i = indices[k];
+            int normCapacity = normalizeCapacity(reqCapacities[i]);
+            if (normCapacity > maxPooledCapacity) {
+                cache.allocated(reqCapacities[i], reqCapacities[i]);
+                handles[i] = allocateHuge(reqCapacities[i]);
+                continue;
+            }
+            cache.allocated(reqCapacities[i], normCapacity);
+            long handle = cache.allocate(this, normCapacity);
+            if (handle >= 0) {
+                handles[i] = handle;
             } else {
-                tableIdx = 0;
-                int i = normCapacity >>> 10;
-                while (i != 0) {
-                    i >>>= 1;
-                    tableIdx ++;
+                indices[misses ++] = i;
+            }
+        }
+        if (misses == start) {
+            return;
+        }
+
+        int remaining = start;
+        long lockRequested = lockRequested();
+        synchronized (this) {
+            lockAcquired(lockRequested);
+            for (int k = start; k < misses; k ++) {
+                int i = indices[k];
+                long handle = allocateFromPools(normalizeCapacity(reqCapacities[i]), clearHead);
+                if (handle >= 0) {
+                    handles[i] = handle;
+                } else {
+                    indices[remaining ++] = i;
                 }
-                table = smallSubpagePools;
             }
+        }
+        for (int k = start; k < remaining; k ++) {
+            int i = indices[k];
+            handles[i] = allocateNewChunk(normalizeCapacity(reqCapacities[i]), clearHead);
+        }
+    }
 
-            synchronized (this) {
-                final PoolSubpage<T> head = table[tableIdx];
+    /**
+     * Allocates from the subpage pools and the existing chunks, or returns {@code -1} if a new chunk is needed.
+     * A subpage pool with a free element is served under the lock of its head only, so allocations of different
+     * size classes do not contend with each other nor with the chunk lists.
+     */
+    private long allocateFromPools(int normCapacity, boolean clearHead) {
+        if (isTinyOrSmall(normCapacity)) { // capacity < pageSize
+            final PoolSubpage<T> head = findSubpagePoolHead(normCapacity);
+            head.lock.lock();
+            try {
                 final PoolSubpage<T> s = head.next;
                 if (s != head) {
                     assert s.doNotDestroy && s.elemSize == normCapacity;
                     long handle = s.allocate();
                     assert handle >= 0;
-                    s.chunk.initBufWithSubpage(buf, handle, reqCapacity);
-                    return;
+                    head.allocations ++;
+                    if (clearHead) {
+                        clearHead(s.chunk, handle);
+                    }
+                    return PoolChunk.globalHandle(s.chunk.id, handle);
                 }
+            } finally {
+                head.lock.unlock();
             }
-        } else if (normCapacity > chunkSize) {
-            allocateHuge(buf, reqCapacity);
-            return;
         }
+        long lockRequested = lockRequested();
+        synchronized (this) {
+            lockAcquired(lockRequested);
+            return allocateFromChunks(normCapacity, clearHead);
+        }
+    }
 
-        allocateNormal(buf, reqCapacity, normCapacity);
+    private long allocateNewChunk(int normCapacity, boolean clearHead) {
+        // registered before looking for room, so a free which makes room after the look signals this thread
+        parent.addQuotaWaiter();
+        try {
+            return allocateNewChunk0(normCapacity, clearHead);
+        } finally {
+            parent.removeQuotaWaiter();
+        }
     }
 
-    private synchronized void allocateNormal(PooledByteBuf<T> buf, int reqCapacity, int normCapacity) {
-        if (q050.allocate(buf, reqCapacity, normCapacity) || q025.allocate(buf, reqCapacity, normCapacity) ||
-            q000.allocate(buf, reqCapacity, normCapacity) || qInit.allocate(buf, reqCapacity, normCapacity) ||
-            q075.allocate(buf, reqCapacity, normCapacity) || q100.allocate(buf, reqCapacity, normCapacity)) {
-            return;
+    private long allocateNewChunk0(int normCapacity, boolean clearHead) {
+        long deadline = 0;
+        for (;;) {
+            // read before looking for room, so a chunk added or memory released meanwhile ends the wait below
+            long quotaSignals = parent.quotaSignals();
+            // The quota is reserved before the provision lock is taken and the wait for it happens after the lock is
+            // released, so a thread waiting for the quota never holds up the others.
+            boolean reserved = parent.tryReserveMemory(chunkSize);
+            try {
+                // Only one thread creates a chunk at a time, the others find room in it once they get the lock.
+                synchronized (provisionLock) {
+                    long handle = allocateFromPools(normCapacity, clearHead);
+                    if (handle >= 0) {
+                        return handle;
+                    }
+                    if (reserved) {
+                        // Zeroing or mapping the memory of a new chunk takes long, so it is done before taking the
+                        // arena lock. The memory of the new chunk is zeroed already.
+                        PoolChunk<T> c = newChunk(pageSize, maxOrder, pageShifts, chunkSize);
+                        reserved = false;
+                        long lockRequested = lockRequested();
+                        synchronized (this) {
+                            lockAcquired(lockRequested);
+                            parent.chunkTable.register(c);
+                            handle = c.allocate(normCapacity);
+                            assert handle > 0;
+                            qInit.add(c);
+                        }
+                        // threads waiting for the quota may fit into the new chunk
+                        parent.signalQuotaWaiters();
+                        return PoolChunk.globalHandle(c.id, handle);
+                    }
+                }
+            } finally {
+                if (reserved) {
+                    parent.releaseMemory(chunkSize);
+                }
+            }
+
+            if (deadline == 0) {
+                deadline = System.nanoTime() + parent.quotaWaitNanos();
+            }
+            parent.awaitQuota(quotaSignals, chunkSize, deadline);
+        }
+    }
+
+    // must be called with the arena lock held
+    private long allocateFromChunks(int normCapacity, boolean clearHead) {
+        int depth = runDepth(normCapacity);
+        long handle;
+        if ((handle = q050.allocate(normCapacity, depth)) >= 0 || (handle = q025.allocate(normCapacity, depth)) >= 0 ||
+            (handle = q000.allocate(normCapacity, depth)) >= 0 || (handle = qInit.allocate(normCapacity, depth)) >= 0 ||
+            (handle = q075.allocate(normCapacity, depth)) >= 0 || (handle = q100.allocate(normCapacity, depth)) >= 0 ||
+            (handle = allocateFromRetainedChunk(normCapacity)) >= 0) {
+            if (clearHead) {
+                clearHead(chunk(handle), PoolChunk.localHandle(handle));
+            }
+            return handle;
         }
+        return -1;
+    }
 
-        // Add a new chunk.
-        PoolChunk<T> c = newChunk(pageSize, maxOrder, pageShifts, chunkSize);
+    // must be called with the arena lock held
+    private long allocateFromRetainedChunk(int normCapacity) {
+        // the chunk emptied last, whose memory is the most likely to be resident still
+        PoolChunk<T> c = retainedChunks.pollLast();
+        if (c == null) {
+            return -1;
+        }
+        numRetainedChunks --;
         long handle = c.allocate(normCapacity);
         assert handle > 0;
-        c.initBuf(buf, handle, reqCapacity);
         qInit.add(c);
+        return PoolChunk.globalHandle(c.id, handle);
     }
 
-    private void allocateHuge(PooledByteBuf<T> buf, int reqCapacity) {
-        buf.initUnpooled(newUnpooledChunk(reqCapacity), reqCapacity);
+    private static void clearHead(PoolChunk<?> chunk, long handle) {
+        PlatformDependent.putLong(chunk.memoryAddress + chunk.offset(handle), 0);
     }
 
-    synchronized void free(PoolChunk<T> chunk, long handle) {
+    private long allocateHuge(int reqCapacity) {
+        parent.reserveMemory(reqCapacity);
+        boolean reserved = true;
+        try {
+            PoolChunk<T> c = newUnpooledChunk(reqCapacity);
+            reserved = false;
+            parent.chunkTable.register(c);
+            hugeAllocations.incrementAndGet();
+            hugeBytes.addAndGet(c.chunkSize);
+            return PoolChunk.globalHandle(c.id, 0);
+        } finally {
+            if (reserved) {
+                parent.releaseMemory(reqCapacity);
+            }
+        }
+    }
+
+    void free(PoolChunk<T> chunk, long handle, int normCapacity) {
         if (chunk.unpooled) {
-            destroyChunk(chunk);
+            releaseChunk(chunk);
         } else {
-            chunk.parent.free(chunk, handle);
+            PoolThreadCache cache = parent.threadCache.get();
+            if (cache.add(this, PoolChunk.globalHandle(chunk.id, handle), normCapacity)) {
+                // cached so not free it.
+                return;
+            }
+            freeChunk(chunk, handle);
         }
     }
 
-    PoolSubpage<T> findSubpagePoolHead(int elemSize) {
-        int tableIdx;
-        PoolSubpage<T>[] table;
-        if ((elemSize & 0xFFFFFE00) == 0) { // < 512
-            tableIdx = elemSize >>> 4;
-            table = tinySubpagePools;
-        } else {
-            tableIdx = 0;
-            elemSize >>>= 10;
-            while (elemSize != 0) {
-                elemSize >>>= 1;
-                tableIdx ++;
+    /**
+     * Frees the allocation identified by the global {@code handle}.
+     */
+    void freeHandle(long handle) {
+        PoolChunk<T> chunk = chunk(handle);
+        long localHandle = PoolChunk.localHandle(handle);
+        free(chunk, localHandle, chunk.capacity(localHandle));
+    }
+
+    /**
+     * Frees the allocations identified by the global handles {@code handles[start..end)}, all of which belong to
+     * this arena. The allocations the thread cache does not take are returned to their chunks under a single
+     * acquisition of the arena lock. The order of {@code handles[start..end)} is changed.
+     */
+    void freeHandles(PoolThreadCache cache, long[] handles, int start, int end) {
+        int pending = start;
+        for (int k = start; k < end; k ++) {
+            long handle = handles[k];
+            PoolChunk<T> chunk = chunk(handle);
+            if (chunk.unpooled) {
+                releaseChunk(chunk);
+            } else if (!cache.add(this, handle, chunk.capacity(PoolChunk.localHandle(handle)))) {
+                handles[pending ++] = handle;
+            }
+        }
+        if (pending == start) {
+            return;
+        }
+
+        int remaining = start;
+        for (int k = start; k < pending; k ++) {
+            long handle = handles[k];
+            if (!freeSubpageElement(chunk(handle), PoolChunk.localHandle(handle))) {
+                handles[remaining ++] = handle;
+            }
+        }
+        if (remaining == start) {
+            return;
+        }
+
+        long lockRequested = lockRequested();
+        synchronized (this) {
+            lockAcquired(lockRequested);
+            for (int k = start; k < remaining; k ++) {
+                long handle = handles[k];
+                PoolChunk<T> chunk = chunk(handle);
+                // released by releaseAll() after the handle was looked up
+                if (chunk != null && chunk.id != 0) {
+                    chunk.parent.free(chunk, PoolChunk.localHandle(handle));
+                }
+            }
+        }
+        parent.signalQuotaWaitersIfAny();
+    }
+
+    /**
+     * Returns the allocation identified by the global {@code handle} to its chunk, bypassing the thread cache.
+     * Does nothing if the chunk has been released by {@link PooledByteBufAllocator#releaseAll()} in the meantime.
+     */
+    void freeChunk(long handle) {
+        PoolChunk<T> chunk = chunk(handle);
+        if (chunk != null) {
+            freeChunk(chunk, PoolChunk.localHandle(handle));
+        }
+    }
+
+    void freeChunk(PoolChunk<T> chunk, long handle) {
+        if (!freeSubpageElement(chunk, handle)) {
+            long lockRequested = lockRequested();
+            synchronized (this) {
+                lockAcquired(lockRequested);
+                // the chunk may have been released by releaseAll() after the caller looked it up
+                if (chunk.id != 0) {
+                    chunk.parent.free(chunk, handle);
+                }
+            }
+        }
+        parent.signalQuotaWaitersIfAny();
+    }
+
+    /**
+     * Returns an element of a subpage to the subpage under the lock of its pool head.
+     *
+     * @return {@code true} if nothing is left to do, {@code false} if the allocation is a run or a subpage which
+     *         became unused, which has to be returned to the chunk under the arena lock
+     */
+    private static boolean freeSubpageElement(PoolChunk<?> chunk, long handle) {
+        return chunk != null && (int) (handle >>> 32) != 0 && chunk.freeSubpageElement(handle);
+    }
+
+    /**
+     * Keeps the {@code chunk}, which has become empty, for reuse if the arena retains less than
+     * {@link PooledByteBufAllocator#maxRetainedChunks} chunks, or releases it. Must be called with the arena lock
+     * held.
+     */
+    void retainOrRelease(PoolChunk<T> chunk) {
+        // the chunk has been removed from its list already
+        if (numRetainedChunks >= parent.maxRetainedChunks && numPooledChunks() >= reservedChunks) {
+            releaseChunk(chunk);
+            return;
+        }
+        chunk.parent = null;
+        chunk.retainedNanos = System.nanoTime();
+        retainedChunks.addLast(chunk);
+        numRetainedChunks ++;
+        parent.scheduleTrim();
+    }
+
+    /**
+     * Creates a chunk ahead of time, faults its memory in and retains it. The arena keeps at least as many chunks as
+     * have been reserved, however long they stay empty.
+     */
+    void reserveChunk() {
+        parent.reserveMemory(chunkSize);
+        boolean reserved = true;
+        try {
+            PoolChunk<T> c = newChunk(pageSize, maxOrder, pageShifts, chunkSize);
+            reserved = false;
+            preFault(c);
+            synchronized (this) {
+                parent.chunkTable.register(c);
+                c.retainedNanos = System.nanoTime();
+                retainedChunks.addLast(c);
+                numRetainedChunks ++;
+                reservedChunks ++;
+            }
+            parent.signalQuotaWaiters();
+        } finally {
+            if (reserved) {
+                parent.releaseMemory(chunkSize);
             }
-            table = smallSubpagePools;
         }
+    }
 
-        return table[tableIdx];
+    /**
+     * Releases the retained chunks which have been unused for at least {@code decayNanos}, as long as the arena
+     * keeps its reserved chunks.
+     *
+     * @return {@code true} if chunks which may be released later remain retained
+     */
+    boolean trimRetainedChunks(long decayNanos) {
+        List<PoolChunk<T>> decayed = null;
+        boolean retained;
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (hasTrimmableChunks0()) {
+                PoolChunk<T> c = retainedChunks.peekFirst();
+                if (now - c.retainedNanos < decayNanos) {
+                    break;
+                }
+                retainedChunks.pollFirst();
+                numRetainedChunks --;
+                if (decayed == null) {
+                    decayed = new ArrayList<PoolChunk<T>>();
+                }
+                decayed.add(c);
+            }
+            retained = hasTrimmableChunks0();
+        }
+        // destroying chunks takes long, so it is done without the arena lock
+        if (decayed != null) {
+            for (PoolChunk<T> c: decayed) {
+                releaseChunk(c);
+            }
+        }
+        return retained;
+    }
+
+    synchronized boolean hasTrimmableChunks() {
+        return hasTrimmableChunks0();
+    }
+
+    // must be called with the arena lock held
+    private boolean hasTrimmableChunks0() {
+        return !retainedChunks.isEmpty() && numPooledChunks() > reservedChunks;
+    }
+
+    // must be called with the arena lock held
+    private int numPooledChunks() {
+        return qInit.size() + q000.size() + q025.size() + q050.size() + q075.size() + q100.size() + numRetainedChunks;
+    }
+
+    void releaseChunk(PoolChunk<T> chunk) {
+        // if releaseAll() got to the chunk first, it destroys the chunk as well
+        if (parent.chunkTable.unregister(chunk)) {
+            if (chunk.unpooled) {
+                hugeDeallocations.incrementAndGet();
+                hugeBytes.addAndGet(-chunk.chunkSize);
+            }
+            if (!parent.deferDestroy(chunk)) {
+                destroy(chunk);
+            }
+        }
+    }
+
+    /**
+     * Frees the memory of the {@code chunk} and returns it to the quota of the allocator.
+     */
+    void destroy(PoolChunk<T> chunk) {
+        destroyChunk(chunk);
+        parent.releaseMemory(chunk.chunkSize);
+    }
+
+    private static <T> void resetSubpagePool(PoolSubpage<T> head) {
+        head.lock.lock();
+        try {
+            head.prev = head;
+            head.next = head;
+            head.deallocations = head.allocations;
+        } finally {
+            head.lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets all chunks and subpages of this arena and invalidates the allocations cached by thread caches.
+     * The chunks themselves must have been removed from the chunk table before and are destroyed by the caller.
+     */
+    synchronized void reset() {
+        for (PoolSubpage<T> head: tinySubpagePools) {
+            resetSubpagePool(head);
+        }
+        for (PoolSubpage<T> head: smallSubpagePools) {
+            resetSubpagePool(head);
+        }
+        // the released allocations count as deallocated
+        normalDeallocations = normalAllocations;
+        usedBytes = 0;
+        hugeDeallocations.set(hugeAllocations.get());
+        hugeBytes.set(0);
+        qInit.clear();
+        q000.clear();
+        q025.clear();
+        q050.clear();
+        q075.clear();
+        q100.clear();
+        retainedChunks.clear();
+        numRetainedChunks = 0;
+        reservedChunks = 0;
+        generation ++;
+    }
+
+    /**
+     * Returns the time to pass to {@link #lockAcquired(long)} once the arena lock is taken, or {@code 0} if the
+     * acquisition is not timed.
+     */
+    private long lockRequested() {
+        return (lockAcquisitions & LOCK_SAMPLE_MASK) == 0 ? System.nanoTime() : 0;
+    }
+
+    // must be called with the arena lock held
+    private void lockAcquired(long lockRequested) {
+        lockAcquisitions ++;
+        if (lockRequested != 0) {
+            lockWaitNanos += (System.nanoTime() - lockRequested) * (LOCK_SAMPLE_MASK + 1);
+        }
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getChunksInit() {
+        return qInit.size();
+    }
+
+    @Override
+    public int getChunks000() {
+        return q000.size();
+    }
+
+    @Override
+    public int getChunks025() {
+        return q025.size();
+    }
+
+    @Override
+    public int getChunks050() {
+        return q050.size();
+    }
+
+    @Override
+    public int getChunks075() {
+        return q075.size();
+    }
+
+    @Override
+    public int getChunks100() {
+        return q100.size();
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public int getRetainedChunks() {
+        return numRetainedChunks;
+    }
+
+    @Override
+    public long getFreeBytes() {
+        long chunks = qInit.size() + q000.size() + q025.size() + q050.size() + q075.size() + q100.size() +
+                numRetainedChunks;
+        return Math.max(0, chunks * chunkSize - usedBytes);
+    }
+
+    @Override
+    public long getHugeBytes() {
+        return hugeBytes.get();
+    }
+
+    @Override
+    public long getTinyAllocations() {
+        return sumAllocations(tinySubpagePools);
+    }
+
+    @Override
+    public long getSmallAllocations() {
+        return sumAllocations(smallSubpagePools);
+    }
+
+    @Override
+    public long getNormalAllocations() {
+        return normalAllocations;
+    }
+
+    @Override
+    public long getHugeAllocations() {
+        return hugeAllocations.get();
+    }
+
+    @Override
+    public long getTinyDeallocations() {
+        return sumDeallocations(tinySubpagePools);
+    }
+
+    @Override
+    public long getSmallDeallocations() {
+        return sumDeallocations(smallSubpagePools);
+    }
+
+    @Override
+    public long getNormalDeallocations() {
+        return normalDeallocations;
+    }
+
+    @Override
+    public long getHugeDeallocations() {
+        return hugeDeallocations.get();
+    }
+
+    @Override
+    public long getActiveTinyAllocations() {
+        return Math.max(0, getTinyAllocations() - getTinyDeallocations());
+    }
+
+    @Override
+    public long getActiveSmallAllocations() {
+        return Math.max(0, getSmallAllocations() - getSmallDeallocations());
+    }
+
+    @Override
+    public long getActiveNormalAllocations() {
+        return Math.max(0, normalAllocations - normalDeallocations);
+    }
+
+    @Override
+    public long getActiveHugeAllocations() {
+        return Math.max(0, hugeAllocations.get() - hugeDeallocations.get());
+    }
+
+    @Override
+    public long getLockAcquisitions() {
+        return lockAcquisitions;
+    }
+
+    @Override
+    public long getLockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    private static long sumAllocations(PoolSubpage<?>[] heads) {
+        long sum = 0;
+        for (PoolSubpage<?> head: heads) {
+            sum += head.allocations;
+        }
+        return sum;
+    }
+
+    private static long sumDeallocations(PoolSubpage<?>[] heads) {
+        long sum = 0;
+        for (PoolSubpage<?> head: heads) {
+            sum += head.deallocations;
+        }
+        return sum;
+    }
+
+    @SuppressWarnings("unchecked")
+    PoolChunk<T> chunk(long handle) {
+        return (PoolChunk<T>) parent.chunkTable.get(PoolChunk.chunkId(handle));
+    }
+
+    /**
+     * Returns {@code true} if allocations of the normalized capacity are elements of subpages, {@code false} if
+     * they are runs of pages.
+     */
+    boolean isTinyOrSmall(int normCapacity) {
+        return (normCapacity & subpageOverflowMask) == 0 ||
+               normCapacity < maxRunSize && subpageRunSizes[smallIdx(normCapacity)] != 0;
+    }
+
+    static boolean isTiny(int normCapacity) {
+        return (normCapacity & 0xFFFFFE00) == 0;
+    }
+
+    static int tinyIdx(int normCapacity) {
+        return normCapacity >>> 4;
+    }
+
+    int smallIdx(int normCapacity) {
+        int log2 = 31 - Integer.numberOfLeadingZeros(normCapacity);
+        int sub = normCapacity >>> log2 - log2SizeClassesPerDoubling & (1 << log2SizeClassesPerDoubling) - 1;
+        return (log2 - 9 << log2SizeClassesPerDoubling) + sub;
+    }
+
+    /**
+     * Returns the length of the runs of the subpages of a tiny or small normalized capacity.
+     */
+    int subpageRunSize(int normCapacity) {
+        return isTiny(normCapacity) ? pageSize : subpageRunSizes[smallIdx(normCapacity)];
+    }
+
+    /**
+     * Returns the depth in the memory map of a chunk of the run a pooled allocation of a normalized capacity takes
+     * from the chunk, which for tiny and small capacities is the run of a new subpage.
+     */
+    private int runDepth(int normCapacity) {
+        int runLength = isTinyOrSmall(normCapacity) ? subpageRunSize(normCapacity) : normCapacity;
+        return maxOrder - (Integer.numberOfTrailingZeros(runLength) - pageShifts);
+    }
+
+    int normalIdx(int normCapacity) {
+        return Integer.numberOfTrailingZeros(normCapacity >>> pageShifts);
+    }
+
+    static int numTinySubpagePools() {
+        return NUM_TINY_SUBPAGE_POOLS;
+    }
+
+    int numSmallSubpagePools() {
+        return smallSubpagePools.length;
+    }
+
+    PoolSubpage<T> findSubpagePoolHead(int elemSize) {
+        if (isTiny(elemSize)) { // < 512
+            return tinySubpagePools[tinyIdx(elemSize)];
+        }
+        return smallSubpagePools[smallIdx(elemSize)];
     }
 
     private int normalizeCapacity(int reqCapacity) {
         if (reqCapacity < 0) {
             throw new IllegalArgumentException("capacity: " + reqCapacity + " (expected: 0+)");
         }
-        if (reqCapacity >= chunkSize) {
+        if (reqCapacity >= maxPooledCapacity) {
             return reqCapacity;
         }
 
-        if ((reqCapacity & 0xFFFFFE00) != 0) { // >= 512
-            // Doubled
-
-            int normalizedCapacity = reqCapacity;
-            normalizedCapacity |= normalizedCapacity >>>  1;
-            normalizedCapacity |= normalizedCapacity >>>  2;
-            normalizedCapacity |= normalizedCapacity >>>  4;
-            normalizedCapacity |= normalizedCapacity >>>  8;
-            normalizedCapacity |= normalizedCapacity >>> 16;
-            normalizedCapacity ++;
-
-            if (normalizedCapacity < 0) {
-                normalizedCapacity >>>= 1;
+        if (reqCapacity > 512) {
+            // rounded up to the next of the size classes between this and the next power of two
+            int log2 = 31 - Integer.numberOfLeadingZeros(reqCapacity - 1);
+            int step = 1 << log2 - log2SizeClassesPerDoubling;
+            int normalizedCapacity = (reqCapacity - 1 | step - 1) + 1;
+            if (normalizedCapacity >= maxRunSize) {
+                // Doubled
+                return 1 << log2 + 1;
             }
-
-            return normalizedCapacity;
+            return sizeClasses[smallIdx(normalizedCapacity)];
         }
 
         // Quantum-spaced
@@ -209,12 +943,19 @@ abstract class PoolArena<T> {
         return (reqCapacity & ~15) + 16;
     }
 
-    protected abstract PoolChunk<T> newChunk(int pageSize, int maxOrder, int pageShifts, int chunkSize);
+    protected abstract PoolChunk<T> newChunk(int pageSize, int maxOrder, int pageShifts, long chunkSize);
     protected abstract PoolChunk<T> newUnpooledChunk(int capacity);
     protected abstract PooledByteBuf<T> newByteBuf();
     protected abstract void memoryCopy(T src, int srcOffset, T dst, int dstOffset, int length);
     protected abstract void destroyChunk(PoolChunk<T> chunk);
 
+    /**
+     * Makes sure the memory of a new {@code chunk} is resident. Does nothing by default, as the memory of a new chunk
+     * is zeroed, which faults it in.
+     */
+    protected void preFault(PoolChunk<T> chunk) {
+    }
+
     public synchronized String toString() {
         StringBuilder buf = new StringBuilder();
         buf.append("Chunk(s) at 0~25%:");
@@ -262,7 +1003,7 @@ abstract class PoolArena<T> {
         }
         buf.append(StringUtil.NEWLINE);
         buf.append("small subpages:");
-        for (int i = 1; i < smallSubpagePools.length; i ++) {
+        for (int i = 0; i < smallSubpagePools.length; i ++) {
             PoolSubpage<T> head = smallSubpagePools[i];
             if (head.next == head) {
                 continue;
@@ -285,28 +1026,52 @@ abstract class PoolArena<T> {
         return buf.toString();
     }
 
-    static final class DirectArena extends PoolArena<ByteBuffer> {
+    /**
+     * Arena whose chunks are direct {@link ByteBuffer}s. Chunks larger than {@value #MAX_BUFFER_CHUNK_SIZE} bytes do
+     * not fit into a {@code ByteBuffer} and are native memory without one, which can only be used through handles.
+     */
+    static class DirectArena extends PoolArena<ByteBuffer> {
+
+        static final int MAX_BUFFER_CHUNK_SIZE = 1 << 30;
 
         private static final boolean HAS_UNSAFE = PlatformDependent.hasUnsafe();
 
-        DirectArena(PooledByteBufAllocator parent, int pageSize, int maxOrder, int pageShifts, int chunkSize) {
-            super(parent, pageSize, maxOrder, pageShifts, chunkSize);
+        DirectArena(PooledByteBufAllocator parent, int index, int pageSize, int maxOrder, int pageShifts,
+                    long chunkSize, int sizeClassesPerDoubling) {
+            super(parent, index, pageSize, maxOrder, pageShifts, chunkSize, sizeClassesPerDoubling);
         }
 
         @Override
-        protected PoolChunk<ByteBuffer> newChunk(int pageSize, int maxOrder, int pageShifts, int chunkSize) {
+        protected PoolChunk<ByteBuffer> newChunk(int pageSize, int maxOrder, int pageShifts, long chunkSize) {
+            if (chunkSize > MAX_BUFFER_CHUNK_SIZE) {
+                long memoryAddress = PlatformDependent.allocateMemory(chunkSize);
+                // the memory of a new chunk is expected to be zeroed, like the memory of a new ByteBuffer
+                PlatformDependent.setMemory(memoryAddress, chunkSize, (byte) 0);
+                return new PoolChunk<ByteBuffer>(
+                        this, null, memoryAddress, pageSize, maxOrder, pageShifts, chunkSize);
+            }
+            ByteBuffer memory = ByteBuffer.allocateDirect((int) chunkSize);
             return new PoolChunk<ByteBuffer>(
-                    this, ByteBuffer.allocateDirect(chunkSize), pageSize, maxOrder, pageShifts, chunkSize);
+                    this, memory, memoryAddress(memory), pageSize, maxOrder, pageShifts, chunkSize);
         }
 
         @Override
         protected PoolChunk<ByteBuffer> newUnpooledChunk(int capacity) {
-            return new PoolChunk<ByteBuffer>(this, ByteBuffer.allocateDirect(capacity), capacity);
+            ByteBuffer memory = ByteBuffer.allocateDirect(capacity);
+            return new PoolChunk<ByteBuffer>(this, memory, memoryAddress(memory), capacity);
+        }
+
+        static long memoryAddress(ByteBuffer memory) {
+            return HAS_UNSAFE ? PlatformDependent.directBufferAddress(memory) : 0;
         }
 
         @Override
         protected void destroyChunk(PoolChunk<ByteBuffer> chunk) {
-            PlatformDependent.freeDirectBuffer(chunk.memory);
+            if (chunk.memory == null) {
+                PlatformDependent.freeMemory(chunk.memoryAddress);
+            } else {
+                PlatformDependent.freeDirectBuffer(chunk.memory);
+            }
         }
 
         @Override
@@ -338,4 +1103,127 @@ abstract class PoolArena<T> {
             }
         }
     }
+
+    /**
+     * Arena whose chunks are memory-mapped regions of files in a directory, so the operating system can page out
+     * the memory not in use and the arena can hold more data than fits into RAM. Every chunk is a file of its own,
+     * which is deleted when the chunk is destroyed.
+     */
+    static final class MappedArena extends DirectArena {
+
+        private final File directory;
+        private final boolean preFault;
+        // the files of the chunks, null for the files unlinked while mapped
+        private final Map<PoolChunk<ByteBuffer>, File> files = new IdentityHashMap<PoolChunk<ByteBuffer>, File>();
+
+        MappedArena(PooledByteBufAllocator parent, int index, int pageSize, int maxOrder, int pageShifts,
+                    long chunkSize, int sizeClassesPerDoubling, File directory, boolean preFault) {
+            super(parent, index, pageSize, maxOrder, pageShifts, chunkSize, sizeClassesPerDoubling);
+            this.directory = directory;
+            this.preFault = preFault;
+        }
+
+        @Override
+        protected PoolChunk<ByteBuffer> newChunk(int pageSize, int maxOrder, int pageShifts, long chunkSize) {
+            File file = newFile();
+            // the allocator keeps mapped chunks within MAX_BUFFER_CHUNK_SIZE
+            MappedByteBuffer memory = map(file, (int) chunkSize);
+            PoolChunk<ByteBuffer> chunk = new PoolChunk<ByteBuffer>(
+                    this, memory, memoryAddress(memory), pageSize, maxOrder, pageShifts, chunkSize);
+            synchronized (files) {
+                files.put(chunk, unlink(file));
+            }
+            return chunk;
+        }
+
+        @Override
+        protected PoolChunk<ByteBuffer> newUnpooledChunk(int capacity) {
+            File file = newFile();
+            MappedByteBuffer memory = map(file, capacity);
+            PoolChunk<ByteBuffer> chunk = new PoolChunk<ByteBuffer>(this, memory, memoryAddress(memory), capacity);
+            synchronized (files) {
+                files.put(chunk, unlink(file));
+            }
+            return chunk;
+        }
+
+        @Override
+        protected void destroyChunk(PoolChunk<ByteBuffer> chunk) {
+            File file;
+            synchronized (files) {
+                file = files.remove(chunk);
+            }
+            // unmaps the file
+            super.destroyChunk(chunk);
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        @Override
+        protected void preFault(PoolChunk<ByteBuffer> chunk) {
+            // a new mapping is not touched, unless all mappings are loaded anyway
+            if (!preFault) {
+                ((MappedByteBuffer) chunk.memory).load();
+            }
+        }
+
+        /**
+         * Writes the modified pages of all chunks back to their files. The caller keeps the chunks released
+         * meanwhile from being destroyed, see {@link PooledByteBufAllocator#deferDestroy(PoolChunk)}.
+         */
+        void flush() {
+            List<PoolChunk<ByteBuffer>> chunks;
+            synchronized (files) {
+                chunks = new ArrayList<PoolChunk<ByteBuffer>>(files.keySet());
+            }
+            // forcing may take long, so it does not hold up the chunks which are created or destroyed meanwhile
+            for (PoolChunk<ByteBuffer> chunk: chunks) {
+                ((MappedByteBuffer) chunk.memory).force();
+            }
+        }
+
+        private File newFile() {
+            try {
+                return File.createTempFile("hugecast-" + index + '-', ".chunk", directory);
+            } catch (IOException e) {
+                throw new IllegalStateException("failed to create a chunk file in " + directory, e);
+            }
+        }
+
+        /**
+         * Removes the name of a mapped file, so its content does not outlive the process however it ends. Platforms
+         * which do not delete mapped files keep it until the chunk is destroyed.
+         *
+         * @return {@code null} if the file was deleted, the {@code file} otherwise
+         */
+        private static File unlink(File file) {
+            return file.delete() ? null : file;
+        }
+
+        private MappedByteBuffer map(File file, int capacity) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(capacity);
+                // the mapping stays valid after the file is closed
+                MappedByteBuffer memory = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                if (preFault) {
+                    memory.load();
+                }
+                return memory;
+            } catch (IOException e) {
+                file.delete();
+                throw new IllegalStateException("failed to map " + capacity + " bytes of " + file, e);
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException ignore) {
+                        // the mapping is not affected
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+/**
+ * Statistics of an arena of a {@link PooledByteBufAllocator}, see {@link PooledByteBufAllocator#arenaMetrics()}.
+ * <p>
+ * Every value is maintained under the lock which guards the operation it counts and is read without taking any
+ * lock, so reading never blocks an allocation. The values are not a consistent snapshot of the arena and may
+ * trail concurrent operations slightly.
+ * </p>
+ * <p>
+ * Allocations and deallocations count the requests which reach the arena. Allocations served by a thread cache
+ * and deallocations taken by one are not counted, so the active allocations include those held by the thread
+ * caches. Tiny allocations are below 512 bytes, small ones are the other elements of subpages, normal ones runs of
+ * pages up to the chunk size and huge ones get an unpooled chunk of their own.
+ * </p>
+ */
+public interface PoolArenaMetric {
+
+    /**
+     * Returns the index of the arena in its allocator, which is also the stripe it serves.
+     */
+    int getIndex();
+
+    /**
+     * Returns the number of chunks with a usage below 25% which have never been filled to 25%.
+     */
+    int getChunksInit();
+
+    /**
+     * Returns the number of chunks with a usage of 1-50%.
+     */
+    int getChunks000();
+
+    /**
+     * Returns the number of chunks with a usage of 25-75%.
+     */
+    int getChunks025();
+
+    /**
+     * Returns the number of chunks with a usage of 50-100%.
+     */
+    int getChunks050();
+
+    /**
+     * Returns the number of chunks with a usage of 75-100%.
+     */
+    int getChunks075();
+
+    /**
+     * Returns the number of full chunks.
+     */
+    int getChunks100();
+
+    /**
+     * Returns the number of empty chunks the arena keeps for reuse until they decay, see
+     * {@code io.netty.allocator.maxRetainedChunks}.
+     */
+    int getRetainedChunks();
+
+    /**
+     * Returns the bytes of the pooled chunks which are allocated, counting subpages as a whole.
+     */
+    long getUsedBytes();
+
+    /**
+     * Returns the bytes of the pooled chunks which are free.
+     */
+    long getFreeBytes();
+
+    /**
+     * Returns the bytes of the unpooled chunks of huge allocations.
+     */
+    long getHugeBytes();
+
+    long getTinyAllocations();
+
+    long getSmallAllocations();
+
+    long getNormalAllocations();
+
+    long getHugeAllocations();
+
+    long getTinyDeallocations();
+
+    long getSmallDeallocations();
+
+    long getNormalDeallocations();
+
+    long getHugeDeallocations();
+
+    long getActiveTinyAllocations();
+
+    long getActiveSmallAllocations();
+
+    long getActiveNormalAllocations();
+
+    long getActiveHugeAllocations();
+
+    /**
+     * Returns the number of times the lock of the chunk lists was taken to allocate or free. Allocations and frees
+     * served by a subpage pool take only the lock of the pool and are not counted.
+     */
+    long getLockAcquisitions();
+
+    /**
+     * Returns an estimate of the time in nanoseconds threads waited for the lock of the chunk lists, extrapolated
+     * from a sample of the acquisitions.
+     */
+    long getLockWaitNanos();
+}
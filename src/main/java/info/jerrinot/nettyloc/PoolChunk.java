@@ -16,80 +16,96 @@
 
 package info.jerrinot.nettyloc;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 final class PoolChunk<T> {
     private static final int ST_UNUSED = 0;
     private static final int ST_BRANCH = 1;
     private static final int ST_ALLOCATED = 2;
     private static final int ST_ALLOCATED_SUBPAGE = ST_ALLOCATED | 1;
 
-    private static final long multiplier = 0x5DEECE66DL;
-    private static final long addend = 0xBL;
-    private static final long mask = (1L << 48) - 1;
-
     final PoolArena<T> arena;
+    // null if the chunk is native memory too large for a ByteBuffer, see PoolArena.DirectArena
     final T memory;
+    final long memoryAddress;
     final boolean unpooled;
 
-    private final int[] memoryMap;
+    /** Assigned by the {@link PoolChunkTable} of the allocator while the chunk is alive. */
+    int id;
+
+    /**
+     * The state of each node of the buddy tree, the root at index 1 and the children of node i at 2i and 2i + 1. The
+     * offset and length of the run of a node follow from its index, see {@link #runOffset(int)}.
+     */
+    private final byte[] memoryMap;
+    /**
+     * The depth of the largest free run in the subtree of each node of {@link #memoryMap}, which is the depth of the
+     * node itself if it is free as a whole, or {@link #unusable} if the subtree has no free run. Guides an
+     * allocation straight down to a free run of the requested depth.
+     */
+    private final byte[] freeDepths;
+    private final byte unusable;
+    private final int maxOrder;
+    /** The subpages of the runs which have been split into elements, indexed like {@link #memoryMap}. */
     private final PoolSubpage<T>[] subpages;
-    /** Used to determine if the requested capacity is equal to or greater than pageSize. */
-    private final int subpageOverflowMask;
-    private final int pageSize;
     private final int pageShifts;
+    // log2(chunkSize) of a pooled chunk
+    private final int chunkShifts;
 
-    private final int chunkSize;
-    private final int maxSubpageAllocs;
+    final long chunkSize;
 
-    private long random = (System.nanoTime() ^ multiplier) & mask;
-
-    private int freeBytes;
+    private long freeBytes;
 
     PoolChunkList<T> parent;
+    // the free depth the chunk is indexed under in its list, see PoolChunkList
+    int indexedDepth;
+    // when the arena retained the chunk after it became empty, see PoolArena#retainOrRelease(PoolChunk)
+    long retainedNanos;
     PoolChunk<T> prev;
     PoolChunk<T> next;
 
-    // TODO: Test if adding padding helps under contention
-    //private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
+    // keeps the fields updated under the arena lock off the cache lines of neighbouring objects
+    @SuppressWarnings("unused")
+    private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
 
-    PoolChunk(PoolArena<T> arena, T memory, int pageSize, int maxOrder, int pageShifts, int chunkSize) {
+    PoolChunk(PoolArena<T> arena, T memory, long memoryAddress,
+              int pageSize, int maxOrder, int pageShifts, long chunkSize) {
         unpooled = false;
         this.arena = arena;
         this.memory = memory;
-        this.pageSize = pageSize;
+        this.memoryAddress = memoryAddress;
         this.pageShifts = pageShifts;
+        this.maxOrder = maxOrder;
         this.chunkSize = chunkSize;
-        subpageOverflowMask = ~(pageSize - 1);
+        chunkShifts = pageShifts + maxOrder;
         freeBytes = chunkSize;
+        unusable = (byte) (maxOrder + 1);
 
-        int chunkSizeInPages = chunkSize >>> pageShifts;
-        maxSubpageAllocs = 1 << maxOrder;
-
-        // Generate the memory map.
-        memoryMap = new int[maxSubpageAllocs << 1];
-        int memoryMapIndex = 1;
-        for (int i = 0; i <= maxOrder; i ++) {
-            int runSizeInPages = chunkSizeInPages >>> i;
-            for (int j = 0; j < chunkSizeInPages; j += runSizeInPages) {
-                //noinspection PointlessBitwiseExpression
-                memoryMap[memoryMapIndex ++] = j << 17 | runSizeInPages << 2 | ST_UNUSED;
-            }
+        // every node starts as ST_UNUSED
+        memoryMap = new byte[2 << maxOrder];
+
+        freeDepths = new byte[memoryMap.length];
+        for (int memoryMapIdx = 1; memoryMapIdx < freeDepths.length; memoryMapIdx ++) {
+            freeDepths[memoryMapIdx] = (byte) depth(memoryMapIdx);
         }
 
-        subpages = newSubpageArray(maxSubpageAllocs);
+        subpages = newSubpageArray(memoryMap.length);
     }
 
     /** Creates a special chunk that is not pooled. */
-    PoolChunk(PoolArena<T> arena, T memory, int size) {
+    PoolChunk(PoolArena<T> arena, T memory, long memoryAddress, int size) {
         unpooled = true;
         this.arena = arena;
         this.memory = memory;
+        this.memoryAddress = memoryAddress;
         memoryMap = null;
+        freeDepths = null;
+        unusable = 0;
+        maxOrder = 0;
         subpages = null;
-        subpageOverflowMask = 0;
-        pageSize = 0;
         pageShifts = 0;
+        chunkShifts = 0;
         chunkSize = size;
-        maxSubpageAllocs = 0;
     }
 
     @SuppressWarnings("unchecked")
@@ -97,6 +113,14 @@ final class PoolChunk<T> {
         return new PoolSubpage[size];
     }
 
+    /**
+     * Returns the depth of the largest free run of this chunk, {@code maxOrder + 1} if it has none. A run of the
+     * depth {@code d} can be allocated if and only if the free depth is at most {@code d}.
+     */
+    int freeDepth() {
+        return freeDepths[1];
+    }
+
     int usage() {
         if (freeBytes == 0) {
             return 100;
@@ -109,169 +133,170 @@ final class PoolChunk<T> {
         return 100 - freePercentage;
     }
 
+    /**
+     * Must be called under the lock of the arena. Takes the lock of the subpage pool for subpage allocations.
+     */
     long allocate(int normCapacity) {
-        int firstVal = memoryMap[1];
-        if ((normCapacity & subpageOverflowMask) != 0) { // >= pageSize
-            return allocateRun(normCapacity, 1, firstVal);
-        } else {
-            return allocateSubpage(normCapacity, 1, firstVal);
-        }
-    }
-
-    private long allocateRun(int normCapacity, int curIdx, int val) {
-        for (;;) {
-            if ((val & ST_ALLOCATED) != 0) { // state == ST_ALLOCATED || state == ST_ALLOCATED_SUBPAGE
-                return -1;
+        if (!arena.isTinyOrSmall(normCapacity)) {
+            int memoryMapIdx = allocateNode(normCapacity);
+            if (memoryMapIdx > 0) {
+                memoryMap[memoryMapIdx] = ST_ALLOCATED;
+                arena.normalAllocations ++;
             }
-
-            if ((val & ST_BRANCH) != 0) { // state == ST_BRANCH
-                int nextIdx = curIdx << 1 ^ nextRandom();
-                long res = allocateRun(normCapacity, nextIdx, memoryMap[nextIdx]);
-                if (res > 0) {
-                    return res;
+            return memoryMapIdx;
+        } else {
+            // the subpages of this size class are shared with the subpage pool of the arena
+            PoolSubpage<T> head = arena.findSubpagePoolHead(normCapacity);
+            head.lock.lock();
+            try {
+                long handle = allocateSubpage(normCapacity, arena.subpageRunSize(normCapacity));
+                if (handle > 0) {
+                    head.allocations ++;
                 }
-
-                curIdx = nextIdx ^ 1;
-                val = memoryMap[curIdx];
-                continue;
+                return handle;
+            } finally {
+                head.lock.unlock();
             }
-
-            // state == ST_UNUSED
-            return allocateRunSimple(normCapacity, curIdx, val);
         }
     }
 
-    private long allocateRunSimple(int normCapacity, int curIdx, int val) {
-        int runLength = runLength(val);
-        if (normCapacity > runLength) {
+    /**
+     * Allocates a new subpage of {@code normCapacity} elements whose run is {@code runSize} bytes long, and returns
+     * its first element. The subpages with free elements are all in the subpage pool of the arena, so it is only
+     * called once the pool has none left.
+     */
+    private long allocateSubpage(int normCapacity, int runSize) {
+        int memoryMapIdx = allocateNode(runSize);
+        if (memoryMapIdx < 0) {
             return -1;
         }
 
-        for (;;) {
-            if (normCapacity == runLength) {
-                // Found the run that fits.
-                // Note that capacity has been normalized already, so we don't need to deal with
-                // the values that are not power of 2.
-                memoryMap[curIdx] = val & ~3 | ST_ALLOCATED;
-                freeBytes -= runLength;
-                return curIdx;
-            }
-
-            int nextIdx = curIdx << 1 ^ nextRandom();
-            int unusedIdx = nextIdx ^ 1;
-
-            memoryMap[curIdx] = val & ~3 | ST_BRANCH;
-            //noinspection PointlessBitwiseExpression
-            memoryMap[unusedIdx] = memoryMap[unusedIdx] & ~3 | ST_UNUSED;
-
-            runLength >>>= 1;
-            curIdx = nextIdx;
-            val = memoryMap[curIdx];
+        memoryMap[memoryMapIdx] = ST_ALLOCATED_SUBPAGE;
+        PoolSubpage<T> subpage = subpages[memoryMapIdx];
+        if (subpage == null) {
+            subpage = new PoolSubpage<T>(this, memoryMapIdx, runOffset(memoryMapIdx), runSize, normCapacity);
+            subpages[memoryMapIdx] = subpage;
+        } else {
+            subpage.init(normCapacity);
         }
+        return subpage.allocate();
     }
 
-    private long allocateSubpage(int normCapacity, int curIdx, int val) {
-        int state = val & 3;
-        if (state == ST_BRANCH) {
-            int nextIdx = curIdx << 1 ^ nextRandom();
-            long res = branchSubpage(normCapacity, nextIdx);
-            if (res > 0) {
-                return res;
-            }
-
-            return branchSubpage(normCapacity, nextIdx ^ 1);
-        }
-
-        if (state == ST_UNUSED) {
-            return allocateSubpageSimple(normCapacity, curIdx, val);
+    /**
+     * Takes a free run of {@code runLength} bytes, a power of two, and marks the nodes above it as branches. Descends
+     * to the run in {@code maxOrder} steps at most, however fragmented the chunk is.
+     *
+     * @return the memory map index of the run, or {@code -1} if no run of the length is free
+     */
+    private int allocateNode(int runLength) {
+        int d = maxOrder - (Integer.numberOfTrailingZeros(runLength) - pageShifts);
+        if (freeDepths[1] > d) {
+            return -1;
         }
 
-        if (state == ST_ALLOCATED_SUBPAGE) {
-            PoolSubpage<T> subpage = subpages[subpageIdx(curIdx)];
-            int elemSize = subpage.elemSize;
-            if (normCapacity != elemSize) {
-                return -1;
+        int memoryMapIdx = 1;
+        for (int depth = 0; depth < d; depth ++) {
+            memoryMap[memoryMapIdx] = ST_BRANCH;
+            memoryMapIdx <<= 1;
+            if (freeDepths[memoryMapIdx] > d) {
+                memoryMapIdx ^= 1;
             }
-
-            return subpage.allocate();
         }
+        assert freeDepths[memoryMapIdx] == d && memoryMap[memoryMapIdx] == ST_UNUSED;
 
-        return -1;
+        freeDepths[memoryMapIdx] = unusable;
+        updateFreeDepths(memoryMapIdx);
+        freeBytes -= runLength;
+        arena.usedBytes += runLength;
+        return memoryMapIdx;
     }
 
-    private long allocateSubpageSimple(int normCapacity, int curIdx, int val) {
-        int runLength = runLength(val);
-        for (;;) {
-            if (runLength == pageSize) {
-                memoryMap[curIdx] = val & ~3 | ST_ALLOCATED_SUBPAGE;
-                freeBytes -= runLength;
-
-                int subpageIdx = subpageIdx(curIdx);
-                PoolSubpage<T> subpage = subpages[subpageIdx];
-                if (subpage == null) {
-                    subpage = new PoolSubpage<T>(this, curIdx, runOffset(val), pageSize, normCapacity);
-                    subpages[subpageIdx] = subpage;
-                } else {
-                    subpage.init(normCapacity);
-                }
-                return subpage.allocate();
+    /**
+     * Recomputes the free depths of the ancestors of the node after its own changed.
+     */
+    private void updateFreeDepths(int memoryMapIdx) {
+        while (memoryMapIdx > 1) {
+            byte freeDepth = freeDepths[memoryMapIdx];
+            byte siblingFreeDepth = freeDepths[siblingIdx(memoryMapIdx)];
+            int childDepth = depth(memoryMapIdx);
+            memoryMapIdx = parentIdx(memoryMapIdx);
+            byte parentFreeDepth;
+            if (freeDepth == childDepth && siblingFreeDepth == childDepth) {
+                // both halves are free, so is the whole
+                parentFreeDepth = (byte) (childDepth - 1);
+            } else {
+                parentFreeDepth = freeDepth < siblingFreeDepth ? freeDepth : siblingFreeDepth;
             }
-
-            int nextIdx = curIdx << 1 ^ nextRandom();
-            int unusedIdx = nextIdx ^ 1;
-
-            memoryMap[curIdx] = val & ~3 | ST_BRANCH;
-            //noinspection PointlessBitwiseExpression
-            memoryMap[unusedIdx] = memoryMap[unusedIdx] & ~3 | ST_UNUSED;
-
-            runLength >>>= 1;
-            curIdx = nextIdx;
-            val = memoryMap[curIdx];
+            if (freeDepths[memoryMapIdx] == parentFreeDepth) {
+                // the nodes further up do not change either
+                return;
+            }
+            freeDepths[memoryMapIdx] = parentFreeDepth;
         }
     }
 
-    private long branchSubpage(int normCapacity, int nextIdx) {
-        int nextVal = memoryMap[nextIdx];
-        if ((nextVal & 3) != ST_ALLOCATED) {
-            return allocateSubpage(normCapacity, nextIdx, nextVal);
+    /**
+     * Returns an element of a subpage to the subpage. Takes the lock of the subpage pool, but not of the arena.
+     *
+     * @return {@code true} if the subpage is still in use or the chunk has been released, {@code false} if the
+     *         subpage became unused and its run has to be freed by {@link #free(long)}
+     */
+    boolean freeSubpageElement(long handle) {
+        int memoryMapIdx = (int) handle;
+        int bitmapIdx = (int) (handle >>> 32);
+        assert bitmapIdx != 0;
+        PoolSubpage<T> subpage = subpages[memoryMapIdx];
+        // the element size does not change while the element is allocated
+        PoolSubpage<T> head = arena.findSubpagePoolHead(subpage.elemSize);
+        head.lock.lock();
+        try {
+            if (id == 0) {
+                // released by releaseAll(), which resets the pool heads under their locks
+                return true;
+            }
+            assert subpage.doNotDestroy;
+            head.deallocations ++;
+            return subpage.free(bitmapIdx & 0x3FFFFFFF);
+        } finally {
+            head.lock.unlock();
         }
-        return -1;
     }
 
+    /**
+     * Frees a run, or the run of a subpage which became unused in {@link #freeSubpageElement(long)}. Must be called
+     * under the lock of the arena.
+     */
     void free(long handle) {
         int memoryMapIdx = (int) handle;
         int bitmapIdx = (int) (handle >>> 32);
 
-        int val = memoryMap[memoryMapIdx];
-        int state = val & 3;
+        int state = memoryMap[memoryMapIdx];
         if (state == ST_ALLOCATED_SUBPAGE) {
             assert bitmapIdx != 0;
-            PoolSubpage<T> subpage = subpages[subpageIdx(memoryMapIdx)];
-            assert subpage != null && subpage.doNotDestroy;
-            if (subpage.free(bitmapIdx & 0x3FFFFFFF)) {
-                return;
-            }
+            assert !subpages[memoryMapIdx].doNotDestroy;
         } else {
             assert state == ST_ALLOCATED : "state: " + state;
             assert bitmapIdx == 0;
+            arena.normalDeallocations ++;
         }
 
-        freeBytes += runLength(val);
+        freeBytes += runLength(memoryMapIdx);
+        arena.usedBytes -= runLength(memoryMapIdx);
+        freeDepths[memoryMapIdx] = (byte) depth(memoryMapIdx);
+        updateFreeDepths(memoryMapIdx);
 
         for (;;) {
-            //noinspection PointlessBitwiseExpression
-            memoryMap[memoryMapIdx] = val & ~3 | ST_UNUSED;
+            memoryMap[memoryMapIdx] = ST_UNUSED;
             if (memoryMapIdx == 1) {
                 assert freeBytes == chunkSize;
                 return;
             }
 
-            if ((memoryMap[siblingIdx(memoryMapIdx)] & 3) != ST_UNUSED) {
+            if (memoryMap[siblingIdx(memoryMapIdx)] != ST_UNUSED) {
                 break;
             }
 
             memoryMapIdx = parentIdx(memoryMapIdx);
-            val = memoryMap[memoryMapIdx];
         }
     }
 
@@ -279,32 +304,219 @@ final class PoolChunk<T> {
         int memoryMapIdx = (int) handle;
         int bitmapIdx = (int) (handle >>> 32);
         if (bitmapIdx == 0) {
-            int val = memoryMap[memoryMapIdx];
-            assert (val & 3) == ST_ALLOCATED : String.valueOf(val & 3);
-            buf.init(this, handle, runOffset(val), reqCapacity, runLength(val));
+            assert memoryMap[memoryMapIdx] == ST_ALLOCATED : String.valueOf(memoryMap[memoryMapIdx]);
+            buf.init(this, handle, (int) runOffset(memoryMapIdx), reqCapacity, (int) runLength(memoryMapIdx));
         } else {
             initBufWithSubpage(buf, handle, bitmapIdx, reqCapacity);
         }
     }
 
-    void initBufWithSubpage(PooledByteBuf<T> buf, long handle, int reqCapacity) {
-        initBufWithSubpage(buf, handle, (int) (handle >>> 32), reqCapacity);
-    }
-
     private void initBufWithSubpage(PooledByteBuf<T> buf, long handle, int bitmapIdx, int reqCapacity) {
         assert bitmapIdx != 0;
 
         int memoryMapIdx = (int) handle;
-        int val = memoryMap[memoryMapIdx];
-        assert (val & 3) == ST_ALLOCATED_SUBPAGE;
+        assert memoryMap[memoryMapIdx] == ST_ALLOCATED_SUBPAGE;
 
-        PoolSubpage<T> subpage = subpages[subpageIdx(memoryMapIdx)];
+        PoolSubpage<T> subpage = subpages[memoryMapIdx];
         assert subpage.doNotDestroy;
         assert reqCapacity <= subpage.elemSize;
 
         buf.init(
                 this, handle,
-                runOffset(val) + (bitmapIdx & 0x3FFFFFFF) * subpage.elemSize, reqCapacity, subpage.elemSize);
+                (int) runOffset(memoryMapIdx) + (bitmapIdx & 0x3FFFFFFF) * subpage.elemSize, reqCapacity,
+                subpage.elemSize);
+    }
+
+    /**
+     * Adds every allocation of this chunk to the {@code allocations} in the order of their offsets. Must be called
+     * under the lock of the arena. Takes the locks of the subpage pools, which guard the subpage allocations.
+     */
+    void collectAllocations(Allocations allocations) {
+        if (unpooled) {
+            allocations.add(0, 0, (int) chunkSize);
+        } else {
+            collectAllocations(1, allocations);
+        }
+    }
+
+    private void collectAllocations(int memoryMapIdx, Allocations allocations) {
+        switch (memoryMap[memoryMapIdx]) {
+            case ST_BRANCH:
+                collectAllocations(memoryMapIdx << 1, allocations);
+                collectAllocations(memoryMapIdx << 1 | 1, allocations);
+                break;
+            case ST_ALLOCATED:
+                allocations.add(memoryMapIdx, runOffset(memoryMapIdx), (int) runLength(memoryMapIdx));
+                break;
+            case ST_ALLOCATED_SUBPAGE:
+                PoolSubpage<T> subpage = subpages[memoryMapIdx];
+                ReentrantLock lock = arena.findSubpagePoolHead(subpage.elemSize).lock;
+                lock.lock();
+                try {
+                    subpage.collectAllocations(allocations);
+                } finally {
+                    lock.unlock();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Passes the allocations collected by the {@code cursor}, from its position up to {@code end} but no further
+     * than the last one in the same run or subpage, to the {@code visitor} and moves the cursor past them. Holds the
+     * lock which keeps them from being returned to this chunk meanwhile: the lock of the arena for a run and the
+     * lock of the subpage pool for the elements of a subpage. An allocation which has been returned since it was
+     * collected is skipped, because its memory may have become part of a run or element laid out differently.
+     *
+     * @return {@code false} if the visitor stopped the walk
+     */
+    boolean visitAllocations(AllocationCursor cursor, int end, AllocationVisitor visitor) {
+        if (unpooled) {
+            return visitAllocations0(cursor, end, visitor);
+        }
+        long handle = cursor.allocations.handles[cursor.position];
+        if ((int) (handle >>> 32) == 0) {
+            synchronized (arena) {
+                return visitAllocations0(cursor, end, visitor);
+            }
+        }
+        ReentrantLock lock = arena.findSubpagePoolHead(cursor.allocations.capacities[cursor.position]).lock;
+        lock.lock();
+        try {
+            return visitAllocations0(cursor, end, visitor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean visitAllocations0(AllocationCursor cursor, int end, AllocationVisitor visitor) {
+        Allocations allocations = cursor.allocations;
+        int memoryMapIdx = (int) allocations.handles[cursor.position];
+        while (cursor.position < end) {
+            int position = cursor.position;
+            long handle = allocations.handles[position];
+            if ((int) handle != memoryMapIdx) {
+                break;
+            }
+            cursor.position ++;
+            int capacity = allocations.capacities[position];
+            if (isAllocated(handle, capacity) && !visitor.visitAllocation(
+                    globalHandle(cursor.chunkId, handle), memoryAddress + allocations.offsets[position], capacity)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if the allocation identified by the chunk local {@code handle} is still allocated with
+     * the {@code capacity} it was collected with. Must be called under the lock taken by
+     * {@link #visitAllocations(AllocationCursor, int, AllocationVisitor)}.
+     */
+    private boolean isAllocated(long handle, int capacity) {
+        if (id == 0) {
+            // released, its memory stays untouched until the walk ends
+            return false;
+        }
+        if (unpooled) {
+            return true;
+        }
+        int memoryMapIdx = (int) handle;
+        int bitmapIdx = (int) (handle >>> 32);
+        if (bitmapIdx == 0) {
+            return memoryMap[memoryMapIdx] == ST_ALLOCATED;
+        }
+        // The subpage may have been reused for another size class under the lock of another pool, in which case
+        // doNotDestroy is read first to see its element size, see PoolSubpage#doNotDestroy.
+        PoolSubpage<T> subpage = subpages[memoryMapIdx];
+        return subpage.doNotDestroy && subpage.elemSize == capacity && subpage.isAllocated(bitmapIdx & 0x3FFFFFFF);
+    }
+
+    /**
+     * Returns the offset of the allocation identified by the chunk local {@code handle} from the start of the chunk.
+     */
+    long offset(long handle) {
+        if (unpooled) {
+            return 0;
+        }
+        int memoryMapIdx = (int) handle;
+        int bitmapIdx = (int) (handle >>> 32);
+        if (bitmapIdx == 0) {
+            return runOffset(memoryMapIdx);
+        }
+        return runOffset(memoryMapIdx) + (bitmapIdx & 0x3FFFFFFF) * subpages[memoryMapIdx].elemSize;
+    }
+
+    /**
+     * Returns the normalized capacity of the allocation identified by the chunk local {@code handle}.
+     */
+    int capacity(long handle) {
+        if (unpooled) {
+            return (int) chunkSize;
+        }
+        int memoryMapIdx = (int) handle;
+        if ((int) (handle >>> 32) == 0) {
+            // runs of allocations are never longer than an int
+            return (int) runLength(memoryMapIdx);
+        }
+        return subpages[memoryMapIdx].elemSize;
+    }
+
+    /**
+     * Packs the chunk id and a chunk local handle into a handle which identifies the allocation within the whole
+     * allocator: bits 44-62 hold the chunk id, bits 24-43 the subpage flag and the bitmap index, bits 0-23 the
+     * memory map index. A global handle is always positive.
+     */
+    static long globalHandle(int chunkId, long handle) {
+        long bitmapIdx = handle >>> 32;
+        long packedBitmapIdx = bitmapIdx == 0 ? 0 : 0x80000 | bitmapIdx & 0x7FFFF;
+        return (long) chunkId << 44 | packedBitmapIdx << 24 | handle & 0xFFFFFF;
+    }
+
+    static int chunkId(long globalHandle) {
+        return (int) (globalHandle >>> 44);
+    }
+
+    static long localHandle(long globalHandle) {
+        long packedBitmapIdx = globalHandle >>> 24 & 0xFFFFF;
+        long handle = globalHandle & 0xFFFFFF;
+        if (packedBitmapIdx != 0) {
+            handle |= (0x40000000L | packedBitmapIdx & 0x7FFFF) << 32;
+        }
+        return handle;
+    }
+
+    /**
+     * A growable list of allocations. {@link #offsets} holds the offset of each allocation from the start of the
+     * chunk, {@link #capacities} its capacity and {@link #handles} its chunk local handle.
+     */
+    static final class Allocations {
+        long[] offsets = new long[64];
+        int[] capacities = new int[64];
+        long[] handles = new long[64];
+        int size;
+
+        void add(long handle, long offset, int capacity) {
+            if (size == offsets.length) {
+                long[] newOffsets = new long[size << 1];
+                System.arraycopy(offsets, 0, newOffsets, 0, size);
+                offsets = newOffsets;
+                int[] newCapacities = new int[size << 1];
+                System.arraycopy(capacities, 0, newCapacities, 0, size);
+                capacities = newCapacities;
+                long[] newHandles = new long[size << 1];
+                System.arraycopy(handles, 0, newHandles, 0, size);
+                handles = newHandles;
+            }
+            offsets[size] = offset;
+            capacities[size] = capacity;
+            handles[size ++] = handle;
+        }
+
+
+        void clear() {
+            size = 0;
+        }
     }
 
     private static int parentIdx(int memoryMapIdx) {
@@ -315,21 +527,21 @@ final class PoolChunk<T> {
         return memoryMapIdx ^ 1;
     }
 
-    private int runLength(int val) {
-        return (val >>> 2 & 0x7FFF) << pageShifts;
-    }
-
-    private int runOffset(int val) {
-        return val >>> 17 << pageShifts;
+    private long runLength(int memoryMapIdx) {
+        return 1L << chunkShifts - depth(memoryMapIdx);
     }
 
-    private int subpageIdx(int memoryMapIdx) {
-        return memoryMapIdx - maxSubpageAllocs;
+    /**
+     * Returns the offset of the run of a node from the start of the chunk: the nodes of a depth split the chunk
+     * into equal runs from left to right.
+     */
+    private long runOffset(int memoryMapIdx) {
+        int depth = depth(memoryMapIdx);
+        return (long) (memoryMapIdx ^ 1 << depth) << chunkShifts - depth;
     }
 
-    private int nextRandom() {
-        random = random * multiplier + addend & mask;
-        return (int) (random >>> 47) & 1;
+    private static int depth(int memoryMapIdx) {
+        return 31 - Integer.numberOfLeadingZeros(memoryMapIdx);
     }
 
     public String toString() {
@@ -16,6 +16,11 @@
 
 package info.jerrinot.nettyloc;
 
+/**
+ * The chunks of an arena within a range of usage. Within the list the chunks are indexed by the depth of their largest
+ * free run, see {@link PoolChunk#freeDepth()}, so an allocation goes straight to a chunk which can serve it instead
+ * of trying the chunks one after the other. Guarded by the arena lock.
+ */
 final class PoolChunkList<T> {
     private final PoolArena<T> arena;
     private final PoolChunkList<T> nextList;
@@ -24,39 +29,52 @@ final class PoolChunkList<T> {
     private final int minUsage;
     private final int maxUsage;
 
-    private PoolChunk<T> head;
+    // the heads of the lists of chunks with each free depth, linked through PoolChunk.prev and next
+    private final PoolChunk<T>[] heads;
+    // bit d is set if heads[d] has a chunk
+    private int nonEmptyDepths;
+    // read without the arena lock by the metrics
+    private int size;
 
-    // TODO: Test if adding padding helps under contention
-    //private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
+    // keeps the lists off the cache lines of the subpage pool heads, which are allocated right before them
+    @SuppressWarnings("unused")
+    private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
 
     PoolChunkList(PoolArena<T> arena, PoolChunkList<T> nextList, int minUsage, int maxUsage) {
         this.arena = arena;
         this.nextList = nextList;
         this.minUsage = minUsage;
         this.maxUsage = maxUsage;
+        heads = newChunkArray(arena.maxOrder + 2);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> PoolChunk<T>[] newChunkArray(int size) {
+        return new PoolChunk[size];
     }
 
-    boolean allocate(PooledByteBuf<T> buf, int reqCapacity, int normCapacity) {
-        if (head == null) {
-            return false;
+    /**
+     * Allocates a run of the {@code depth} or a subpage on it, from the chunk with the smallest largest free run
+     * which is still long enough. Leaves the longer runs of other chunks to the allocations which need them.
+     *
+     * @return the global handle of the allocation, or {@code -1} if no chunk of this list has a run long enough
+     */
+    long allocate(int normCapacity, int depth) {
+        int candidates = nonEmptyDepths & (2 << depth) - 1;
+        if (candidates == 0) {
+            return -1;
         }
 
-        for (PoolChunk<T> cur = head;;) {
-            long handle = cur.allocate(normCapacity);
-            if (handle < 0) {
-                cur = cur.next;
-                if (cur == null) {
-                    return false;
-                }
-            } else {
-                cur.initBuf(buf, handle, reqCapacity);
-                if (cur.usage() >= maxUsage) {
-                    remove(cur);
-                    nextList.add(cur);
-                }
-                return true;
-            }
+        PoolChunk<T> cur = heads[31 - Integer.numberOfLeadingZeros(candidates)];
+        long handle = cur.allocate(normCapacity);
+        assert handle > 0;
+        if (cur.usage() >= maxUsage) {
+            remove(cur);
+            nextList.add(cur);
+        } else {
+            reindex(cur);
         }
+        return PoolChunk.globalHandle(cur.id, handle);
     }
 
     void free(PoolChunk<T> chunk, long handle) {
@@ -65,13 +83,30 @@ final class PoolChunkList<T> {
             remove(chunk);
             if (prevList == null) {
                 assert chunk.usage() == 0;
-                arena.destroyChunk(chunk);
+                arena.retainOrRelease(chunk);
             } else {
                 prevList.add(chunk);
             }
+        } else {
+            reindex(chunk);
         }
     }
 
+    /**
+     * Forgets all chunks of this list. Used when the arena releases all its chunks at once.
+     */
+    void clear() {
+        for (int i = 0; i < heads.length; i ++) {
+            heads[i] = null;
+        }
+        nonEmptyDepths = 0;
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
     void add(PoolChunk<T> chunk) {
         if (chunk.usage() >= maxUsage) {
             nextList.add(chunk);
@@ -79,47 +114,66 @@ final class PoolChunkList<T> {
         }
 
         chunk.parent = this;
-        if (head == null) {
-            head = chunk;
-            chunk.prev = null;
-            chunk.next = null;
-        } else {
-            chunk.prev = null;
-            chunk.next = head;
+        size ++;
+        link(chunk, chunk.freeDepth());
+    }
+
+    private void remove(PoolChunk<T> cur) {
+        size --;
+        unlink(cur);
+    }
+
+    // moves the chunk to the head of its free depth after an allocation or a free changed it
+    private void reindex(PoolChunk<T> chunk) {
+        int freeDepth = chunk.freeDepth();
+        if (freeDepth != chunk.indexedDepth) {
+            unlink(chunk);
+            link(chunk, freeDepth);
+        }
+    }
+
+    private void link(PoolChunk<T> chunk, int freeDepth) {
+        PoolChunk<T> head = heads[freeDepth];
+        chunk.indexedDepth = freeDepth;
+        chunk.prev = null;
+        chunk.next = head;
+        if (head != null) {
             head.prev = chunk;
-            head = chunk;
         }
+        heads[freeDepth] = chunk;
+        nonEmptyDepths |= 1 << freeDepth;
     }
 
-    private void remove(PoolChunk<T> cur) {
-        if (cur == head) {
-            head = cur.next;
-            if (head != null) {
-                head.prev = null;
+    private void unlink(PoolChunk<T> cur) {
+        int freeDepth = cur.indexedDepth;
+        PoolChunk<T> next = cur.next;
+        if (cur == heads[freeDepth]) {
+            heads[freeDepth] = next;
+            if (next == null) {
+                nonEmptyDepths &= ~(1 << freeDepth);
             }
         } else {
-            PoolChunk<T> next = cur.next;
             cur.prev.next = next;
-            if (next != null) {
-                next.prev = cur.prev;
-            }
+        }
+        if (next != null) {
+            next.prev = cur.prev;
         }
     }
 
     @Override
     public String toString() {
-        if (head == null) {
+        if (size == 0) {
             return "none";
         }
 
         StringBuilder buf = new StringBuilder();
-        for (PoolChunk<T> cur = head;;) {
-            buf.append(cur);
-            cur = cur.next;
-            if (cur == null) {
-                break;
+        for (PoolChunk<T> head: heads) {
+            for (PoolChunk<T> cur = head; cur != null; cur = cur.next) {
+                if (buf.length() > 0) {
+                    buf.append(StringUtil.NEWLINE);
+                }
+                buf.append(cur);
             }
-            buf.append(StringUtil.NEWLINE);
         }
 
         return buf.toString();
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assigns small integer ids to the live chunks of an allocator, so an allocation can be identified by a single
+ * {@code long} handle instead of a reference to its {@link PoolChunk}.
+ * <p>
+ * Registration happens only when a chunk is created or destroyed and is synchronized. Lookups are lock-free.
+ * </p>
+ * <p>
+ * The ids of chunks dropped by {@link #clear()} are retired rather than recycled, so a stale handle into a released
+ * chunk keeps resolving to {@code null} instead of to a newer chunk. Retired ids are only reused once the id space
+ * is exhausted.
+ * </p>
+ */
+final class PoolChunkTable {
+
+    static final int MAX_CHUNK_ID = (1 << 19) - 1;
+
+    private volatile PoolChunk<?>[] chunks = new PoolChunk<?>[64];
+    private int[] freeIds = new int[16];
+    private int numFreeIds;
+    private int nextId = 1;
+
+    synchronized void register(PoolChunk<?> chunk) {
+        int id;
+        if (numFreeIds > 0) {
+            id = freeIds[-- numFreeIds];
+        } else {
+            if (nextId > MAX_CHUNK_ID) {
+                id = retiredId();
+            } else {
+                id = nextId ++;
+            }
+        }
+
+        PoolChunk<?>[] chunks = this.chunks;
+        if (id >= chunks.length) {
+            PoolChunk<?>[] newChunks = new PoolChunk<?>[Math.min(chunks.length << 1, MAX_CHUNK_ID + 1)];
+            System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+            chunks = newChunks;
+        }
+        chunk.id = id;
+        chunks[id] = chunk;
+        // publish the chunk with a volatile write
+        this.chunks = chunks;
+    }
+
+    private int retiredId() {
+        PoolChunk<?>[] chunks = this.chunks;
+        for (int id = 1; id < chunks.length; id ++) {
+            if (chunks[id] == null) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("too many chunks (expected: <= " + MAX_CHUNK_ID + ')');
+    }
+
+    /**
+     * Removes the chunk from the table.
+     *
+     * @return {@code false} if the chunk was already dropped by {@link #clear()}
+     */
+    synchronized boolean unregister(PoolChunk<?> chunk) {
+        int id = chunk.id;
+        if (id == 0) {
+            return false;
+        }
+        PoolChunk<?>[] chunks = this.chunks;
+        assert chunks[id] == chunk;
+        chunks[id] = null;
+        this.chunks = chunks;
+        chunk.id = 0;
+
+        if (numFreeIds == freeIds.length) {
+            int[] newFreeIds = new int[numFreeIds << 1];
+            System.arraycopy(freeIds, 0, newFreeIds, 0, numFreeIds);
+            freeIds = newFreeIds;
+        }
+        freeIds[numFreeIds ++] = id;
+        return true;
+    }
+
+    /**
+     * Removes all chunks from the table and returns them. The id of every removed chunk is reset to {@code 0}.
+     */
+    synchronized List<PoolChunk<?>> clear() {
+        PoolChunk<?>[] chunks = this.chunks;
+        List<PoolChunk<?>> cleared = new ArrayList<PoolChunk<?>>();
+        for (int id = 1; id < chunks.length; id ++) {
+            PoolChunk<?> chunk = chunks[id];
+            if (chunk != null) {
+                chunks[id] = null;
+                chunk.id = 0;
+                cleared.add(chunk);
+            }
+        }
+        this.chunks = chunks;
+        numFreeIds = 0;
+        return cleared;
+    }
+
+    /**
+     * Returns the chunk with the lowest id above {@code id}, wrapping around to the lowest id, or {@code null} if
+     * the table is empty.
+     */
+    PoolChunk<?> next(int id) {
+        PoolChunk<?> chunk = nextAbove(id);
+        return chunk != null ? chunk : nextAbove(0);
+    }
+
+    /**
+     * Returns the chunk with the lowest id above {@code id}, or {@code null} if there is none.
+     */
+    PoolChunk<?> nextAbove(int id) {
+        PoolChunk<?>[] chunks = this.chunks;
+        for (int i = id + 1; i < chunks.length; i ++) {
+            if (chunks[i] != null) {
+                return chunks[i];
+            }
+        }
+        return null;
+    }
+
+    PoolChunk<?> get(int id) {
+        return chunks[id];
+    }
+}
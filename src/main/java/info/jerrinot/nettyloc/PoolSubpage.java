@@ -16,65 +16,120 @@
 
 package info.jerrinot.nettyloc;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 final class PoolSubpage<T> {
 
     final PoolChunk<T> chunk;
     final int memoryMapIdx;
-    final int runOffset;
-    final int pageSize;
-    final long[] bitmap;
+    final long runOffset;
+    final int runSize;
+    // a set bit marks an allocated element, the bits past the last element are set as well
+    long[] bitmap;
+    // a set bit marks a word of the bitmap with a free element
+    long[] summary;
 
     PoolSubpage<T> prev;
     PoolSubpage<T> next;
 
-    boolean doNotDestroy;
+    // written last by init(int), so a reader which sees it set sees the element size and bitmap of the size class
+    // the subpage was initialized for, even without the lock of its pool
+    volatile boolean doNotDestroy;
     int elemSize;
     int maxNumElems;
     int nextAvail;
     int bitmapLength;
+    int summaryLength;
     int numAvail;
 
-    // TODO: Test if adding padding helps under contention
-    //private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
+    // the lock of a pool head, which guards its list and the subpages in it, null for other subpages. Not a
+    // monitor, because a monitor biased to one thread has to be revoked at a safepoint once another thread takes it,
+    // which the locks of the size classes would keep doing with biased locking on
+    final ReentrantLock lock;
+    // allocations and frees of the size class, counted on the pool head under its lock
+    long allocations;
+    long deallocations;
+
+    // keeps the list of a pool head, and the bitmap state of a subpage, off the cache lines of its neighbours
+    @SuppressWarnings("unused")
+    private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
 
     /** Special constructor that creates a linked list head */
-    PoolSubpage(int pageSize) {
+    PoolSubpage(int runSize) {
         chunk = null;
         memoryMapIdx = -1;
         runOffset = -1;
         elemSize = -1;
-        this.pageSize = pageSize;
+        this.runSize = runSize;
         bitmap = null;
+        summary = null;
+        lock = new ReentrantLock();
     }
 
-    PoolSubpage(PoolChunk<T> chunk, int memoryMapIdx, int runOffset, int pageSize, int elemSize) {
+    PoolSubpage(PoolChunk<T> chunk, int memoryMapIdx, long runOffset, int runSize, int elemSize) {
         this.chunk = chunk;
         this.memoryMapIdx = memoryMapIdx;
         this.runOffset = runOffset;
-        this.pageSize = pageSize;
-        bitmap = new long[pageSize >>> 10]; // pageSize / 16 / 64
+        this.runSize = runSize;
+        lock = null;
         init(elemSize);
     }
 
     void init(int elemSize) {
-        doNotDestroy = true;
         this.elemSize = elemSize;
         if (elemSize != 0) {
-            maxNumElems = numAvail = pageSize / elemSize;
+            maxNumElems = numAvail = runSize / elemSize;
             nextAvail = 0;
-            bitmapLength = maxNumElems >>> 6;
-            if ((maxNumElems & 63) != 0) {
-                bitmapLength ++;
+            bitmapLength = maxNumElems + 63 >>> 6;
+            summaryLength = bitmapLength + 63 >>> 6;
+            // the run of a subpage serves one size class at a time, the bitmaps grow for smaller elements
+            if (bitmap == null || bitmap.length < bitmapLength) {
+                bitmap = new long[bitmapLength];
+                summary = new long[summaryLength];
             }
 
             for (int i = 0; i < bitmapLength; i ++) {
                 bitmap[i] = 0;
             }
+            if ((maxNumElems & 63) != 0) {
+                bitmap[bitmapLength - 1] = -1L << (maxNumElems & 63);
+            }
+            for (int i = 0; i < summaryLength; i ++) {
+                summary[i] = -1L;
+            }
+            if ((bitmapLength & 63) != 0) {
+                summary[summaryLength - 1] = -1L >>> 64 - (bitmapLength & 63);
+            }
         }
+        doNotDestroy = true;
 
         addToPool();
     }
 
+    /**
+     * Adds every allocated element of this subpage to the {@code allocations}.
+     */
+    void collectAllocations(PoolChunk.Allocations allocations) {
+        for (int i = 0; i < bitmapLength; i ++) {
+            long bits = bitmap[i];
+            while (bits != 0) {
+                int bitmapIdx = i << 6 | Long.numberOfTrailingZeros(bits);
+                if (bitmapIdx >= maxNumElems) {
+                    break;
+                }
+                allocations.add(toHandle(bitmapIdx), runOffset + bitmapIdx * elemSize, elemSize);
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the element is allocated. Must be called under the lock of the pool of this subpage.
+     */
+    boolean isAllocated(int bitmapIdx) {
+        return (bitmap[bitmapIdx >>> 6] >>> (bitmapIdx & 63) & 1) != 0;
+    }
+
     /**
      * Returns the bitmap index of the subpage allocation.
      */
@@ -87,17 +142,16 @@ final class PoolSubpage<T> {
             return -1;
         }
 
-        final int bitmapIdx = nextAvail;
+        final int bitmapIdx = getNextAvail();
         int q = bitmapIdx >>> 6;
         int r = bitmapIdx & 63;
         assert (bitmap[q] >>> r & 1) == 0;
-        bitmap[q] |= 1L << r;
+        if ((bitmap[q] |= 1L << r) == -1L) {
+            summary[q >>> 6] &= ~(1L << q);
+        }
 
         if (-- numAvail == 0) {
             removeFromPool();
-            nextAvail = -1;
-        } else {
-            nextAvail = findNextAvailable();
         }
 
         return toHandle(bitmapIdx);
@@ -117,9 +171,11 @@ final class PoolSubpage<T> {
         int r = bitmapIdx & 63;
         assert (bitmap[q] >>> r & 1) != 0;
         bitmap[q] ^= 1L << r;
+        summary[q >>> 6] |= 1L << q;
+        // reused first, while its memory is likely still cached
+        nextAvail = bitmapIdx;
 
         if (numAvail ++ == 0) {
-            nextAvail = bitmapIdx;
             addToPool();
             return true;
         }
@@ -157,27 +213,27 @@ final class PoolSubpage<T> {
         prev = null;
     }
 
-    private int findNextAvailable() {
-        int newNextAvail = -1;
-        loop:
-        for (int i = 0; i < bitmapLength; i ++) {
-            long bits = bitmap[i];
-            if (~bits != 0) {
-                for (int j = 0; j < 64; j ++) {
-                    if ((bits & 1) == 0) {
-                        newNextAvail = i << 6 | j;
-                        break loop;
-                    }
-                    bits >>>= 1;
-                }
-            }
+    private int getNextAvail() {
+        int nextAvail = this.nextAvail;
+        if (nextAvail >= 0) {
+            this.nextAvail = -1;
+            return nextAvail;
         }
+        return findNextAvailable();
+    }
 
-        if (newNextAvail < maxNumElems) {
-            return newNextAvail;
-        } else {
-            return -1;
+    /**
+     * Finds the first free element through the summary, which needs a single word for runs of up to 4096 elements.
+     */
+    private int findNextAvailable() {
+        for (int i = 0; i < summaryLength; i ++) {
+            long words = summary[i];
+            if (words != 0) {
+                int q = i << 6 | Long.numberOfTrailingZeros(words);
+                return q << 6 | Long.numberOfTrailingZeros(~bitmap[q]);
+            }
         }
+        return -1;
     }
 
     private long toHandle(int bitmapIdx) {
@@ -190,6 +246,6 @@ final class PoolSubpage<T> {
         }
 
         return String.valueOf('(') + memoryMapIdx + ": " + (maxNumElems - numAvail) + '/' + maxNumElems +
-               ", offset: " + runOffset + ", length: " + pageSize + ", elemSize: " + elemSize + ')';
+               ", offset: " + runOffset + ", length: " + runSize + ", elemSize: " + elemSize + ')';
     }
 }
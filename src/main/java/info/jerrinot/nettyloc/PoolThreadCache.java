@@ -18,14 +18,336 @@ package info.jerrinot.nettyloc;
 
 import java.nio.ByteBuffer;
 
+/**
+ * Acts as a thread cache for allocations. Recently freed tiny, small and normal allocations are kept per size
+ * class and handed out again without entering the arena lock.
+ * <p>
+ * The cache is only ever touched by its owning thread, except for {@link #free()} which is called once the
+ * owning thread died. A cache keeps separate magazines for every arena it has seen, so callers which pick the
+ * arena explicitly (striped allocations) are cached as well as the arena bound to the thread.
+ * </p>
+ * <p>
+ * When an arena is reset by {@link PooledByteBufAllocator#releaseAll()} the magazines of that arena are dropped
+ * without freeing their entries the next time the owning thread touches them.
+ * </p>
+ */
 final class PoolThreadCache {
 
     final PoolArena<ByteBuffer> directArena;
 
+    private final PooledByteBufAllocator parent;
+    private final int tinyCacheSize;
+    private final int smallCacheSize;
+    private final int normalCacheSize;
+    private final int maxCachedBufferCapacity;
+    private final int freeSweepAllocationThreshold;
+
+    private ArenaCache[] arenaCaches;
+
+    private int allocations;
+    private long hits;
+    private long misses;
+    // the capacities requested from the arenas by the owning thread and what they were rounded up to
+    private long requestedBytes;
+    private long allocatedBytes;
+
     // TODO: Test if adding padding helps under contention
     //private long pad0, pad1, pad2, pad3, pad4, pad5, pad6, pad7;
 
-    PoolThreadCache(PoolArena<ByteBuffer> directArena) {
+    PoolThreadCache(PooledByteBufAllocator parent, PoolArena<ByteBuffer> directArena,
+                    int tinyCacheSize, int smallCacheSize, int normalCacheSize,
+                    int maxCachedBufferCapacity, int freeSweepAllocationThreshold) {
+        this.parent = parent;
         this.directArena = directArena;
+        this.tinyCacheSize = tinyCacheSize;
+        this.smallCacheSize = smallCacheSize;
+        this.normalCacheSize = normalCacheSize;
+        this.maxCachedBufferCapacity = maxCachedBufferCapacity;
+        this.freeSweepAllocationThreshold = freeSweepAllocationThreshold;
+        arenaCaches = new ArenaCache[0];
+    }
+
+    /**
+     * Try to allocate a tiny, small or normal buffer out of the cache.
+     *
+     * @return the global handle of the allocation if successful, {@code -1} otherwise
+     */
+    long allocate(PoolArena<?> arena, int normCapacity) {
+        if (!isCacheable(arena, normCapacity)) {
+            return -1;
+        }
+        MemoryRegionCache cache = cacheFor(arena, normCapacity, false);
+        long handle = cache != null ? cache.allocate() : -1;
+        if (handle >= 0) {
+            hits ++;
+        } else {
+            misses ++;
+        }
+        if (++ allocations >= freeSweepAllocationThreshold) {
+            allocations = 0;
+            trim();
+        }
+        return handle;
+    }
+
+    /**
+     * Add the allocation identified by the global {@code handle} to the cache if there is enough room.
+     *
+     * @return {@code true} if it fit into the cache, {@code false} otherwise
+     */
+    boolean add(PoolArena<?> arena, long handle, int normCapacity) {
+        if (!isCacheable(arena, normCapacity)) {
+            return false;
+        }
+        MemoryRegionCache cache = cacheFor(arena, normCapacity, true);
+        return cache != null && cache.add(handle);
+    }
+
+    /**
+     * Returns all cached allocations to their arenas. Called once the owning thread is gone.
+     */
+    void free() {
+        for (ArenaCache arenaCache: arenaCaches) {
+            if (arenaCache != null && arenaCache.isCurrent()) {
+                arenaCache.free();
+            }
+        }
+        parent.threadCacheFreed(this);
+    }
+
+    /**
+     * Returns the allocations which were not needed since the last trim back to their arenas.
+     */
+    void trim() {
+        ArenaCache[] arenaCaches = this.arenaCaches;
+        for (int i = 0; i < arenaCaches.length; i ++) {
+            ArenaCache arenaCache = arenaCaches[i];
+            if (arenaCache == null) {
+                continue;
+            }
+            if (arenaCache.isCurrent()) {
+                arenaCache.trim();
+            } else {
+                arenaCaches[i] = null;
+            }
+        }
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    /**
+     * Counts an allocation of {@code reqCapacity} bytes made by the owning thread, which took {@code capacity}.
+     */
+    void allocated(int reqCapacity, int capacity) {
+        requestedBytes += reqCapacity;
+        allocatedBytes += capacity;
+    }
+
+    long requestedBytes() {
+        return requestedBytes;
+    }
+
+    long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private boolean isCacheable(PoolArena<?> arena, int normCapacity) {
+        // the small size classes beyond the page size are bounded like the normal ones
+        return normCapacity < arena.pageSize ||
+               normCapacity <= maxCachedBufferCapacity && normCapacity <= arena.maxPooledCapacity;
+    }
+
+    private MemoryRegionCache cacheFor(PoolArena<?> arena, int normCapacity, boolean create) {
+        int arenaIdx = arena.index;
+        ArenaCache[] arenaCaches = this.arenaCaches;
+        ArenaCache arenaCache = arenaIdx < arenaCaches.length ? arenaCaches[arenaIdx] : null;
+        if (arenaCache != null && !arenaCache.isCurrent()) {
+            // the arena was reset, the cached allocations do not exist anymore
+            arenaCaches[arenaIdx] = null;
+            arenaCache = null;
+        }
+        if (arenaCache == null) {
+            if (!create) {
+                return null;
+            }
+            arenaCache = newArenaCache(arena);
+        }
+
+        if (arena.isTinyOrSmall(normCapacity)) {
+            if (PoolArena.isTiny(normCapacity)) {
+                return arenaCache.tinyCaches[PoolArena.tinyIdx(normCapacity)];
+            }
+            return arenaCache.smallCaches[arena.smallIdx(normCapacity)];
+        }
+        int normalIdx = arena.normalIdx(normCapacity);
+        if (normalIdx >= arenaCache.normalCaches.length) {
+            return null;
+        }
+        return arenaCache.normalCaches[normalIdx];
+    }
+
+    private ArenaCache newArenaCache(PoolArena<?> arena) {
+        int arenaIdx = arena.index;
+        if (arenaIdx >= arenaCaches.length) {
+            ArenaCache[] newArenaCaches = new ArenaCache[arenaIdx + 1];
+            System.arraycopy(arenaCaches, 0, newArenaCaches, 0, arenaCaches.length);
+            arenaCaches = newArenaCaches;
+        }
+
+        int numNormalCaches = 0;
+        if (normalCacheSize > 0) {
+            int maxCached = Math.min(arena.maxPooledCapacity, maxCachedBufferCapacity);
+            for (int size = arena.pageSize; size <= maxCached; size <<= 1) {
+                numNormalCaches ++;
+            }
+        }
+
+        ArenaCache arenaCache = new ArenaCache(arena,
+                createCaches(arena, tinyCacheSize, PoolArena.numTinySubpagePools()),
+                createCaches(arena, smallCacheSize, arena.numSmallSubpagePools()),
+                createCaches(arena, normalCacheSize, numNormalCaches));
+        arenaCaches[arenaIdx] = arenaCache;
+        return arenaCache;
+    }
+
+    private static MemoryRegionCache[] createCaches(PoolArena<?> arena, int cacheSize, int numCaches) {
+        MemoryRegionCache[] cache = new MemoryRegionCache[numCaches];
+        for (int i = 0; i < cache.length; i ++) {
+            cache[i] = cacheSize > 0 ? new MemoryRegionCache(arena, cacheSize) : null;
+        }
+        return cache;
+    }
+
+    private static final class ArenaCache {
+        final PoolArena<?> arena;
+        final int generation;
+        final MemoryRegionCache[] tinyCaches;
+        final MemoryRegionCache[] smallCaches;
+        final MemoryRegionCache[] normalCaches;
+
+        ArenaCache(PoolArena<?> arena, MemoryRegionCache[] tinyCaches, MemoryRegionCache[] smallCaches,
+                   MemoryRegionCache[] normalCaches) {
+            this.arena = arena;
+            generation = arena.generation;
+            this.tinyCaches = tinyCaches;
+            this.smallCaches = smallCaches;
+            this.normalCaches = normalCaches;
+        }
+
+        boolean isCurrent() {
+            return generation == arena.generation;
+        }
+
+        void free() {
+            free(tinyCaches);
+            free(smallCaches);
+            free(normalCaches);
+        }
+
+        void trim() {
+            trim(tinyCaches);
+            trim(smallCaches);
+            trim(normalCaches);
+        }
+
+        private static void free(MemoryRegionCache[] caches) {
+            for (MemoryRegionCache c: caches) {
+                if (c != null) {
+                    c.free(c.size());
+                }
+            }
+        }
+
+        private static void trim(MemoryRegionCache[] caches) {
+            for (MemoryRegionCache c: caches) {
+                if (c != null) {
+                    c.trim();
+                }
+            }
+        }
+    }
+
+    /**
+     * A bounded magazine of cached allocations of a single size class. New entries are pushed to and taken from
+     * the tail so the most recently freed memory is reused first, while trimming releases the oldest entries at
+     * the head.
+     */
+    private static final class MemoryRegionCache {
+        private final PoolArena<?> arena;
+        private final long[] handles;
+        private final int maxSize;
+        private final int mask;
+        private int head;
+        private int size;
+        private int allocations;
+
+        MemoryRegionCache(PoolArena<?> arena, int cacheSize) {
+            int capacity = powerOfTwo(cacheSize);
+            this.arena = arena;
+            handles = new long[capacity];
+            maxSize = cacheSize;
+            mask = capacity - 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean add(long handle) {
+            if (size == maxSize) {
+                return false;
+            }
+            handles[head + size & mask] = handle;
+            size ++;
+            return true;
+        }
+
+        long allocate() {
+            if (size == 0) {
+                return -1;
+            }
+            size --;
+            allocations ++;
+            return handles[head + size & mask];
+        }
+
+        /**
+         * Free the entries which were not allocated since the last trim.
+         */
+        void trim() {
+            int free = size - allocations;
+            allocations = 0;
+            if (free > 0) {
+                free(free);
+            }
+        }
+
+        void free(int max) {
+            for (int i = 0; i < max && size > 0; i ++) {
+                arena.freeChunk(handles[head]);
+                head = head + 1 & mask;
+                size --;
+            }
+        }
+
+        private static int powerOfTwo(int res) {
+            if (res <= 2) {
+                return 2;
+            }
+            res --;
+            res |= res >> 1;
+            res |= res >> 2;
+            res |= res >> 4;
+            res |= res >> 8;
+            res |= res >> 16;
+            res ++;
+            return res;
+        }
     }
 }
@@ -65,6 +65,22 @@ abstract class PooledByteBuf<T> extends AbstractReferenceCountedByteBuf {
         return length;
     }
 
+    /**
+     * Returns the capacity reserved in the chunk, i.e. the normalized size class of this buffer.
+     */
+    final int maxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Returns {@code true} if the memory of this buffer has been released by
+     * {@link PooledByteBufAllocator#releaseAll()}.
+     */
+    final boolean isReleasedByAllocator() {
+        PoolChunk<T> chunk = this.chunk;
+        return chunk != null && chunk.id == 0;
+    }
+
     @Override
     public final ByteBufAllocator alloc() {
         return chunk.arena.parent;
@@ -91,7 +107,7 @@ abstract class PooledByteBuf<T> extends AbstractReferenceCountedByteBuf {
             final long handle = this.handle;
             this.handle = -1;
             memory = null;
-            chunk.arena.free(chunk, handle);
+            chunk.arena.free(chunk, handle, maxLength);
             recycle();
         }
     }
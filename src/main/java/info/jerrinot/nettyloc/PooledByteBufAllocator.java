@@ -16,8 +16,19 @@
 
 package info.jerrinot.nettyloc;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PooledByteBufAllocator extends AbstractByteBufAllocator {
 
@@ -25,9 +36,24 @@ public class PooledByteBufAllocator extends AbstractByteBufAllocator {
 
     private static final int DEFAULT_PAGE_SIZE;
     private static final int DEFAULT_MAX_ORDER; // 8192 << 11 = 16 MiB per chunk
+    private static final int DEFAULT_TINY_CACHE_SIZE;
+    private static final int DEFAULT_SMALL_CACHE_SIZE;
+    private static final int DEFAULT_NORMAL_CACHE_SIZE;
+    private static final int DEFAULT_MAX_CACHED_BUFFER_CAPACITY;
+    private static final int DEFAULT_CACHE_TRIM_INTERVAL;
+    private static final int DEFAULT_SIZE_CLASSES_PER_DOUBLING;
+    private static final int DEFAULT_MAX_RETAINED_CHUNKS;
+    private static final long DEFAULT_CHUNK_DECAY_MILLIS;
 
     private static final int MIN_PAGE_SIZE = 4096;
-    private static final int MAX_CHUNK_SIZE = (int) (((long) Integer.MAX_VALUE + 1) / 2);
+    // Global handles have 19 bits for the index of a subpage element, which is at least 16 bytes long.
+    private static final int MAX_PAGE_SIZE = 8 * 1024 * 1024;
+    // Global handles have 24 bits for the index of a node of the memory map, which has 2 << maxOrder of them.
+    private static final int MAX_ORDER = 20;
+    private static final long MAX_CHUNK_SIZE = 64L * 1024 * 1024 * 1024;
+
+    private static final int DIRECT_BUFFER_HEAP_COST = PlatformDependent.shallowSize(
+            PlatformDependent.hasUnsafe() ? PooledUnsafeDirectByteBuf.class : PooledDirectByteBuf.class);
 
     static {
         int defaultPageSize = SystemPropertyUtil.getInt("io.netty.allocator.pageSize", 8192);
@@ -49,7 +75,7 @@ public class PooledByteBufAllocator extends AbstractByteBufAllocator {
         // Determine reasonable default for nDirectArena.
         // Assuming each arena has 3 chunks, the pool should not consume more than 50% of max memory.
         final Runtime runtime = Runtime.getRuntime();
-        final int defaultChunkSize = DEFAULT_PAGE_SIZE << DEFAULT_MAX_ORDER;
+        final long defaultChunkSize = (long) DEFAULT_PAGE_SIZE << DEFAULT_MAX_ORDER;
 
         DEFAULT_NUM_DIRECT_ARENA = Math.max(0,
                 SystemPropertyUtil.getInt(
@@ -58,11 +84,72 @@ public class PooledByteBufAllocator extends AbstractByteBufAllocator {
                                 runtime.availableProcessors(),
                                 PlatformDependent.maxDirectMemory() / defaultChunkSize / 2 / 3)));
 
+        // cache sizes
+        DEFAULT_TINY_CACHE_SIZE = SystemPropertyUtil.getInt("io.netty.allocator.tinyCacheSize", 512);
+        DEFAULT_SMALL_CACHE_SIZE = SystemPropertyUtil.getInt("io.netty.allocator.smallCacheSize", 256);
+        DEFAULT_NORMAL_CACHE_SIZE = SystemPropertyUtil.getInt("io.netty.allocator.normalCacheSize", 64);
+
+        // 32 kb is the default maximum capacity of the cached buffer. Similar to what is explained in
+        // 'Scalable memory allocation using jemalloc'
+        DEFAULT_MAX_CACHED_BUFFER_CAPACITY = SystemPropertyUtil.getInt(
+                "io.netty.allocator.maxCachedBufferCapacity", 32 * 1024);
+
+        // the number of threshold of allocations when cached entries will be freed up if not frequently used
+        DEFAULT_CACHE_TRIM_INTERVAL = SystemPropertyUtil.getInt(
+                "io.netty.allocator.cacheTrimInterval", 8192);
+
+        // the size classes between two powers of two, which bound the waste of an allocation to 1/4 of it
+        int defaultSizeClassesPerDoubling = SystemPropertyUtil.getInt("io.netty.allocator.sizeClassesPerDoubling", 4);
+        try {
+            validateSizeClassesPerDoubling(defaultSizeClassesPerDoubling);
+        } catch (Throwable t) {
+            defaultSizeClassesPerDoubling = 4;
+        }
+        DEFAULT_SIZE_CLASSES_PER_DOUBLING = defaultSizeClassesPerDoubling;
+
+        // empty chunks each arena keeps for reuse, and how long they stay unused before they are released
+        DEFAULT_MAX_RETAINED_CHUNKS = Math.max(0,
+                SystemPropertyUtil.getInt("io.netty.allocator.maxRetainedChunks", 1));
+        DEFAULT_CHUNK_DECAY_MILLIS = Math.max(0,
+                SystemPropertyUtil.getLong("io.netty.allocator.chunkDecayMillis", 10000));
     }
 
     public static final PooledByteBufAllocator DEFAULT = new PooledByteBufAllocator();
 
     private final PoolArena<ByteBuffer>[] directArenas;
+    final PoolChunkTable chunkTable = new PoolChunkTable();
+
+    private final int tinyCacheSize;
+    private final int smallCacheSize;
+    private final int normalCacheSize;
+
+    private final Set<PoolThreadCache> threadCaches =
+            Collections.newSetFromMap(new ConcurrentHashMap<PoolThreadCache, Boolean>());
+    private final AtomicLong freedThreadCacheHits = new AtomicLong();
+    private final AtomicLong freedThreadCacheMisses = new AtomicLong();
+    private final AtomicLong freedRequestedBytes = new AtomicLong();
+    private final AtomicLong freedAllocatedBytes = new AtomicLong();
+
+    // memory of all chunks, reserved before a chunk is created
+    private final AtomicLong usedMemory = new AtomicLong();
+    private final Object quotaLock = new Object();
+    // bumped whenever memory may have become available to a thread waiting for the quota, guarded by quotaLock
+    private long quotaSignals;
+    // threads which may wait for the quota to find room for an allocation in the existing chunks
+    private final AtomicInteger quotaWaiters = new AtomicInteger();
+    // 0 if unlimited
+    private volatile long maxMemory;
+    private volatile long quotaWaitNanos;
+
+    // chunks released while walks over the allocations are in progress are destroyed once the last walk ends
+    private final Object pinLock = new Object();
+    private int numPins;
+    private List<PoolChunk<?>> deferredChunks;
+
+    // empty chunks retained by the arenas are released by the ChunkTrimmer once they stay unused for the decay
+    final int maxRetainedChunks = DEFAULT_MAX_RETAINED_CHUNKS;
+    private final long chunkDecayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CHUNK_DECAY_MILLIS);
+    private final AtomicBoolean trimScheduled = new AtomicBoolean();
 
     final ThreadLocal<PoolThreadCache> threadCache = new ThreadLocal<PoolThreadCache>() {
         private final AtomicInteger index = new AtomicInteger();
@@ -77,42 +164,114 @@ public class PooledByteBufAllocator extends AbstractByteBufAllocator {
                 directArena = null;
             }
 
-            return new PoolThreadCache(directArena);
+            final PoolThreadCache cache = new PoolThreadCache(
+                    PooledByteBufAllocator.this, directArena, tinyCacheSize, smallCacheSize, normalCacheSize,
+                    DEFAULT_MAX_CACHED_BUFFER_CAPACITY, DEFAULT_CACHE_TRIM_INTERVAL);
+            threadCaches.add(cache);
+            ThreadDeathWatcher.watch(Thread.currentThread(), new Runnable() {
+                @Override
+                public void run() {
+                    cache.free();
+                }
+            });
+            return cache;
         }
     };
 
     public PooledByteBufAllocator() {
-        this(DEFAULT_NUM_DIRECT_ARENA, DEFAULT_PAGE_SIZE, DEFAULT_MAX_ORDER);
+        this(DEFAULT_NUM_DIRECT_ARENA);
+    }
+
+    public PooledByteBufAllocator(int nDirectArena) {
+        this(nDirectArena, DEFAULT_PAGE_SIZE, DEFAULT_MAX_ORDER);
     }
 
     public PooledByteBufAllocator(int nDirectArena, int pageSize, int maxOrder) {
+        this(nDirectArena, pageSize, maxOrder,
+                DEFAULT_TINY_CACHE_SIZE, DEFAULT_SMALL_CACHE_SIZE, DEFAULT_NORMAL_CACHE_SIZE);
+    }
 
-        final int chunkSize = validateAndCalculateChunkSize(pageSize, maxOrder);
+    public PooledByteBufAllocator(int nDirectArena, int pageSize, int maxOrder,
+                                  int tinyCacheSize, int smallCacheSize, int normalCacheSize) {
+        this(nDirectArena, pageSize, maxOrder, tinyCacheSize, smallCacheSize, normalCacheSize, null, false);
+    }
+
+    /**
+     * Creates an allocator whose chunks are memory-mapped files in {@code mappedDirectory} instead of direct
+     * memory. The amount of memory is then bounded by the disk rather than by {@code -XX:MaxDirectMemorySize}
+     * and RAM, with the page cache holding the working set.
+     *
+     * @param preFault {@code true} to load every chunk into memory when it is mapped, so the first accesses to
+     *                 it do not page fault
+     */
+    public PooledByteBufAllocator(int nDirectArena, File mappedDirectory, boolean preFault) {
+        this(nDirectArena, DEFAULT_PAGE_SIZE, DEFAULT_MAX_ORDER,
+                DEFAULT_TINY_CACHE_SIZE, DEFAULT_SMALL_CACHE_SIZE, DEFAULT_NORMAL_CACHE_SIZE,
+                checkDirectory(mappedDirectory), preFault);
+    }
+
+    private PooledByteBufAllocator(int nDirectArena, int pageSize, int maxOrder,
+                                   int tinyCacheSize, int smallCacheSize, int normalCacheSize,
+                                   File mappedDirectory, boolean preFault) {
+        this.tinyCacheSize = tinyCacheSize;
+        this.smallCacheSize = smallCacheSize;
+        this.normalCacheSize = normalCacheSize;
+
+        final long chunkSize = validateAndCalculateChunkSize(pageSize, maxOrder);
 
         if (nDirectArena < 0) {
             throw new IllegalArgumentException("nDirectArea: " + nDirectArena + " (expected: >= 0)");
         }
+        if (chunkSize > PoolArena.DirectArena.MAX_BUFFER_CHUNK_SIZE) {
+            // a mapping cannot be larger than a ByteBuffer, native memory is allocated through Unsafe
+            if (mappedDirectory != null) {
+                throw new IllegalArgumentException(String.format(
+                        "pageSize (%d) << maxOrder (%d) of a mapped allocator must not exceed %d",
+                        pageSize, maxOrder, PoolArena.DirectArena.MAX_BUFFER_CHUNK_SIZE));
+            }
+            if (!PlatformDependent.hasUnsafe()) {
+                throw new UnsupportedOperationException(
+                        "chunks larger than " + PoolArena.DirectArena.MAX_BUFFER_CHUNK_SIZE +
+                        " bytes need sun.misc.Unsafe");
+            }
+        }
 
         int pageShifts = validateAndCalculatePageShifts(pageSize);
 
         if (nDirectArena > 0) {
             directArenas = newArenaArray(nDirectArena);
             for (int i = 0; i < directArenas.length; i ++) {
-                directArenas[i] = new PoolArena.DirectArena(this, pageSize, maxOrder, pageShifts, chunkSize);
+                if (mappedDirectory != null) {
+                    directArenas[i] = new PoolArena.MappedArena(this, i, pageSize, maxOrder, pageShifts, chunkSize,
+                            DEFAULT_SIZE_CLASSES_PER_DOUBLING, mappedDirectory, preFault);
+                } else {
+                    directArenas[i] = new PoolArena.DirectArena(this, i, pageSize, maxOrder, pageShifts, chunkSize,
+                            DEFAULT_SIZE_CLASSES_PER_DOUBLING);
+                }
             }
         } else {
             directArenas = null;
         }
     }
 
+    private static File checkDirectory(File directory) {
+        if (directory == null) {
+            throw new NullPointerException("mappedDirectory");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("mappedDirectory: " + directory + " (expected: a directory)");
+        }
+        return directory;
+    }
+
     @SuppressWarnings("unchecked")
     private static <T> PoolArena<T>[] newArenaArray(int size) {
         return new PoolArena[size];
     }
 
     private static int validateAndCalculatePageShifts(int pageSize) {
-        if (pageSize < MIN_PAGE_SIZE) {
-            throw new IllegalArgumentException("pageSize: " + pageSize + " (expected: 4096+)");
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("pageSize: " + pageSize + " (expected: 4096-8388608)");
         }
 
         // Ensure pageSize is power of 2.
@@ -134,13 +293,21 @@ public class PooledByteBufAllocator extends AbstractByteBufAllocator {
         return pageShifts;
     }
 
-    private static int validateAndCalculateChunkSize(int pageSize, int maxOrder) {
-        if (maxOrder > 14) {
-            throw new IllegalArgumentException("maxOrder: " + maxOrder + " (expected: 0-14)");
+    private static void validateSizeClassesPerDoubling(int sizeClassesPerDoubling) {
+        if (sizeClassesPerDoubling != 1 && sizeClassesPerDoubling != 2 &&
+            sizeClassesPerDoubling != 4 && sizeClassesPerDoubling != 8) {
+            throw new IllegalArgumentException(
+                    "sizeClassesPerDoubling: " + sizeClassesPerDoubling + " (expected: 1, 2, 4 or 8)");
         }
+    }
 
-        // Ensure the resulting chunkSize does not overflow.
-        int chunkSize = pageSize;
+    private static long validateAndCalculateChunkSize(int pageSize, int maxOrder) {
+        if (maxOrder > MAX_ORDER) {
+            throw new IllegalArgumentException("maxOrder: " + maxOrder + " (expected: 0-" + MAX_ORDER + ')');
+        }
+
+        // Ensure the resulting chunkSize does not exceed the limit.
+        long chunkSize = pageSize;
         for (int i = maxOrder; i > 0; i --) {
             if (chunkSize > MAX_CHUNK_SIZE / 2) {
                 throw new IllegalArgumentException(String.format(
@@ -166,6 +333,855 @@ public class PooledByteBufAllocator extends AbstractByteBufAllocator {
         }
     }
 
+    /**
+     * Allocate a direct {@link ByteBuf} from the arena selected by {@code stripe} instead of the arena bound to
+     * the calling thread. Callers which always use the same stripe from the same thread never contend with
+     * each other on an arena.
+     */
+    public ByteBuf directBuffer(int capacity, int stripe) {
+        if (capacity == 0 || directArenas == null) {
+            return directBuffer(capacity);
+        }
+        return directArenas[stripeIndex(stripe)].allocate(threadCache.get(), capacity);
+    }
+
+    /**
+     * Allocate {@code capacity} bytes of direct memory without creating a {@link ByteBuf} for them.
+     * The returned handle identifies the allocation until it is passed to {@link #freeHandle(long)}.
+     * <p>
+     * The first 8 bytes of memory handed out for the first time since it was carved from a chunk are zero, even
+     * when seen by a concurrent {@link #forEachAllocation(AllocationCursor, AllocationVisitor)}. Memory reused from
+     * the thread cache holds whatever its previous owner left there.
+     * </p>
+     */
+    public long allocateHandle(int capacity) {
+        checkHandlesSupported();
+        PoolThreadCache cache = threadCache.get();
+        return cache.directArena.allocateHandle(cache, capacity, true);
+    }
+
+    /**
+     * Allocate {@code capacity} bytes of direct memory from the arena selected by {@code stripe}, without creating
+     * a {@link ByteBuf} for them.
+     *
+     * @see #directBuffer(int, int)
+     */
+    public long allocateHandle(int capacity, int stripe) {
+        checkHandlesSupported();
+        return directArenas[stripeIndex(stripe)].allocateHandle(threadCache.get(), capacity, true);
+    }
+
+    private int stripeIndex(int stripe) {
+        return (stripe & Integer.MAX_VALUE) % directArenas.length;
+    }
+
+    /**
+     * Release the allocation identified by the {@code handle}.
+     */
+    public void freeHandle(long handle) {
+        chunk(handle).arena.freeHandle(handle);
+    }
+
+    /**
+     * Allocate {@code capacities[0..n)} like {@link #allocateHandle(int, int)} and store the handles in
+     * {@code handles[0..n)}. The allocations are grouped by their arena and every arena is locked once for all
+     * allocations its chunks can serve. Either all allocations succeed or none is made.
+     *
+     * @param stripes the stripe of every allocation, or {@code null} to use the arena bound to the calling thread
+     */
+    public void allocateHandles(int[] capacities, int[] stripes, long[] handles, int n) {
+        checkHandlesSupported();
+        PoolThreadCache cache = threadCache.get();
+        int[] indices = new int[n];
+        Arrays.fill(handles, 0, n, -1);
+        try {
+            if (stripes == null) {
+                for (int i = 0; i < n; i ++) {
+                    indices[i] = i;
+                }
+                cache.directArena.allocateHandles(cache, capacities, indices, 0, n, handles, true);
+                return;
+            }
+
+            // counting sort of the allocations by arena
+            int[] ends = new int[directArenas.length];
+            for (int i = 0; i < n; i ++) {
+                ends[stripeIndex(stripes[i])] ++;
+            }
+            for (int a = 1; a < ends.length; a ++) {
+                ends[a] += ends[a - 1];
+            }
+            for (int i = n - 1; i >= 0; i --) {
+                indices[-- ends[stripeIndex(stripes[i])]] = i;
+            }
+            // ends[a] is the start of arena a now
+            for (int a = 0; a < ends.length; a ++) {
+                int end = a + 1 < ends.length ? ends[a + 1] : n;
+                if (ends[a] < end) {
+                    directArenas[a].allocateHandles(cache, capacities, indices, ends[a], end, handles, true);
+                }
+            }
+        } catch (RuntimeException e) {
+            int allocated = 0;
+            long[] rollback = new long[n];
+            for (int i = 0; i < n; i ++) {
+                if (handles[i] >= 0) {
+                    rollback[allocated ++] = handles[i];
+                }
+            }
+            freeHandles(rollback, allocated);
+            throw e;
+        }
+    }
+
+    /**
+     * Release the allocations identified by {@code handles[0..n)}. The handles are grouped by their arena and
+     * every arena is locked once for all allocations the thread cache does not take.
+     */
+    public void freeHandles(long[] handles, int n) {
+        PoolThreadCache cache = threadCache.get();
+        long[] sorted = new long[n];
+        int[] ends = new int[directArenas.length];
+        for (int i = 0; i < n; i ++) {
+            ends[chunk(handles[i]).arena.index] ++;
+        }
+        for (int a = 1; a < ends.length; a ++) {
+            ends[a] += ends[a - 1];
+        }
+        for (int i = n - 1; i >= 0; i --) {
+            sorted[-- ends[chunk(handles[i]).arena.index]] = handles[i];
+        }
+        for (int a = 0; a < ends.length; a ++) {
+            int end = a + 1 < ends.length ? ends[a + 1] : n;
+            if (ends[a] < end) {
+                directArenas[a].freeHandles(cache, sorted, ends[a], end);
+            }
+        }
+    }
+
+    /**
+     * Returns the address of the first byte of the allocation identified by the {@code handle}.
+     */
+    public long handleAddress(long handle) {
+        PoolChunk<ByteBuffer> chunk = chunk(handle);
+        return chunk.memoryAddress + chunk.offset(PoolChunk.localHandle(handle));
+    }
+
+    /**
+     * Returns the usable capacity of the allocation identified by the {@code handle}, which may be greater
+     * than the requested capacity.
+     */
+    public int handleCapacity(long handle) {
+        return chunk(handle).capacity(PoolChunk.localHandle(handle));
+    }
+
+    /**
+     * Copies {@code length} bytes from {@code src} starting at {@code srcIndex} to the allocation identified by the
+     * {@code handle}, starting {@code index} bytes into it.
+     *
+     * @throws IndexOutOfBoundsException if either range does not fit
+     */
+    public void writeBytes(long handle, int index, byte[] src, int srcIndex, int length) {
+        long address = checkedAddress(handle, index, length);
+        checkArrayIndex("srcIndex", srcIndex, length, src.length);
+        PlatformDependent.copyMemory(src, srcIndex, address, length);
+    }
+
+    /**
+     * Copies {@code length} bytes from the allocation identified by the {@code handle}, starting {@code index}
+     * bytes into it, to {@code dst} starting at {@code dstIndex}.
+     *
+     * @throws IndexOutOfBoundsException if either range does not fit
+     */
+    public void readBytes(long handle, int index, byte[] dst, int dstIndex, int length) {
+        long address = checkedAddress(handle, index, length);
+        checkArrayIndex("dstIndex", dstIndex, length, dst.length);
+        PlatformDependent.copyMemory(address, dst, dstIndex, length);
+    }
+
+    /**
+     * Copies {@code length} bytes between two allocations, which may belong to different arenas but must not
+     * overlap.
+     *
+     * @throws IndexOutOfBoundsException if either range does not fit
+     */
+    public void copyBytes(long srcHandle, int srcIndex, long dstHandle, int dstIndex, int length) {
+        long srcAddress = checkedAddress(srcHandle, srcIndex, length);
+        PlatformDependent.copyMemory(srcAddress, checkedAddress(dstHandle, dstIndex, length), length);
+    }
+
+    private long checkedAddress(long handle, int index, int length) {
+        PoolChunk<ByteBuffer> chunk = chunk(handle);
+        long localHandle = PoolChunk.localHandle(handle);
+        if (length < 0) {
+            throw new IllegalArgumentException("length: " + length + " (expected: >= 0)");
+        }
+        int capacity = chunk.capacity(localHandle);
+        if (index < 0 || index > capacity - length) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "index: %d, length: %d (expected: range(0, %d))", index, length, capacity));
+        }
+        return chunk.memoryAddress + chunk.offset(localHandle) + index;
+    }
+
+    private static void checkArrayIndex(String name, int index, int length, int arrayLength) {
+        if (index < 0 || index > arrayLength - length) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "%s: %d, length: %d (expected: range(0, %d))", name, index, length, arrayLength));
+        }
+    }
+
+    /**
+     * Returns the number of bytes the {@code buf} occupies in its arena, i.e. the normalized size class of its
+     * allocation, which may be greater than {@link ByteBuf#capacity()}.
+     */
+    public static int allocatedCapacity(ByteBuf buf) {
+        if (buf instanceof PooledByteBuf) {
+            return ((PooledByteBuf<?>) buf).maxLength();
+        }
+        return buf.capacity();
+    }
+
+    /**
+     * Returns {@code true} if the memory of the {@code buf} has been released by {@link #releaseAll()}. Such a
+     * buffer must not be accessed nor released anymore.
+     */
+    public static boolean isReleasedByAllocator(ByteBuf buf) {
+        return buf instanceof PooledByteBuf && ((PooledByteBuf<?>) buf).isReleasedByAllocator();
+    }
+
+    /**
+     * Returns the heap footprint of a single pooled direct {@link ByteBuf}, not counting the memory it points to.
+     */
+    public static int directBufferHeapCost() {
+        return DIRECT_BUFFER_HEAP_COST;
+    }
+
+    private void checkHandlesSupported() {
+        if (directArenas == null) {
+            throw new IllegalStateException("handles need at least one direct arena");
+        }
+        if (!PlatformDependent.hasUnsafe()) {
+            throw new UnsupportedOperationException("handles need sun.misc.Unsafe");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private PoolChunk<ByteBuffer> chunk(long handle) {
+        PoolChunk<ByteBuffer> chunk = (PoolChunk<ByteBuffer>) chunkTable.get(PoolChunk.chunkId(handle));
+        if (chunk == null) {
+            throw new IllegalArgumentException("handle: " + handle + " (not allocated)");
+        }
+        return chunk;
+    }
+
+    /**
+     * Limits the memory of all chunks of this allocator to {@code maxMemory} bytes. The limit is checked before a
+     * chunk is created, outside of the arena locks. An allocation which needs a new chunk when the limit is reached
+     * waits up to {@code maxWaitMillis} for other threads to free memory and then fails with an
+     * {@link OffHeapQuotaExceededException}. It waits without holding any lock of its arena, so other allocations,
+     * including those waiting as well, are not held up. This keeps the allocator clear of
+     * {@code -XX:MaxDirectMemorySize}, where the JDK falls back to {@code System.gc()} and sleeps while the arena
+     * lock is held.
+     *
+     * @param maxMemory the limit in bytes, {@code 0} for none
+     * @param maxWaitMillis {@code 0} to fail right away
+     */
+    public void setMemoryQuota(long maxMemory, long maxWaitMillis) {
+        if (maxMemory < 0) {
+            throw new IllegalArgumentException("maxMemory: " + maxMemory + " (expected: >= 0)");
+        }
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("maxWaitMillis: " + maxWaitMillis + " (expected: >= 0)");
+        }
+        quotaWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.maxMemory = maxMemory;
+        synchronized (quotaLock) {
+            // the limit may have been raised
+            quotaSignals ++;
+            quotaLock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the memory taken by the chunks of this allocator.
+     */
+    public long usedMemory() {
+        return usedMemory.get();
+    }
+
+    /**
+     * Returns the memory quota set by {@link #setMemoryQuota(long, long)}, {@code 0} if there is none.
+     */
+    public long maxMemory() {
+        return maxMemory;
+    }
+
+    long quotaWaitNanos() {
+        return quotaWaitNanos;
+    }
+
+    /**
+     * Reserves {@code size} bytes of the memory quota for a new chunk, waiting up to the quota wait time for other
+     * threads to release memory. Must not be called with an arena lock held.
+     *
+     * @throws OffHeapQuotaExceededException if the memory is not released in time
+     */
+    void reserveMemory(long size) {
+        long deadline = 0;
+        for (;;) {
+            // read before trying, so memory released in between ends the wait right away
+            long signals = quotaSignals();
+            if (tryReserveMemory(size)) {
+                return;
+            }
+            if (deadline == 0) {
+                deadline = System.nanoTime() + quotaWaitNanos;
+            }
+            awaitQuota(signals, size, deadline);
+        }
+    }
+
+    /**
+     * Reserves {@code size} bytes of the memory quota if they are available without waiting. Empty chunks retained
+     * by the arenas are released to make room.
+     */
+    boolean tryReserveMemory(long size) {
+        for (;;) {
+            long maxMemory = this.maxMemory;
+            long used = usedMemory.get();
+            if (maxMemory == 0 || used + size <= maxMemory) {
+                if (usedMemory.compareAndSet(used, used + size)) {
+                    return true;
+                }
+                continue;
+            }
+
+            // empty chunks retained for reuse give way to the memory asked for
+            if (!releaseRetainedChunks()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of times the threads waiting for the quota have been signalled, see
+     * {@link #awaitQuota(long, long, long)}.
+     */
+    long quotaSignals() {
+        synchronized (quotaLock) {
+            return quotaSignals;
+        }
+    }
+
+    /**
+     * Waits until the threads waiting for the quota are signalled again after {@link #quotaSignals()} returned
+     * {@code signals}, because memory has been released or a chunk has been added. Every allocation waits until a
+     * single deadline, however often it is woken up.
+     *
+     * @throws OffHeapQuotaExceededException if the {@code deadline} passes first
+     */
+    void awaitQuota(long signals, long size, long deadline) {
+        synchronized (quotaLock) {
+            while (quotaSignals == signals) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    throw new OffHeapQuotaExceededException("failed to reserve " + size + " bytes, "
+                            + usedMemory.get() + " of " + maxMemory + " bytes in use");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(quotaLock, remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new OffHeapQuotaExceededException("interrupted while waiting to reserve " + size + " bytes");
+                }
+            }
+        }
+    }
+
+    void releaseMemory(long size) {
+        usedMemory.addAndGet(-size);
+        signalQuotaWaiters();
+    }
+
+    /**
+     * Wakes up the threads waiting for the quota, so they look for room again. Called when memory is released and
+     * when a chunk is added. Signalled even without a quota wait time, so a thread which missed the quota while
+     * another one held a reservation it did not need tries again rather than failing.
+     */
+    void signalQuotaWaiters() {
+        synchronized (quotaLock) {
+            quotaSignals ++;
+            quotaLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wakes up the threads waiting for the quota if there are any, so they look for room in the memory just freed.
+     */
+    void signalQuotaWaitersIfAny() {
+        if (quotaWaiters.get() > 0) {
+            signalQuotaWaiters();
+        }
+    }
+
+    void addQuotaWaiter() {
+        quotaWaiters.incrementAndGet();
+    }
+
+    void removeQuotaWaiter() {
+        quotaWaiters.decrementAndGet();
+    }
+
+    /**
+     * Makes sure the {@link ChunkTrimmer} releases the chunks the arenas retain. Called by an arena when it retains
+     * a chunk.
+     */
+    void scheduleTrim() {
+        if (trimScheduled.compareAndSet(false, true)) {
+            ChunkTrimmer.schedule(this);
+        }
+    }
+
+    /**
+     * Releases the empty chunks retained by the arenas which have stayed unused for the decay period.
+     *
+     * @return {@code true} if the arenas still retain chunks, which have to be trimmed again later
+     */
+    boolean trimRetainedChunks() {
+        boolean retained = false;
+        for (PoolArena<ByteBuffer> arena: directArenas) {
+            retained |= arena.trimRetainedChunks(chunkDecayNanos);
+        }
+        if (retained) {
+            return true;
+        }
+        trimScheduled.set(false);
+        // an arena may have retained a chunk after it was trimmed, without scheduling the trimmer again
+        return hasTrimmableChunks() && trimScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases the empty chunks retained by the arenas right away, except for the reserved ones.
+     *
+     * @return {@code true} if any chunk was released
+     */
+    boolean releaseRetainedChunks() {
+        if (directArenas == null || !hasTrimmableChunks()) {
+            return false;
+        }
+        for (PoolArena<ByteBuffer> arena: directArenas) {
+            arena.trimRetainedChunks(0);
+        }
+        return true;
+    }
+
+    private boolean hasTrimmableChunks() {
+        for (PoolArena<ByteBuffer> arena: directArenas) {
+            if (arena.hasTrimmableChunks()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of direct arenas, which is also the number of distinct stripes.
+     */
+    public int numDirectArenas() {
+        return directArenas == null ? 0 : directArenas.length;
+    }
+
+    /**
+     * Returns the statistics of the direct arenas. They stay current as the arenas change and are read without
+     * locking.
+     */
+    public List<PoolArenaMetric> arenaMetrics() {
+        if (directArenas == null) {
+            return Collections.emptyList();
+        }
+        return Collections.<PoolArenaMetric>unmodifiableList(Arrays.asList(directArenas));
+    }
+
+    /**
+     * Returns the number of allocations served by the thread caches without entering an arena.
+     */
+    public long threadCacheHits() {
+        long hits = freedThreadCacheHits.get();
+        for (PoolThreadCache cache: threadCaches) {
+            hits += cache.hits();
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of cacheable allocations the thread caches could not serve.
+     */
+    public long threadCacheMisses() {
+        long misses = freedThreadCacheMisses.get();
+        for (PoolThreadCache cache: threadCaches) {
+            misses += cache.misses();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the sum of the capacities requested from this allocator so far. Compared to {@link #allocatedBytes()}
+     * it tells how much memory the rounding to size classes wastes.
+     */
+    public long requestedBytes() {
+        long bytes = freedRequestedBytes.get();
+        for (PoolThreadCache cache: threadCaches) {
+            bytes += cache.requestedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the sum of the capacities the allocations counted by {@link #requestedBytes()} were rounded up to.
+     */
+    public long allocatedBytes() {
+        long bytes = freedAllocatedBytes.get();
+        for (PoolThreadCache cache: threadCaches) {
+            bytes += cache.allocatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of threads which currently hold a thread cache of this allocator.
+     */
+    public int numThreadCaches() {
+        return threadCaches.size();
+    }
+
+    /**
+     * Returns {@code true} if this allocator can allocate {@link ByteBuf}s. Chunks larger than 1 GiB do not fit into
+     * a {@code ByteBuffer}, so allocators with such chunks can only allocate handles.
+     */
+    public boolean supportsBuffers() {
+        return directArenas == null || directArenas[0].chunkSize <= PoolArena.DirectArena.MAX_BUFFER_CHUNK_SIZE;
+    }
+
+    /**
+     * Returns {@code true} if the chunks of this allocator are memory-mapped files.
+     */
+    public boolean isMapped() {
+        return directArenas != null && directArenas[0] instanceof PoolArena.MappedArena;
+    }
+
+    /**
+     * Writes the modified memory of a memory-mapped allocator back to its files and waits until it is done.
+     * Without calling this the operating system writes the memory back at its own pace. Does nothing if the
+     * allocator is not {@link #isMapped() mapped}. Runs concurrently with allocations and releases, but not with
+     * {@link #releaseAll()}.
+     */
+    public void flush() {
+        if (!isMapped()) {
+            return;
+        }
+        pinChunks();
+        try {
+            for (PoolArena<ByteBuffer> arena: directArenas) {
+                ((PoolArena.MappedArena) arena).flush();
+            }
+        } finally {
+            unpinChunks();
+        }
+    }
+
+    /**
+     * Continues a walk of the {@code cursor} which goes through the chunks of this allocator once, in the order of
+     * their ids, and passes their allocations to the {@code visitor} the way
+     * {@link #visitAllocations(AllocationCursor, int, AllocationVisitor)} does. A new cursor starts with the first
+     * chunk. Chunks created during the walk are visited only if their ids are above the id of the chunk the walk is
+     * in. Allocations and releases go on while the walk is in progress. Must not run concurrently with
+     * {@link #releaseAll()}.
+     *
+     * @return {@code true} once the walk has gone through the last chunk, {@code false} if the visitor stopped it,
+     *         in which case the next call with the same cursor goes on with the allocation after the one the
+     *         visitor stopped at
+     */
+    public boolean forEachAllocation(AllocationCursor cursor, AllocationVisitor visitor) {
+        checkHandlesSupported();
+        pinChunks();
+        try {
+            for (;;) {
+                PoolChunk<?> chunk = cursor.chunk;
+                // the chunk may have been released since the previous call
+                if (chunk == null || cursor.position == cursor.allocations.size
+                        || chunkTable.get(cursor.chunkId) != chunk) {
+                    if (!enterChunk(cursor, chunkTable.nextAbove(cursor.chunkId))) {
+                        return true;
+                    }
+                    continue;
+                }
+                if (!chunk.visitAllocations(cursor, cursor.allocations.size, visitor)) {
+                    return false;
+                }
+            }
+        } finally {
+            unpinChunks();
+        }
+    }
+
+    /**
+     * Continues the walk of the {@code cursor} over the allocations of this allocator and moves it past up to
+     * {@code maxAllocations} of them. The walk goes through the chunks in the order of their ids and starts over
+     * with the first chunk after the last one, so repeated calls visit every allocation again and again. Entering a
+     * chunk counts as moving past an allocation, which bounds the work of a call even if the chunks are empty.
+     * <p>
+     * The allocations of a chunk are collected under the lock of its arena when the walk enters the chunk. Those
+     * released to their chunk since then are skipped, the others are passed to the {@code visitor} with a lock held
+     * which keeps them allocated until the visitor returns, see {@link AllocationVisitor}. Allocations held by
+     * thread caches count as allocated, their memory may be reused for allocations of the same size meanwhile.
+     * Must not run concurrently with {@link #releaseAll()}.
+     * </p>
+     *
+     * @return the number of allocations the walk moved past
+     */
+    public int visitAllocations(AllocationCursor cursor, int maxAllocations, AllocationVisitor visitor) {
+        checkHandlesSupported();
+        pinChunks();
+        try {
+            int work = 0;
+            int visited = 0;
+            while (work < maxAllocations) {
+                PoolChunk<?> chunk = cursor.chunk;
+                PoolChunk.Allocations allocations = cursor.allocations;
+                // the chunk may have been released since the previous call
+                if (chunk == null || cursor.position == allocations.size || chunkTable.get(cursor.chunkId) != chunk) {
+                    work ++;
+                    if (!enterChunk(cursor, chunkTable.next(cursor.chunkId))) {
+                        break;
+                    }
+                    continue;
+                }
+
+                int start = cursor.position;
+                boolean goOn = chunk.visitAllocations(
+                        cursor, Math.min(allocations.size, start + maxAllocations - work), visitor);
+                work += cursor.position - start;
+                visited += cursor.position - start;
+                if (!goOn) {
+                    break;
+                }
+            }
+            return visited;
+        } finally {
+            unpinChunks();
+        }
+    }
+
+    /**
+     * Moves the {@code cursor} into the {@code chunk} and collects its allocations.
+     *
+     * @return {@code false} if there is no chunk to enter
+     */
+    private static boolean enterChunk(AllocationCursor cursor, PoolChunk<?> chunk) {
+        cursor.allocations.clear();
+        cursor.position = 0;
+        cursor.chunk = null;
+        if (chunk == null) {
+            return false;
+        }
+        synchronized (chunk.arena) {
+            int id = chunk.id;
+            if (id == 0) {
+                // released since it was looked up, the walk goes on with the next chunk
+                return true;
+            }
+            cursor.chunk = chunk;
+            cursor.chunkId = id;
+            chunk.collectAllocations(cursor.allocations);
+        }
+        return true;
+    }
+
+    private void pinChunks() {
+        synchronized (pinLock) {
+            numPins ++;
+        }
+    }
+
+    private void unpinChunks() {
+        List<PoolChunk<?>> released = null;
+        synchronized (pinLock) {
+            if (-- numPins == 0) {
+                released = deferredChunks;
+                deferredChunks = null;
+            }
+        }
+        if (released != null) {
+            for (PoolChunk<?> chunk: released) {
+                destroyChunk(chunk);
+            }
+        }
+    }
+
+    /**
+     * Keeps the memory of a chunk released during a {@link #forEachAllocation(AllocationCursor, AllocationVisitor)},
+     * {@link #visitAllocations(AllocationCursor, int, AllocationVisitor)} or {@link #flush()} until it ends.
+     *
+     * @return {@code true} if the chunk is destroyed later, {@code false} if the caller has to destroy it
+     */
+    boolean deferDestroy(PoolChunk<?> chunk) {
+        synchronized (pinLock) {
+            if (numPins == 0) {
+                return false;
+            }
+            if (deferredChunks == null) {
+                deferredChunks = new ArrayList<PoolChunk<?>>();
+            }
+            deferredChunks.add(chunk);
+            return true;
+        }
+    }
+
+    private static <T> void destroyChunk(PoolChunk<T> chunk) {
+        chunk.arena.destroy(chunk);
+    }
+
+    /**
+     * Releases all memory of this allocator at once, in time proportional to the number of chunks rather than the
+     * number of allocations. The chunks are destroyed by up to one thread per available processor, each working
+     * through the chunks of whole arenas.
+     * <p>
+     * All outstanding buffers and handles are invalidated: {@link #isReleasedByAllocator(ByteBuf)} returns
+     * {@code true} for the buffers and the handle methods reject the handles. The allocator stays usable and
+     * serves new allocations from fresh chunks. Must not run concurrently with allocations or releases of
+     * this allocator.
+     * </p>
+     */
+    public void releaseAll() {
+        if (directArenas == null) {
+            return;
+        }
+
+        // unregister first, so a thread cache freed concurrently skips the chunks
+        List<PoolChunk<?>> chunks = chunkTable.clear();
+        for (PoolArena<ByteBuffer> arena: directArenas) {
+            arena.reset();
+        }
+
+        @SuppressWarnings("unchecked")
+        final List<PoolChunk<ByteBuffer>>[] chunksByArena = new List[directArenas.length];
+        for (PoolChunk<?> c: chunks) {
+            @SuppressWarnings("unchecked")
+            PoolChunk<ByteBuffer> chunk = (PoolChunk<ByteBuffer>) c;
+            int arenaIdx = chunk.arena.index;
+            if (chunksByArena[arenaIdx] == null) {
+                chunksByArena[arenaIdx] = new ArrayList<PoolChunk<ByteBuffer>>();
+            }
+            chunksByArena[arenaIdx].add(chunk);
+        }
+
+        final AtomicInteger nextArena = new AtomicInteger();
+        Runnable destroyTask = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = nextArena.getAndIncrement(); i < chunksByArena.length; i = nextArena.getAndIncrement()) {
+                    List<PoolChunk<ByteBuffer>> arenaChunks = chunksByArena[i];
+                    if (arenaChunks == null) {
+                        continue;
+                    }
+                    for (PoolChunk<ByteBuffer> chunk: arenaChunks) {
+                        chunk.arena.destroy(chunk);
+                    }
+                }
+            }
+        };
+
+        int nThreads = Math.min(chunksByArena.length, Runtime.getRuntime().availableProcessors());
+        Thread[] helpers = new Thread[nThreads - 1];
+        for (int i = 0; i < helpers.length; i ++) {
+            helpers[i] = new Thread(destroyTask, "hugecast-release-" + i);
+            helpers[i].setDaemon(true);
+            helpers[i].start();
+        }
+        destroyTask.run();
+        joinUninterruptibly(helpers);
+    }
+
+    /**
+     * Creates {@code chunksPerArena} chunks in every arena ahead of time and faults their memory in, so the first
+     * allocations do not wait for new chunks. The chunks are created by up to one thread per available processor,
+     * including the caller. Each arena keeps the chunks reserved this way for good, even while they are empty; only
+     * {@link #releaseAll()} releases them.
+     *
+     * @return the time the reservation took in nanoseconds
+     * @throws OffHeapQuotaExceededException if the chunks do not fit into the memory quota, in which case the chunks
+     *                                       created so far stay reserved
+     */
+    public long reserveChunks(int chunksPerArena) {
+        if (chunksPerArena < 0) {
+            throw new IllegalArgumentException("chunksPerArena: " + chunksPerArena + " (expected: >= 0)");
+        }
+        long start = System.nanoTime();
+        if (directArenas == null || chunksPerArena == 0) {
+            return 0;
+        }
+
+        final int numChunks = directArenas.length * chunksPerArena;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        Runnable reserveTask = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = nextChunk.getAndIncrement(); i < numChunks; i = nextChunk.getAndIncrement()) {
+                    try {
+                        directArenas[i % directArenas.length].reserveChunk();
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        // makes the other threads stop as well
+                        nextChunk.set(numChunks);
+                        return;
+                    }
+                }
+            }
+        };
+
+        int nThreads = Math.min(numChunks, Runtime.getRuntime().availableProcessors());
+        Thread[] helpers = new Thread[nThreads - 1];
+        for (int i = 0; i < helpers.length; i ++) {
+            helpers[i] = new Thread(reserveTask, "hugecast-reserve-" + i);
+            helpers[i].setDaemon(true);
+            helpers[i].start();
+        }
+        reserveTask.run();
+        joinUninterruptibly(helpers);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void joinUninterruptibly(Thread[] threads) {
+        boolean interrupted = false;
+        for (Thread thread: threads) {
+            for (;;) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void threadCacheFreed(PoolThreadCache cache) {
+        if (threadCaches.remove(cache)) {
+            freedThreadCacheHits.addAndGet(cache.hits());
+            freedThreadCacheMisses.addAndGet(cache.misses());
+            freedRequestedBytes.addAndGet(cache.requestedBytes());
+            freedAllocatedBytes.addAndGet(cache.allocatedBytes());
+        }
+    }
+
     public String toString() {
         StringBuilder buf = new StringBuilder();
         buf.append(directArenas.length);
@@ -16,44 +16,116 @@
 
 package info.jerrinot.nettyloc;
 
-import java.util.IdentityHashMap;
+import java.lang.ref.WeakReference;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Light-weight object pool based on a thread-local stack.
+ * <p>
+ * An object recycled by a thread other than the one which created it is put on a queue which that thread owns
+ * for the stack of the creating thread, and the creating thread moves the objects of such queues to its stack
+ * when the stack runs empty. Both the stack and the queues of a thread are bounded, objects recycled beyond the
+ * bounds are left to the garbage collector.
+ * </p>
  *
  * @param <T> the type of the pooled object
  */
 public abstract class Recycler<T> {
 
+    private static final Handle NOOP_HANDLE = new Handle() { };
+    private static final AtomicInteger ID_GENERATOR = new AtomicInteger(Integer.MIN_VALUE);
+    private static final int OWN_THREAD_ID = ID_GENERATOR.getAndIncrement();
+    private static final int DEFAULT_MAX_CAPACITY;
+    private static final int MAX_SHARED_CAPACITY_FACTOR;
+    private static final int INITIAL_CAPACITY;
+    private static final int LINK_CAPACITY;
+
+    static {
+        // a capacity of 0 disables pooling
+        DEFAULT_MAX_CAPACITY = Math.max(0, SystemPropertyUtil.getInt("io.netty.recycler.maxCapacity", 32768));
+        MAX_SHARED_CAPACITY_FACTOR = Math.max(1,
+                SystemPropertyUtil.getInt("io.netty.recycler.maxSharedCapacityFactor", 2));
+        LINK_CAPACITY = Integer.highestOneBit(
+                Math.max(SystemPropertyUtil.getInt("io.netty.recycler.linkCapacity", 16), 16) - 1) << 1;
+        INITIAL_CAPACITY = Math.min(DEFAULT_MAX_CAPACITY, 256);
+    }
+
+    private final int maxCapacity;
+    private final int maxSharedCapacityFactor;
+
     private final ThreadLocal<Stack<T>> threadLocal = new ThreadLocal<Stack<T>>() {
         @Override
         protected Stack<T> initialValue() {
-            return new Stack<T>(Recycler.this, Thread.currentThread());
+            return new Stack<T>(Recycler.this, Thread.currentThread(), maxCapacity, maxSharedCapacityFactor);
+        }
+    };
+
+    private static final ThreadLocal<Map<Stack<?>, WeakOrderQueue>> DELAYED_RECYCLED =
+            new ThreadLocal<Map<Stack<?>, WeakOrderQueue>>() {
+        @Override
+        protected Map<Stack<?>, WeakOrderQueue> initialValue() {
+            return new WeakHashMap<Stack<?>, WeakOrderQueue>();
         }
     };
 
+    protected Recycler() {
+        this(DEFAULT_MAX_CAPACITY);
+    }
+
+    protected Recycler(int maxCapacity) {
+        this(maxCapacity, MAX_SHARED_CAPACITY_FACTOR);
+    }
+
+    /**
+     * @param maxCapacity objects a thread keeps at most, {@code 0} disables pooling
+     * @param maxSharedCapacityFactor the objects other threads keep for a thread on their queues are limited
+     *                                to {@code maxCapacity / maxSharedCapacityFactor}
+     */
+    protected Recycler(int maxCapacity, int maxSharedCapacityFactor) {
+        if (maxSharedCapacityFactor < 1) {
+            throw new IllegalArgumentException(
+                    "maxSharedCapacityFactor: " + maxSharedCapacityFactor + " (expected: >= 1)");
+        }
+        this.maxCapacity = Math.max(0, maxCapacity);
+        this.maxSharedCapacityFactor = maxSharedCapacityFactor;
+    }
+
+    @SuppressWarnings("unchecked")
     public final T get() {
+        if (maxCapacity == 0) {
+            return newObject(NOOP_HANDLE);
+        }
         Stack<T> stack = threadLocal.get();
-        T o = stack.pop();
-        if (o == null) {
-            o = newObject(stack);
+        DefaultHandle handle = stack.pop();
+        if (handle == null) {
+            handle = stack.newHandle();
+            handle.value = newObject(handle);
         }
-        return o;
+        return (T) handle.value;
     }
 
+    /**
+     * Returns {@code o} to the pool. May be called by any thread.
+     *
+     * @return {@code false} if the object was not obtained from this recycler
+     * @throws IllegalStateException if the object is recycled twice
+     */
     public final boolean recycle(T o, Handle handle) {
-        @SuppressWarnings("unchecked")
-        Stack<T> stack = (Stack<T>) handle;
-        if (stack.parent != this) {
+        if (handle == NOOP_HANDLE) {
             return false;
         }
 
-        if (Thread.currentThread() != stack.thread) {
+        DefaultHandle h = (DefaultHandle) handle;
+        if (h.stack.parent != this) {
             return false;
         }
+        if (o != h.value) {
+            throw new IllegalArgumentException("o does not belong to handle");
+        }
 
-        stack.push(o);
+        h.stack.push(h);
         return true;
     }
 
@@ -61,55 +133,361 @@ public abstract class Recycler<T> {
 
     public interface Handle { }
 
-    static final class Stack<T> implements Handle {
+    /**
+     * The handle of a pooled object. The recycle ids detect an object recycled twice without a lookup: both are
+     * {@code 0} while the object is in use, {@code lastRecycledId} is set to the id of the queue or of the owning
+     * thread which takes it back, and {@code recycleId} once the object reaches the stack. A recycle which finds
+     * either set throws.
+     */
+    static final class DefaultHandle implements Handle {
+        private int lastRecycledId;
+        private int recycleId;
+
+        private final Stack<?> stack;
+        private Object value;
+
+        DefaultHandle(Stack<?> stack) {
+            this.stack = stack;
+        }
+    }
+
+    /**
+     * A queue of objects recycled by one thread for the stack of another. Only the recycling thread adds to it
+     * and only the owner of the stack takes from it, so it needs no lock: the queue is a list of fixed size links,
+     * each publishing its elements with an ordered write of its write index.
+     */
+    private static final class WeakOrderQueue {
+
+        // stands in for the queue of a stack whose shared capacity was used up, so the objects a thread recycles
+        // for that stack afterwards are dropped without trying to allocate a queue again
+        static final WeakOrderQueue DUMMY = new WeakOrderQueue();
+
+        @SuppressWarnings("serial")
+        private static final class Link extends AtomicInteger {
+            private final DefaultHandle[] elements = new DefaultHandle[LINK_CAPACITY];
 
-        private static final int INITIAL_CAPACITY = 256;
+            private int readIndex;
+            private Link next;
+        }
+
+        // chain of links, read by the owner of the stack
+        private Link head;
+        // written by the recycling thread only
+        private Link tail;
+        // guarded by the head queue update of the stack
+        private WeakOrderQueue next;
+        private final WeakReference<Thread> owner;
+        private final int id = ID_GENERATOR.getAndIncrement();
+        private final AtomicInteger availableSharedCapacity;
+
+        private WeakOrderQueue() {
+            owner = null;
+            availableSharedCapacity = null;
+        }
+
+        private WeakOrderQueue(Stack<?> stack, Thread thread) {
+            head = tail = new Link();
+            owner = new WeakReference<Thread>(thread);
+            availableSharedCapacity = stack.availableSharedCapacity;
+        }
+
+        /**
+         * Returns a new queue linked to {@code stack}, or {@code null} if the shared capacity of the stack is
+         * used up.
+         */
+        static WeakOrderQueue allocate(Stack<?> stack, Thread thread) {
+            if (!reserveSpace(stack.availableSharedCapacity, LINK_CAPACITY)) {
+                return null;
+            }
+            WeakOrderQueue queue = new WeakOrderQueue(stack, thread);
+            stack.setHead(queue);
+            return queue;
+        }
+
+        private static boolean reserveSpace(AtomicInteger availableSharedCapacity, int space) {
+            for (;;) {
+                int available = availableSharedCapacity.get();
+                if (available < space) {
+                    return false;
+                }
+                if (availableSharedCapacity.compareAndSet(available, available - space)) {
+                    return true;
+                }
+            }
+        }
+
+        private void reclaimSpace(int space) {
+            availableSharedCapacity.addAndGet(space);
+        }
+
+        void add(DefaultHandle handle) {
+            if ((handle.recycleId | handle.lastRecycledId) != 0) {
+                throw new IllegalStateException("recycled already");
+            }
+            handle.lastRecycledId = id;
 
+            Link tail = this.tail;
+            int writeIndex = tail.get();
+            if (writeIndex == LINK_CAPACITY) {
+                if (!reserveSpace(availableSharedCapacity, LINK_CAPACITY)) {
+                    // drop the object
+                    return;
+                }
+                this.tail = tail = tail.next = new Link();
+                writeIndex = tail.get();
+            }
+            tail.elements[writeIndex] = handle;
+            // publishes the element to the owner of the stack
+            tail.lazySet(writeIndex + 1);
+        }
+
+        boolean hasFinalData() {
+            return tail.readIndex != tail.get();
+        }
+
+        /**
+         * Moves as many objects as possible from the head link of the queue to {@code dst}.
+         *
+         * @return {@code true} if any object was moved
+         */
+        boolean transfer(Stack<?> dst) {
+            Link head = this.head;
+            if (head == null) {
+                return false;
+            }
+
+            if (head.readIndex == LINK_CAPACITY) {
+                if (head.next == null) {
+                    return false;
+                }
+                this.head = head = head.next;
+                reclaimSpace(LINK_CAPACITY);
+            }
+
+            int srcStart = head.readIndex;
+            int srcEnd = head.get();
+            int srcSize = srcEnd - srcStart;
+            if (srcSize == 0) {
+                return false;
+            }
+
+            int dstSize = dst.size;
+            int expectedCapacity = dstSize + srcSize;
+            if (expectedCapacity > dst.elements.length) {
+                int actualCapacity = dst.increaseCapacity(expectedCapacity);
+                srcEnd = Math.min(srcStart + actualCapacity - dstSize, srcEnd);
+            }
+
+            if (srcStart == srcEnd) {
+                // the stack is full
+                return false;
+            }
+
+            DefaultHandle[] srcElements = head.elements;
+            DefaultHandle[] dstElements = dst.elements;
+            for (int i = srcStart; i < srcEnd; i ++) {
+                DefaultHandle element = srcElements[i];
+                if (element.recycleId != 0) {
+                    throw new IllegalStateException("recycled already");
+                }
+                element.recycleId = element.lastRecycledId;
+                srcElements[i] = null;
+                dstElements[dstSize ++] = element;
+            }
+
+            if (srcEnd == LINK_CAPACITY && head.next != null) {
+                this.head = head.next;
+                reclaimSpace(LINK_CAPACITY);
+            }
+            head.readIndex = srcEnd;
+            dst.size = dstSize;
+            return true;
+        }
+
+        /**
+         * Gives back the shared capacity of the links left in a queue whose thread has died.
+         */
+        void release() {
+            int links = 0;
+            for (Link link = head; link != null; link = link.next) {
+                links ++;
+            }
+            head = null;
+            reclaimSpace(links * LINK_CAPACITY);
+        }
+    }
+
+    static final class Stack<T> {
+
+        // Other threads read the parent, the thread and the shared capacity and add queues at the head, everything
+        // else is touched by the owning thread only.
         final Recycler<T> parent;
         final Thread thread;
-        private T[] elements;
+        final AtomicInteger availableSharedCapacity;
+        private final int maxCapacity;
+        private DefaultHandle[] elements;
         private int size;
-        private final Map<T, Boolean> map = new IdentityHashMap<T, Boolean>(INITIAL_CAPACITY);
+        // queues of other threads, scavenged by the owning thread from the cursor on
+        private volatile WeakOrderQueue head;
+        private WeakOrderQueue cursor;
+        private WeakOrderQueue prev;
 
-        @SuppressWarnings({ "unchecked", "SuspiciousArrayCast" })
-        Stack(Recycler<T> parent, Thread thread) {
+        Stack(Recycler<T> parent, Thread thread, int maxCapacity, int maxSharedCapacityFactor) {
             this.parent = parent;
             this.thread = thread;
-            elements = newArray(INITIAL_CAPACITY);
+            this.maxCapacity = maxCapacity;
+            availableSharedCapacity = new AtomicInteger(Math.max(maxCapacity / maxSharedCapacityFactor, LINK_CAPACITY));
+            elements = new DefaultHandle[Math.min(INITIAL_CAPACITY, maxCapacity)];
+        }
+
+        synchronized void setHead(WeakOrderQueue queue) {
+            queue.next = head;
+            head = queue;
         }
 
-        T pop() {
+        /**
+         * Grows the stack towards {@code expectedCapacity} without exceeding the maximal capacity.
+         */
+        int increaseCapacity(int expectedCapacity) {
+            int newCapacity = elements.length;
+            do {
+                newCapacity <<= 1;
+            } while (newCapacity < expectedCapacity && newCapacity < maxCapacity);
+
+            newCapacity = Math.min(newCapacity, maxCapacity);
+            if (newCapacity != elements.length) {
+                DefaultHandle[] newElements = new DefaultHandle[newCapacity];
+                System.arraycopy(elements, 0, newElements, 0, size);
+                elements = newElements;
+            }
+            return newCapacity;
+        }
+
+        DefaultHandle pop() {
             int size = this.size;
             if (size == 0) {
-                return null;
+                if (!scavenge()) {
+                    return null;
+                }
+                size = this.size;
             }
             size --;
-            T ret = elements[size];
+            DefaultHandle ret = elements[size];
             elements[size] = null;
-            map.remove(ret);
+            if (ret.lastRecycledId != ret.recycleId) {
+                throw new IllegalStateException("recycled multiple times");
+            }
+            ret.recycleId = 0;
+            ret.lastRecycledId = 0;
             this.size = size;
             return ret;
         }
 
-        void push(T o) {
-            if (map.put(o, Boolean.TRUE) != null) {
+        private boolean scavenge() {
+            if (scavengeSome()) {
+                return true;
+            }
+            // start over from the head next time
+            prev = null;
+            cursor = head;
+            return false;
+        }
+
+        private boolean scavengeSome() {
+            WeakOrderQueue cursor = this.cursor;
+            if (cursor == null) {
+                cursor = head;
+                if (cursor == null) {
+                    return false;
+                }
+            }
+
+            boolean success = false;
+            WeakOrderQueue prev = this.prev;
+            do {
+                if (cursor.transfer(this)) {
+                    success = true;
+                    break;
+                }
+
+                WeakOrderQueue next = cursor.next;
+                if (cursor.owner.get() == null) {
+                    // The thread of the queue has died, take what is left and unlink the queue. The head queue is
+                    // never unlinked so the owning thread never has to synchronize with setHead.
+                    if (cursor.hasFinalData()) {
+                        for (;;) {
+                            if (cursor.transfer(this)) {
+                                success = true;
+                            } else {
+                                break;
+                            }
+                        }
+                    }
+                    if (prev != null) {
+                        cursor.release();
+                        prev.next = next;
+                    }
+                } else {
+                    prev = cursor;
+                }
+
+                cursor = next;
+            } while (cursor != null && !success);
+
+            this.prev = prev;
+            this.cursor = cursor;
+            return success;
+        }
+
+        void push(DefaultHandle item) {
+            if (Thread.currentThread() == thread) {
+                pushNow(item);
+            } else {
+                pushLater(item);
+            }
+        }
+
+        private void pushNow(DefaultHandle item) {
+            if ((item.recycleId | item.lastRecycledId) != 0) {
                 throw new IllegalStateException("recycled already");
             }
+            item.recycleId = item.lastRecycledId = OWN_THREAD_ID;
 
             int size = this.size;
+            if (size >= maxCapacity) {
+                // drop the object
+                return;
+            }
             if (size == elements.length) {
-                T[] newElements = newArray(size << 1);
+                DefaultHandle[] newElements = new DefaultHandle[Math.min(size << 1, maxCapacity)];
                 System.arraycopy(elements, 0, newElements, 0, size);
                 elements = newElements;
             }
 
-            elements[size] = o;
+            elements[size] = item;
             this.size = size + 1;
         }
 
-        @SuppressWarnings({ "unchecked", "SuspiciousArrayCast" })
-        private static <T> T[] newArray(int length) {
-            return (T[]) new Object[length];
+        private void pushLater(DefaultHandle item) {
+            Map<Stack<?>, WeakOrderQueue> delayedRecycled = DELAYED_RECYCLED.get();
+            WeakOrderQueue queue = delayedRecycled.get(this);
+            if (queue == null) {
+                queue = WeakOrderQueue.allocate(this, Thread.currentThread());
+                if (queue == null) {
+                    // drop the object
+                    delayedRecycled.put(this, WeakOrderQueue.DUMMY);
+                    return;
+                }
+                delayedRecycled.put(this, queue);
+            } else if (queue == WeakOrderQueue.DUMMY) {
+                // drop the object
+                return;
+            }
+            queue.add(item);
+        }
+
+        DefaultHandle newHandle() {
+            return new DefaultHandle(this);
         }
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+import com.hazelcast.logging.ILogger;
+import com.hazelcast.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Checks if a thread is alive periodically and runs a task when a thread dies.
+ * <p>
+ * The watcher thread is started on demand and stops itself once there is nothing left to watch.
+ * </p>
+ */
+final class ThreadDeathWatcher {
+
+    private static final ILogger logger = Logger.getLogger(ThreadDeathWatcher.class);
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    private static final Queue<Entry> pendingEntries = new ConcurrentLinkedQueue<Entry>();
+    private static final Watcher watcher = new Watcher();
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    /**
+     * Schedules the specified {@code task} to run when the specified {@code thread} dies.
+     */
+    static void watch(Thread thread, Runnable task) {
+        if (thread == null) {
+            throw new NullPointerException("thread");
+        }
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (!thread.isAlive()) {
+            throw new IllegalArgumentException("thread must be alive.");
+        }
+
+        pendingEntries.add(new Entry(thread, task));
+
+        if (started.compareAndSet(false, true)) {
+            Thread watcherThread = new Thread(watcher, "hugecast-thread-death-watcher");
+            watcherThread.setDaemon(true);
+            watcherThread.start();
+        }
+    }
+
+    private static final class Watcher implements Runnable {
+
+        private final List<Entry> watchees = new ArrayList<Entry>();
+
+        @Override
+        public void run() {
+            for (;;) {
+                fetchWatchees();
+                notifyWatchees();
+
+                // Try once again just in case notifyWatchees() triggered watch() or unwatch().
+                fetchWatchees();
+                notifyWatchees();
+
+                try {
+                    Thread.sleep(CHECK_INTERVAL_MILLIS);
+                } catch (InterruptedException ignore) {
+                    // Ignore the interrupt; do not terminate until all tasks are run.
+                }
+
+                if (watchees.isEmpty() && pendingEntries.isEmpty()) {
+                    // Mark the current worker thread as stopped.
+                    boolean stopped = started.compareAndSet(true, false);
+                    assert stopped;
+
+                    // Check if there are pending entries added by watch() while we do CAS above.
+                    if (pendingEntries.isEmpty()) {
+                        break;
+                    }
+
+                    // There are pending entries again, added by watch() while we do CAS above.
+                    if (!started.compareAndSet(false, true)) {
+                        // watch() started a new thread and set 'started' to true.
+                        break;
+                    }
+                    // watch() added an entry, but this worker was faster to set 'started' to true.
+                }
+            }
+        }
+
+        private void fetchWatchees() {
+            for (;;) {
+                Entry e = pendingEntries.poll();
+                if (e == null) {
+                    break;
+                }
+                watchees.add(e);
+            }
+        }
+
+        private void notifyWatchees() {
+            for (Iterator<Entry> i = watchees.iterator(); i.hasNext();) {
+                Entry e = i.next();
+                if (!e.thread.isAlive()) {
+                    i.remove();
+                    try {
+                        e.task.run();
+                    } catch (Throwable t) {
+                        logger.log(Level.WARNING, "Thread death watcher task raised an exception:", t);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Thread thread;
+        final Runnable task;
+
+        Entry(Thread thread, Runnable task) {
+            this.thread = thread;
+            this.task = task;
+        }
+    }
+
+    private ThreadDeathWatcher() {
+        // only static method supported
+    }
+}
@@ -0,0 +1,79 @@
+package info.jerrinot.hazelcast;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the cases of a benchmark and prints the time per operation of each, relative to the first case, which is
+ * the baseline. All cases are warmed up for {@link #WARMUP_NANOS} each before any is measured, so the code they
+ * share has been compiled with the profile of all of them, and every case reports its fastest measured round.
+ * Benchmarks are plain classes with a main method, so they stay out of the JUnit tests; run one with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=<benchmark class>}.
+ */
+final class BenchmarkHarness {
+    private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final int MEASURED_ROUNDS = 5;
+
+    private BenchmarkHarness() {
+    }
+
+    /**
+     * Runs the {@code cases}, each between its own {@link Case#setUp()} and {@link Case#tearDown()}.
+     */
+    static void run(String title, Case... cases) {
+        for (Case c: cases) {
+            c.setUp();
+            try {
+                long start = System.nanoTime();
+                do {
+                    c.round();
+                } while (System.nanoTime() - start < WARMUP_NANOS);
+            } finally {
+                c.tearDown();
+            }
+        }
+
+        System.out.println(title);
+        double baseline = 0;
+        for (Case c: cases) {
+            double best = Double.MAX_VALUE;
+            c.setUp();
+            try {
+                for (int i = 0; i < MEASURED_ROUNDS; i ++) {
+                    long start = System.nanoTime();
+                    long operations = c.round();
+                    best = Math.min(best, (double) (System.nanoTime() - start) / operations);
+                }
+            } finally {
+                c.tearDown();
+            }
+            if (baseline == 0) {
+                baseline = best;
+            }
+            System.out.println(String.format("  %-40s %10.1f ns/op %8.2fx", c.name, best, best / baseline));
+        }
+    }
+
+    abstract static class Case {
+        final String name;
+
+        Case(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Prepares the case for a series of rounds. Called once for the warm-up and once for the measured rounds.
+         */
+        void setUp() {
+        }
+
+        /**
+         * Runs one round of the case.
+         *
+         * @return the number of operations done
+         */
+        abstract long round();
+
+        void tearDown() {
+        }
+    }
+}
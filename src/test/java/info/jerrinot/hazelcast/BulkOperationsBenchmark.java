@@ -0,0 +1,136 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.storage.DataRef;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares {@link NettyStorage#putAll}, {@link NettyStorage#getAll} and {@link NettyStorage#removeAll} with the
+ * baseline, a loop of single entry operations over the same batch.
+ */
+public final class BulkOperationsBenchmark {
+    private static final int BATCH_SIZE = 1000;
+    private static final int BATCHES_PER_ROUND = 500;
+
+    private static final int[] HASHES = new int[BATCH_SIZE];
+    private static final Data[] VALUES = new Data[BATCH_SIZE];
+
+    static {
+        Random random = new Random(1);
+        for (int i = 0; i < BATCH_SIZE; i ++) {
+            byte[] value = new byte[16 + random.nextInt(500)];
+            random.nextBytes(value);
+            HASHES[i] = random.nextInt();
+            VALUES[i] = new Data(1, value);
+        }
+    }
+
+    private BulkOperationsBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        run("compact", new NettyStorageConfig().setCompact(true));
+        run("compact striped", new NettyStorageConfig().setCompact(true).setStriped(true).setStripeCount(8));
+        run("plain", new NettyStorageConfig().setCompact(false));
+    }
+
+    private static void run(String mode, NettyStorageConfig config) {
+        BenchmarkHarness.run(mode + ", put + get + remove of " + BATCH_SIZE + " entries",
+                new PerEntryCase(config), new BatchedCase(config));
+    }
+
+    private abstract static class StorageCase extends BenchmarkHarness.Case {
+        private final NettyStorageConfig config;
+        NettyStorage storage;
+
+        StorageCase(String name, NettyStorageConfig config) {
+            super(name);
+            this.config = config;
+        }
+
+        @Override
+        void setUp() {
+            storage = new NettyStorage(config.setJmx(false), new ClassDefinitionRegistry());
+        }
+
+        @Override
+        long round() {
+            for (int i = 0; i < BATCHES_PER_ROUND; i ++) {
+                batch();
+            }
+            return 3L * BATCHES_PER_ROUND * BATCH_SIZE;
+        }
+
+        abstract void batch();
+
+        @Override
+        void tearDown() {
+            storage.close();
+        }
+    }
+
+    private static final class PerEntryCase extends StorageCase {
+        private final DataRef[] refs = new DataRef[BATCH_SIZE];
+
+        PerEntryCase(NettyStorageConfig config) {
+            super("per entry", config);
+        }
+
+        @Override
+        void batch() {
+            for (int i = 0; i < BATCH_SIZE; i ++) {
+                refs[i] = storage.put(HASHES[i], VALUES[i]);
+            }
+            for (int i = 0; i < BATCH_SIZE; i ++) {
+                storage.get(HASHES[i], refs[i]);
+            }
+            for (int i = 0; i < BATCH_SIZE; i ++) {
+                storage.remove(HASHES[i], refs[i]);
+            }
+        }
+    }
+
+    private static final class BatchedCase extends StorageCase {
+        BatchedCase(NettyStorageConfig config) {
+            super("batched", config);
+        }
+
+        @Override
+        void setUp() {
+            super.setUp();
+            verify();
+        }
+
+        @Override
+        void batch() {
+            DataRef[] refs = storage.putAll(HASHES, VALUES);
+            storage.getAll(HASHES, refs);
+            storage.removeAll(HASHES, refs);
+        }
+
+        /**
+         * Checks that the batch operations store, read and free what the single entry operations would.
+         */
+        private void verify() {
+            DataRef[] refs = storage.putAll(HASHES, VALUES);
+            Data[] copies = storage.getAll(HASHES, refs);
+            for (int i = 0; i < BATCH_SIZE; i ++) {
+                if (!Arrays.equals(VALUES[i].getBuffer(), copies[i].getBuffer())) {
+                    throw new AssertionError("value " + i + " differs");
+                }
+            }
+            check(BATCH_SIZE, storage.entryCount(), "entries");
+            storage.removeAll(HASHES, refs);
+            check(0, storage.entryCount(), "entries");
+            check(0, storage.offHeapBytes(), "off-heap bytes");
+        }
+
+        private static void check(long expected, long actual, String what) {
+            if (actual != expected) {
+                throw new AssertionError(actual + " " + what + ", expected " + expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.storage.DataRef;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Scrubs while other threads remove entries and put them again with other sizes, so the pages the scrubber walks
+ * are split into elements of other size classes after their allocations were collected. The payloads are made of
+ * committed entry headers with checksums, so a scrubber which takes a stale allocation for an entry reports a
+ * checksum mismatch although nothing is corrupted.
+ */
+public class ChecksumScrubberTest {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 2000;
+    private static final int[] SIZES = {16, 32, 48, 112, 240, 496, 1008};
+    private static final int SCRUBS = 1000;
+
+    @Test
+    public void scrubWhileEntriesAreRemovedAndPutAgain() throws InterruptedException {
+        NettyStorageConfig config = new NettyStorageConfig().setCompact(true).setChecksum(true);
+        // 8 KiB pages << 8 = 2 MiB chunks, no thread caches, so freed pages return to their chunks at once
+        final NettyStorage storage = new NettyStorage(config, new ClassDefinitionRegistry(),
+                new PooledByteBufAllocator(1, 8192, 8, 0, 0, 0));
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        try {
+            for (int i = 0; i < THREADS; i ++) {
+                final int owner = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            churn(storage, owner, stop);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            int corrupted = 0;
+            for (int i = 0; i < SCRUBS && failure.get() == null; i ++) {
+                corrupted += storage.scrub(ChecksumScrubber.BATCH_SIZE);
+                // lets the other threads free what the cursor collected, like the interval of the background thread
+                Thread.yield();
+            }
+            assertEquals(0, corrupted);
+        } finally {
+            stop.set(true);
+            for (Thread thread: threads) {
+                thread.join();
+            }
+            storage.close();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static void churn(NettyStorage storage, int owner, AtomicBoolean stop) {
+        Random random = new Random(owner);
+        DataRef[] refs = new DataRef[KEYS_PER_THREAD];
+        while (!stop.get()) {
+            int key = random.nextInt(KEYS_PER_THREAD);
+            int hash = key * THREADS + owner;
+            if (refs[key] != null) {
+                storage.remove(hash, refs[key]);
+            }
+            refs[key] = storage.put(hash, new Data(1, value(hash, SIZES[random.nextInt(SIZES.length)])));
+        }
+    }
+
+    private static byte[] value(int hash, int size) {
+        ByteBuffer value = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        while (value.remaining() > 4) {
+            // the length word of a committed entry with a checksum and no payload
+            value.putInt(1 << 30 | EntryHeader.FLAG_CHECKSUM);
+        }
+        value.putInt(hash);
+        return value.array();
+    }
+}
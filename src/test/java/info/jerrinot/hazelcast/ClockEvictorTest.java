@@ -0,0 +1,133 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.storage.DataRef;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Evicts while other threads remove entries and put them again with other sizes, so the pages under the clock hand
+ * are split into elements of other size classes after the hand collected their allocations. The payloads are all
+ * ones, which look like committed and referenced entry headers, so the hand corrupts them if it takes a stale
+ * allocation for an entry.
+ */
+public class ClockEvictorTest {
+    private static final int THREADS = 4;
+    private static final int KEYS_PER_THREAD = 2000;
+    private static final int OPERATIONS = 200000;
+    private static final int[] SIZES = {16, 32, 48, 112, 240, 496, 1008};
+
+    private final NettyStorage storage;
+    private final DataRef[] refs = new DataRef[THREADS * KEYS_PER_THREAD];
+    private final int[] sizes = new int[refs.length];
+    // the entries picked for eviction by owner thread, which removes them like a partition thread would
+    @SuppressWarnings("unchecked")
+    private final Queue<Evicted>[] evicted = new Queue[THREADS];
+    private final AtomicInteger numEvicted = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    public ClockEvictorTest() {
+        NettyStorageConfig config = new NettyStorageConfig().setCompact(true).setCapacity(1024 * 1024);
+        // 8 KiB pages << 8 = 2 MiB chunks, no thread caches, so freed pages return to their chunks at once
+        storage = new NettyStorage(config, new ClassDefinitionRegistry(),
+                new PooledByteBufAllocator(1, 8192, 8, 0, 0, 0));
+        for (int i = 0; i < THREADS; i ++) {
+            evicted[i] = new ConcurrentLinkedQueue<Evicted>();
+        }
+        storage.setEvictionListener(new EvictionListener() {
+            @Override
+            public void evict(int hash, DataRef ref) {
+                numEvicted.incrementAndGet();
+                evicted[hash % THREADS].add(new Evicted(hash, ref));
+            }
+        });
+    }
+
+    @Test
+    public void evictWhileEntriesAreRemovedAndPutAgain() throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i ++) {
+            final int owner = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        churn(owner);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        try {
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertTrue(numEvicted.get() > 0);
+            for (int hash = 0; hash < refs.length; hash ++) {
+                if (refs[hash] != null) {
+                    verify(hash);
+                }
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    private void churn(int owner) {
+        Random random = new Random(owner);
+        for (int i = 0; i < OPERATIONS && failure.get() == null; i ++) {
+            for (Evicted e; (e = evicted[owner].poll()) != null; ) {
+                if (e.ref.equals(refs[e.hash])) {
+                    verify(e.hash);
+                    storage.remove(e.hash, refs[e.hash]);
+                    refs[e.hash] = null;
+                }
+            }
+
+            int hash = random.nextInt(KEYS_PER_THREAD) * THREADS + owner;
+            if (refs[hash] != null) {
+                verify(hash);
+                storage.remove(hash, refs[hash]);
+            }
+            sizes[hash] = SIZES[random.nextInt(SIZES.length)];
+            refs[hash] = storage.put(hash, new Data(1, value(hash, sizes[hash])));
+        }
+    }
+
+    private void verify(int hash) {
+        byte[] value = storage.get(hash, refs[hash]).getBuffer();
+        assertTrue("corrupted value of " + hash, Arrays.equals(value(hash, sizes[hash]), value));
+    }
+
+    private static byte[] value(int hash, int size) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) 0xFF);
+        value[0] = (byte) hash;
+        value[1] = (byte) (hash >>> 8);
+        return value;
+    }
+
+    private static final class Evicted {
+        final int hash;
+        final DataRef ref;
+
+        Evicted(int hash, DataRef ref) {
+            this.hash = hash;
+            this.ref = ref;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.storage.DataRef;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class StorageSnapshotTest {
+    private static final long GIB = 1024L * 1024 * 1024;
+    private static final int CHURN_THREADS = 4;
+    private static final int CHURN_KEYS = 2000;
+    private static final int[] CHURN_SIZES = {16, 32, 48, 112, 240, 496, 1008};
+    private static final int SNAPSHOTS = 50;
+
+    @Test
+    public void roundTrip() throws IOException {
+        NettyStorageConfig config = new NettyStorageConfig().setCompact(true).setChecksum(true);
+        roundTrip(config, 8192, 11, 10000, 1000);
+    }
+
+    /**
+     * A chunk of 4 GiB holding more than 2 GiB of entries is written as several segments, none of which exceeds
+     * the range of an int.
+     */
+    @Test
+    public void roundTripOfChunkLargerThan2GiB() throws IOException {
+        // the chunk is zeroed when it is allocated, so all of it is resident next to the heap
+        assumeTrue(physicalMemory() - Runtime.getRuntime().maxMemory() >= 5 * GIB);
+        assumeTrue(new File(System.getProperty("java.io.tmpdir")).getUsableSpace() >= 3 * GIB);
+
+        // 8 KiB pages << 19 = 4 GiB chunks, the entries with their headers fit into runs of 1 MiB
+        NettyStorageConfig config = new NettyStorageConfig().setCompact(true);
+        roundTrip(config, 8192, 19, 2200, 1024 * 1024 - 1024);
+    }
+
+    /**
+     * Writes snapshots while other threads remove entries and put them again with other sizes, so the pages the
+     * snapshot walks are split into elements of other size classes after their allocations were collected. The
+     * payloads are made of committed entry headers of empty entries, so a snapshot which takes a stale allocation
+     * for an entry writes out a phantom entry.
+     */
+    @Test
+    public void snapshotWhileEntriesAreRemovedAndPutAgain() throws Exception {
+        final NettyStorageConfig config = new NettyStorageConfig().setCompact(true);
+        // 8 KiB pages << 8 = 2 MiB chunks, no thread caches, so freed pages return to their chunks at once
+        final NettyStorage storage = new NettyStorage(config, new ClassDefinitionRegistry(),
+                new PooledByteBufAllocator(1, 8192, 8, 0, 0, 0));
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[CHURN_THREADS];
+        File file = File.createTempFile("hugecast", ".snapshot");
+        try {
+            for (int i = 0; i < CHURN_THREADS; i ++) {
+                final int owner = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            churn(storage, owner, stop);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (int i = 0; i < SNAPSHOTS && failure.get() == null; i ++) {
+                storage.snapshot(file);
+                verifySnapshot(config, file);
+            }
+        } finally {
+            stop.set(true);
+            for (Thread thread: threads) {
+                thread.join();
+            }
+            storage.close();
+            file.delete();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static void churn(NettyStorage storage, int owner, AtomicBoolean stop) {
+        Random random = new Random(owner);
+        DataRef[] refs = new DataRef[CHURN_KEYS];
+        while (!stop.get()) {
+            int key = random.nextInt(CHURN_KEYS);
+            int hash = key * CHURN_THREADS + owner;
+            if (refs[key] != null) {
+                storage.remove(hash, refs[key]);
+            }
+            int size = CHURN_SIZES[random.nextInt(CHURN_SIZES.length)];
+            refs[key] = storage.put(hash, new Data(1, churnValue(hash, size)));
+        }
+    }
+
+    private static void verifySnapshot(NettyStorageConfig config, File file) throws IOException {
+        final NettyStorage restored = new NettyStorage(config, new ClassDefinitionRegistry(),
+                new PooledByteBufAllocator(1, 8192, 8, 0, 0, 0));
+        try {
+            final List<Integer> hashes = new ArrayList<Integer>();
+            final List<DataRef> refs = new ArrayList<DataRef>();
+            restored.restore(file, 1, new RestoreListener() {
+                @Override
+                public void entryRestored(int hash, DataRef ref) {
+                    hashes.add(hash);
+                    refs.add(ref);
+                }
+            });
+            for (int i = 0; i < hashes.size(); i ++) {
+                int hash = hashes.get(i);
+                assertTrue("phantom entry of " + hash, hash >= 0 && hash < CHURN_KEYS * CHURN_THREADS);
+                byte[] value = restored.get(hash, refs.get(i)).getBuffer();
+                assertTrue("corrupted value of " + hash, Arrays.equals(churnValue(hash, value.length), value));
+            }
+        } finally {
+            restored.close();
+        }
+    }
+
+    private static byte[] churnValue(int hash, int size) {
+        ByteBuffer value = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        while (value.remaining() > 4) {
+            // the length word of a committed entry without a payload
+            value.putInt(1 << 30);
+        }
+        value.putInt(hash);
+        return value.array();
+    }
+
+    private static void roundTrip(NettyStorageConfig config, int pageSize, int maxOrder, int numEntries,
+                                  int valueLength) throws IOException {
+        File file = File.createTempFile("hugecast", ".snapshot");
+        try {
+            NettyStorage storage = new NettyStorage(config, new ClassDefinitionRegistry(),
+                    new PooledByteBufAllocator(1, pageSize, maxOrder));
+            try {
+                byte[] value = new byte[valueLength];
+                for (int hash = 0; hash < numEntries; hash ++) {
+                    storage.put(hash, new Data(1, fill(value, hash)));
+                }
+                assertEquals(numEntries, storage.snapshot(file));
+            } finally {
+                // frees the chunks before the restored storage allocates its own
+                storage.close();
+            }
+
+            final ConcurrentMap<Integer, DataRef> refs = new ConcurrentHashMap<Integer, DataRef>();
+            NettyStorage restored = new NettyStorage(config, new ClassDefinitionRegistry(),
+                    new PooledByteBufAllocator(1, pageSize, maxOrder));
+            try {
+                long restoredEntries = restored.restore(file, 2, new RestoreListener() {
+                    @Override
+                    public void entryRestored(int hash, DataRef ref) {
+                        refs.put(hash, ref);
+                    }
+                });
+                assertEquals(numEntries, restoredEntries);
+                assertEquals(numEntries, refs.size());
+                assertEquals(numEntries, restored.entryCount());
+                byte[] value = new byte[valueLength];
+                for (int hash = 0; hash < numEntries; hash ++) {
+                    // assertArrayEquals of JUnit 4.7 compares element by element through reflection
+                    assertTrue("value of " + hash,
+                            Arrays.equals(fill(value, hash), restored.get(hash, refs.get(hash)).getBuffer()));
+                }
+            } finally {
+                restored.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] fill(byte[] value, int hash) {
+        Arrays.fill(value, (byte) hash);
+        for (int i = 0; i < 4 && i < value.length; i ++) {
+            value[i] = (byte) (hash >>> i * 8);
+        }
+        value[value.length - 1] = (byte) ~hash;
+        return value;
+    }
+
+    private static long physicalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        }
+        return 0;
+    }
+}
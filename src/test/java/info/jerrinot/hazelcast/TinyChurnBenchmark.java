@@ -0,0 +1,277 @@
+package info.jerrinot.hazelcast;
+
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.storage.DataRef;
+import info.jerrinot.nettyloc.PooledByteBufAllocator;
+
+import java.util.Random;
+
+/**
+ * Replaces random entries of a large population of 16 byte values, which keeps every subpage of the size class partly
+ * used, so allocations have to search a subpage for a free element. The entries are replaced a batch at a time,
+ * because a subpage hands out the element freed last without a search. The time per operation should not depend on
+ * the page size, which sets the number of elements per subpage.
+ * <p>
+ * The baseline searches the bitmap of a single subpage word by word and bit by bit, the way subpages did before
+ * they kept a summary of the words with a free element; the next case does the same with the summary. Both see the
+ * same bitmap state as a subpage under churn, where the lowest free elements are taken first and the free ones
+ * gather at the end of the bitmap.
+ * </p>
+ */
+public final class TinyChurnBenchmark {
+    private static final int ELEMENT_SIZE = 16;
+    private static final int LIVE_ENTRIES = 200000;
+    private static final int OPERATIONS = 1 << 20;
+    // entries freed before they are allocated again
+    private static final int BATCH_SIZE = 16;
+
+    private TinyChurnBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        for (int pageSize: new int[] {8192, 65536, 1048576}) {
+            int numElems = pageSize / ELEMENT_SIZE;
+            BenchmarkHarness.run(ELEMENT_SIZE + " byte elements in " + pageSize / 1024 + " KiB pages",
+                    new SearchCase("linear scan of a subpage", new LinearScan(numElems)),
+                    new SearchCase("summary of a subpage", new SummaryScan(numElems)),
+                    new AllocatorCase(pageSize),
+                    new StorageCase(pageSize));
+        }
+    }
+
+    private static int[] victims(int bound, long seed) {
+        int[] victims = new int[1 << 16];
+        Random random = new Random(seed);
+        for (int i = 0; i < victims.length; i ++) {
+            victims[i] = random.nextInt(bound);
+        }
+        return victims;
+    }
+
+    /**
+     * Keeps three quarters of the elements of a bitmap allocated and replaces random ones.
+     */
+    private static final class SearchCase extends BenchmarkHarness.Case {
+        private final Bitmap bitmap;
+        private final int[] live;
+        private final int[] victims;
+
+        SearchCase(String name, Bitmap bitmap) {
+            super(name);
+            this.bitmap = bitmap;
+            live = new int[bitmap.numElems * 3 / 4];
+            victims = victims(live.length, 1);
+            for (int i = 0; i < live.length; i ++) {
+                live[i] = bitmap.allocate();
+            }
+        }
+
+        @Override
+        long round() {
+            for (int i = 0; i < OPERATIONS; i += BATCH_SIZE) {
+                for (int j = 0; j < BATCH_SIZE; j ++) {
+                    int victim = victims[i + j & victims.length - 1];
+                    if (live[victim] >= 0) {
+                        bitmap.free(live[victim]);
+                        live[victim] = -1;
+                    }
+                }
+                for (int j = 0; j < BATCH_SIZE; j ++) {
+                    int victim = victims[i + j & victims.length - 1];
+                    if (live[victim] < 0) {
+                        live[victim] = bitmap.allocate();
+                    }
+                }
+            }
+            return OPERATIONS;
+        }
+    }
+
+    private abstract static class Bitmap {
+        final int numElems;
+        final long[] bitmap;
+
+        Bitmap(int numElems) {
+            this.numElems = numElems;
+            bitmap = new long[numElems + 63 >>> 6];
+        }
+
+        /**
+         * Marks the lowest free element allocated and returns it.
+         */
+        abstract int allocate();
+
+        abstract void free(int bitmapIdx);
+    }
+
+    private static final class LinearScan extends Bitmap {
+        LinearScan(int numElems) {
+            super(numElems);
+        }
+
+        @Override
+        int allocate() {
+            for (int i = 0; i < bitmap.length; i ++) {
+                long bits = bitmap[i];
+                if (~bits != 0) {
+                    for (int j = 0; j < 64; j ++) {
+                        if ((bits & 1) == 0) {
+                            bitmap[i] |= 1L << j;
+                            return i << 6 | j;
+                        }
+                        bits >>>= 1;
+                    }
+                }
+            }
+            throw new IllegalStateException("full");
+        }
+
+        @Override
+        void free(int bitmapIdx) {
+            bitmap[bitmapIdx >>> 6] ^= 1L << bitmapIdx;
+        }
+    }
+
+    private static final class SummaryScan extends Bitmap {
+        // a set bit marks a word of the bitmap with a free element
+        private final long[] summary;
+
+        SummaryScan(int numElems) {
+            super(numElems);
+            summary = new long[bitmap.length + 63 >>> 6];
+            for (int q = 0; q < bitmap.length; q ++) {
+                summary[q >>> 6] |= 1L << q;
+            }
+        }
+
+        @Override
+        int allocate() {
+            for (int i = 0; i < summary.length; i ++) {
+                long words = summary[i];
+                if (words != 0) {
+                    int q = i << 6 | Long.numberOfTrailingZeros(words);
+                    int bitmapIdx = q << 6 | Long.numberOfTrailingZeros(~bitmap[q]);
+                    if ((bitmap[q] |= 1L << bitmapIdx) == -1L) {
+                        summary[i] &= ~(1L << q);
+                    }
+                    return bitmapIdx;
+                }
+            }
+            throw new IllegalStateException("full");
+        }
+
+        @Override
+        void free(int bitmapIdx) {
+            int q = bitmapIdx >>> 6;
+            bitmap[q] ^= 1L << bitmapIdx;
+            summary[q >>> 6] |= 1L << q;
+        }
+    }
+
+    /**
+     * Frees and allocates 16 byte elements without the thread cache, which would otherwise serve most of them.
+     */
+    private static final class AllocatorCase extends BenchmarkHarness.Case {
+        private final int pageSize;
+        private final int[] victims = victims(LIVE_ENTRIES, 2);
+        private PooledByteBufAllocator allocator;
+        private long[] handles;
+
+        AllocatorCase(int pageSize) {
+            super("allocator free + allocate");
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        void setUp() {
+            allocator = new PooledByteBufAllocator(1, pageSize, 4, 0, 0, 0);
+            handles = new long[LIVE_ENTRIES];
+            for (int i = 0; i < LIVE_ENTRIES; i ++) {
+                handles[i] = allocator.allocateHandle(ELEMENT_SIZE);
+            }
+        }
+
+        @Override
+        long round() {
+            for (int i = 0; i < OPERATIONS; i += BATCH_SIZE) {
+                for (int j = 0; j < BATCH_SIZE; j ++) {
+                    int victim = victims[i + j & victims.length - 1];
+                    if (handles[victim] != 0) {
+                        allocator.freeHandle(handles[victim]);
+                        handles[victim] = 0;
+                    }
+                }
+                for (int j = 0; j < BATCH_SIZE; j ++) {
+                    int victim = victims[i + j & victims.length - 1];
+                    if (handles[victim] == 0) {
+                        handles[victim] = allocator.allocateHandle(ELEMENT_SIZE);
+                    }
+                }
+            }
+            return OPERATIONS;
+        }
+
+        @Override
+        void tearDown() {
+            allocator.releaseAll();
+        }
+    }
+
+    /**
+     * Removes and puts compact entries of up to 16 bytes, which take 32 byte elements with their headers.
+     */
+    private static final class StorageCase extends BenchmarkHarness.Case {
+        private final int pageSize;
+        private final int[] victims = victims(LIVE_ENTRIES, 3);
+        private final Data[] values = new Data[64];
+        private NettyStorage storage;
+        private DataRef[] refs;
+
+        StorageCase(int pageSize) {
+            super("storage remove + put");
+            this.pageSize = pageSize;
+            Random random = new Random(4);
+            for (int i = 0; i < values.length; i ++) {
+                values[i] = new Data(1, new byte[1 + random.nextInt(ELEMENT_SIZE)]);
+            }
+        }
+
+        @Override
+        void setUp() {
+            storage = new NettyStorage(new NettyStorageConfig().setCompact(true).setJmx(false),
+                    new ClassDefinitionRegistry(), new PooledByteBufAllocator(1, pageSize, 4, 0, 0, 0));
+            refs = new DataRef[LIVE_ENTRIES];
+            for (int i = 0; i < LIVE_ENTRIES; i ++) {
+                refs[i] = storage.put(i, values[i & values.length - 1]);
+            }
+        }
+
+        @Override
+        long round() {
+            for (int i = 0; i < OPERATIONS; i += BATCH_SIZE) {
+                for (int j = 0; j < BATCH_SIZE; j ++) {
+                    int victim = victims[i + j & victims.length - 1];
+                    if (refs[victim] != null) {
+                        storage.remove(victim, refs[victim]);
+                        refs[victim] = null;
+                    }
+                }
+                for (int j = 0; j < BATCH_SIZE; j ++) {
+                    int victim = victims[i + j & victims.length - 1];
+                    if (refs[victim] == null) {
+                        refs[victim] = storage.put(victim, values[i + j & values.length - 1]);
+                    }
+                }
+            }
+            return OPERATIONS;
+        }
+
+        @Override
+        void tearDown() {
+            if (storage.entryCount() != LIVE_ENTRIES) {
+                throw new AssertionError(storage.entryCount() + " entries, expected " + LIVE_ENTRIES);
+            }
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package info.jerrinot.nettyloc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocates and frees runs of random lengths and checks after every step that the free depths of the buddy tree
+ * match a brute-force scan of its memory map, and that an allocation fails exactly when no free run fits.
+ */
+public class PoolChunkTest {
+    private static final int PAGE_SIZE = 8192;
+    private static final int PAGE_SHIFTS = 13;
+    private static final int MAX_ORDER = 9;
+    private static final int ITERATIONS = 20000;
+
+    private PoolChunk<ByteBuffer> chunk;
+    private byte[] memoryMap;
+    private byte[] freeDepths;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        PooledByteBufAllocator allocator = new PooledByteBufAllocator(1, PAGE_SIZE, MAX_ORDER);
+        PoolArena<ByteBuffer> arena = (PoolArena<ByteBuffer>) allocator.arenaMetrics().get(0);
+        // the runs are never accessed, so the chunk needs no memory
+        chunk = new PoolChunk<ByteBuffer>(arena, null, 0, PAGE_SIZE, MAX_ORDER, PAGE_SHIFTS,
+                (long) PAGE_SIZE << MAX_ORDER);
+        memoryMap = (byte[]) field("memoryMap").get(chunk);
+        freeDepths = (byte[]) field("freeDepths").get(chunk);
+    }
+
+    private static Field field(String name) throws NoSuchFieldException {
+        Field field = PoolChunk.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+
+    @Test
+    public void freeDepthsMatchMemoryMap() {
+        Random random = new Random(42);
+        List<Long> handles = new ArrayList<Long>();
+        checkFreeDepths();
+        for (int i = 0; i < ITERATIONS; i ++) {
+            // more allocations than frees while the chunk is not fragmented, so it fills up and drains repeatedly
+            boolean allocate = handles.isEmpty() || random.nextInt(100) < (i / 1000 % 2 == 0 ? 70 : 30);
+            if (allocate) {
+                // mostly short runs, so the tree fragments
+                int depth = MAX_ORDER - Math.min(Integer.numberOfTrailingZeros(random.nextInt() | 1 << MAX_ORDER),
+                        MAX_ORDER);
+                boolean fits = bruteForceFreeDepth(1, false) <= depth;
+                long handle = chunk.allocate(PAGE_SIZE << MAX_ORDER - depth);
+                assertEquals("allocation of depth " + depth + " at iteration " + i, fits, handle > 0);
+                if (handle > 0) {
+                    assertEquals(depth, depth((int) handle));
+                    handles.add(handle);
+                }
+            } else {
+                chunk.free(handles.remove(random.nextInt(handles.size())));
+            }
+            checkFreeDepths();
+        }
+        for (long handle: handles) {
+            chunk.free(handle);
+        }
+        checkFreeDepths();
+        assertEquals(0, chunk.freeDepth());
+        assertEquals(0, chunk.usage());
+    }
+
+    private void checkFreeDepths() {
+        for (int memoryMapIdx = 1; memoryMapIdx < memoryMap.length; memoryMapIdx ++) {
+            // the nodes below an allocation are left as they were when the allocated run was free as a whole
+            int expected = isBelowAllocation(memoryMapIdx) ?
+                    depth(memoryMapIdx) : bruteForceFreeDepth(memoryMapIdx, false);
+            assertEquals("free depth of node " + memoryMapIdx, expected, freeDepths[memoryMapIdx]);
+        }
+    }
+
+    private boolean isBelowAllocation(int memoryMapIdx) {
+        for (int idx = memoryMapIdx >>> 1; idx > 0; idx >>>= 1) {
+            if (isAllocated(idx)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the depth of the shallowest node in the subtree of the node which is unused and not below an
+     * allocated node, or {@code maxOrder + 1} if there is none.
+     */
+    private int bruteForceFreeDepth(int memoryMapIdx, boolean belowAllocation) {
+        belowAllocation |= isAllocated(memoryMapIdx);
+        if (!belowAllocation && memoryMap[memoryMapIdx] == 0) {
+            return depth(memoryMapIdx);
+        }
+        if (memoryMapIdx >= memoryMap.length >>> 1) {
+            return MAX_ORDER + 1;
+        }
+        int left = bruteForceFreeDepth(memoryMapIdx << 1, belowAllocation);
+        int right = bruteForceFreeDepth(memoryMapIdx << 1 | 1, belowAllocation);
+        int freeDepth = Math.min(left, right);
+        assertTrue(freeDepth > depth(memoryMapIdx));
+        return freeDepth;
+    }
+
+    private boolean isAllocated(int memoryMapIdx) {
+        // ST_ALLOCATED and ST_ALLOCATED_SUBPAGE
+        return (memoryMap[memoryMapIdx] & 2) != 0;
+    }
+
+    private static int depth(int memoryMapIdx) {
+        return 31 - Integer.numberOfLeadingZeros(memoryMapIdx);
+    }
+}